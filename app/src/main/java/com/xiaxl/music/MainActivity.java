@@ -159,7 +159,10 @@ public class MainActivity extends Activity {
         mSeekBarAudio.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
             @Override
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
-                //
+                // 拖动过程中快速seek
+                if (fromUser && mMusicManager != null) {
+                    mMusicManager.scrubTo(progress);
+                }
             }
 
             @Override
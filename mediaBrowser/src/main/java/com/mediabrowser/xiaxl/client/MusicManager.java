@@ -5,7 +5,10 @@ import android.content.Context;
 import android.content.pm.PackageManager;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.RemoteException;
+import android.os.ResultReceiver;
 import android.support.annotation.NonNull;
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaMetadataCompat;
@@ -16,11 +19,13 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import com.mediabrowser.xiaxl.client.listener.OnSaveRecordListener;
+import com.mediabrowser.xiaxl.client.utils.LazyMetadataList;
 import com.mediabrowser.xiaxl.client.utils.MusicConvertUtil;
 import com.mediabrowser.xiaxl.client.utils.NetUtils;
 import com.mediabrowser.xiaxl.service.MusicService;
 import com.mediabrowser.xiaxl.client.model.IMusicInfo;
 import com.mediabrowser.xiaxl.service.MusicPlaybackManager;
+import com.mediabrowser.xiaxl.service.playback.PlayLatencyTracker;
 import com.mediabrowser.xiaxl.setting.SettingConfig;
 
 import java.util.ArrayList;
@@ -33,6 +38,11 @@ public class MusicManager {
 
     private static final String TAG = "MusicManager";
 
+    // 播放列表每次发送给Service的数量
+    private static final int PLAY_LIST_CHUNK_SIZE = 200;
+    // 播放列表中缓存的 MediaMetadataCompat 数量
+    private static final int PLAY_LIST_METADATA_CACHE_SIZE = 32;
+
 
     private static MusicManager instance = null;
 
@@ -66,6 +76,11 @@ public class MusicManager {
      */
     //当前播放列表
     private List<?> mPlayList;
+    // 当前播放列表对应的 MediaMetadataCompat，按需转换
+    private LazyMetadataList<?> mPlayMetadataList;
+    // 分段发送播放列表
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private PlayListTransfer mPlayListTransfer;
 
     // ####################################对外暴露的方法##############################################
 
@@ -117,6 +132,16 @@ public class MusicManager {
      * @param playIndex 当前播放位置
      */
     public <T extends IMusicInfo> void playMusicList(final List<T> list, final int playIndex) {
+        playMusicList(null, list, playIndex);
+    }
+
+    /**
+     * 播放列表
+     *
+     * @param title     队列名，Service端按队列名缓存播放队列，之后可以通过 {@link #switchPlayList(String)} 切换回来
+     * @param playIndex 当前播放位置
+     */
+    public <T extends IMusicInfo> void playMusicList(final String title, final List<T> list, final int playIndex) {
         // 数据为空
         if (list == null || list.isEmpty()) {
             return;
@@ -125,22 +150,157 @@ public class MusicManager {
         if (mMediaController == null) {
             return;
         }
-        //相同的列表则不刷新播放队列
-        if (mPlayList != null && list.equals(mPlayList)) {
-            if (playIndex >= 0 || playIndex < mPlayList.size())
-                mMediaController.getTransportControls().playFromMediaId(list.get(playIndex).getMediaId(), null);
+        //相同的列表则不刷新播放队列，要播放的音频尚未发送时重新发送
+        if (mPlayList != null && list.equals(mPlayList) && isPlayListItemSent(playIndex)) {
+            if (playIndex >= 0 && playIndex < mPlayList.size()) {
+                Bundle args = new Bundle();
+                args.putLong(MusicPlaybackManager.KEY_MUSIC_REQUEST_TIME, PlayLatencyTracker.now());
+                mMediaController.getTransportControls().playFromMediaId(list.get(playIndex).getMediaId(), args);
+            }
         }
         // 当前没有播放数据
         else {
+            // 取消上一个列表未发送完的部分
+            cancelPlayListTransfer();
             // 列表赋值
             mPlayList = list;
+            LazyMetadataList<T> metadataList = new LazyMetadataList<>(list, PLAY_LIST_METADATA_CACHE_SIZE);
+            mPlayMetadataList = metadataList;
+            // 先只发送当前播放位置开始的一段，其余部分分段追加
+            boolean playable = playIndex >= 0 && playIndex < list.size();
+            int start = playable ? playIndex : 0;
+            int end = Math.min(list.size(), start + PLAY_LIST_CHUNK_SIZE);
             // 设置数据
             Bundle args = new Bundle();
-            args.putParcelableArrayList(MusicPlaybackManager.KEY_MUSIC_QUEUE, MusicConvertUtil.convertToMediaMetadataList(list));
-            args.putInt(MusicPlaybackManager.KEY_MUSIC_QUEUE_PLAY_INDEX, playIndex);
+            args.putLong(MusicPlaybackManager.KEY_MUSIC_REQUEST_TIME, PlayLatencyTracker.now());
+            args.putParcelableArrayList(MusicPlaybackManager.KEY_MUSIC_QUEUE, metadataList.toArrayList(start, end));
+            args.putInt(MusicPlaybackManager.KEY_MUSIC_QUEUE_PLAY_INDEX, playable ? 0 : -1);
+            if (title != null) {
+                args.putString(MusicPlaybackManager.KEY_MUSIC_QUEUE_TITLE, title);
+            }
             // 播放队列数据
             mMediaController.getTransportControls()
                     .sendCustomAction(MusicPlaybackManager.CUSTOM_ACTION_MUSIC_PLAY_QUNEN, args);
+            // 发送剩余部分
+            if (start > 0 || end < list.size()) {
+                mPlayListTransfer = new PlayListTransfer(metadataList, start, end);
+                mHandler.post(mPlayListTransfer);
+            }
+        }
+    }
+
+    /**
+     * 切换到Service端缓存的播放队列，从该队列上次的位置继续播放
+     *
+     * @param title 调用 {@link #playMusicList(String, List, int)} 时的队列名
+     */
+    public void switchPlayList(String title) {
+        if (title == null || mMediaController == null) {
+            return;
+        }
+        // 客户端不再持有当前播放列表
+        cancelPlayListTransfer();
+        mPlayList = null;
+        mPlayMetadataList = null;
+        //
+        Bundle args = new Bundle();
+        args.putString(MusicPlaybackManager.KEY_MUSIC_QUEUE_TITLE, title);
+        mMediaController.getTransportControls()
+                .sendCustomAction(MusicPlaybackManager.CUSTOM_ACTION_MUSIC_QUEUE_SWITCH, args);
+    }
+
+    /**
+     * 当前播放列表中index处的数据，首次访问时转换
+     *
+     * @param index
+     * @return
+     */
+    public MediaMetadataCompat getPlayListMetadata(int index) {
+        LazyMetadataList<?> list = mPlayMetadataList;
+        if (list == null || index < 0 || index >= list.size()) {
+            return null;
+        }
+        return list.get(index);
+    }
+
+    /**
+     * 当前播放列表中index处的音频是否已发送给Service
+     *
+     * @param index
+     * @return
+     */
+    private boolean isPlayListItemSent(int index) {
+        PlayListTransfer transfer = mPlayListTransfer;
+        return transfer == null || (index >= transfer.mHeadEnd && index < transfer.mTailStart);
+    }
+
+    /**
+     * 取消未发送完的播放列表，Service端结束批量插入并发布已收到的部分
+     */
+    private void cancelPlayListTransfer() {
+        if (mPlayListTransfer != null) {
+            mHandler.removeCallbacks(mPlayListTransfer);
+            mPlayListTransfer = null;
+            if (mMediaController != null) {
+                Bundle args = new Bundle();
+                args.putParcelableArrayList(MusicPlaybackManager.KEY_MUSIC_QUEUE, new ArrayList<MediaMetadataCompat>());
+                args.putBoolean(MusicPlaybackManager.KEY_MUSIC_QUEUE_HAS_MORE, false);
+                mMediaController.getTransportControls()
+                        .sendCustomAction(MusicPlaybackManager.CUSTOM_ACTION_MUSIC_QUEUE_APPEND, args);
+            }
+        }
+    }
+
+    /**
+     * 分段发送播放列表的剩余部分
+     * <p>
+     * Playback starts as soon as the first chunk arrives. Items after it are appended first so
+     * the next tracks are available soon, then items before it are inserted at the head, last
+     * chunk first, which keeps the list order even if the service drops duplicates. One chunk
+     * is converted and sent per main-thread message. Every chunk but the last carries
+     * KEY_MUSIC_QUEUE_HAS_MORE, so the service publishes the queue once per transfer.
+     */
+    private class PlayListTransfer implements Runnable {
+        private final LazyMetadataList<?> mList;
+        // 头部还未发送的范围 [0, mHeadEnd)
+        private int mHeadEnd;
+        // 尾部还未发送的范围 [mTailStart, size)
+        private int mTailStart;
+
+        PlayListTransfer(LazyMetadataList<?> list, int headEnd, int tailStart) {
+            this.mList = list;
+            this.mHeadEnd = headEnd;
+            this.mTailStart = tailStart;
+        }
+
+        @Override
+        public void run() {
+            if (mPlayListTransfer != this || mMediaController == null) {
+                return;
+            }
+            Bundle args = new Bundle();
+            String action;
+            if (mTailStart < mList.size()) {
+                int end = Math.min(mList.size(), mTailStart + PLAY_LIST_CHUNK_SIZE);
+                args.putParcelableArrayList(MusicPlaybackManager.KEY_MUSIC_QUEUE, mList.toArrayList(mTailStart, end));
+                action = MusicPlaybackManager.CUSTOM_ACTION_MUSIC_QUEUE_APPEND;
+                mTailStart = end;
+            } else {
+                int start = Math.max(0, mHeadEnd - PLAY_LIST_CHUNK_SIZE);
+                args.putParcelableArrayList(MusicPlaybackManager.KEY_MUSIC_QUEUE, mList.toArrayList(start, mHeadEnd));
+                args.putInt(MusicPlaybackManager.KEY_MUSIC_QUEUE_POSITION, 0);
+                action = MusicPlaybackManager.CUSTOM_ACTION_MUSIC_QUEUE_INSERT;
+                mHeadEnd = start;
+            }
+            boolean hasMore = mHeadEnd > 0 || mTailStart < mList.size();
+            args.putBoolean(MusicPlaybackManager.KEY_MUSIC_QUEUE_HAS_MORE, hasMore);
+            mMediaController.getTransportControls().sendCustomAction(action, args);
+            // 继续发送下一段
+            if (hasMore) {
+                mHandler.post(this);
+            } else {
+                mPlayListTransfer = null;
+            }
         }
     }
 
@@ -155,7 +315,9 @@ public class MusicManager {
         //相同的列表则不刷新播放队列
         if (mPlayList != null && list.equals(mPlayList)) {
         } else {
+            cancelPlayListTransfer();
             mPlayList = list;
+            mPlayMetadataList = null;
             Bundle args = new Bundle();
             args.putParcelableArrayList(MusicPlaybackManager.KEY_MUSIC_QUEUE, MusicConvertUtil.convertToMediaMetadataList(list));
             args.putInt(MusicPlaybackManager.KEY_MUSIC_QUEUE_PLAY_INDEX, playIndex);
@@ -164,6 +326,55 @@ public class MusicManager {
         }
     }
 
+    /**
+     * 在播放队列末尾追加音频
+     */
+    public <T extends IMusicInfo> void appendToPlayList(final List<T> list) {
+        if (list == null || list.isEmpty()) return;
+        if (mMediaController == null) return;
+        Bundle args = new Bundle();
+        args.putParcelableArrayList(MusicPlaybackManager.KEY_MUSIC_QUEUE, MusicConvertUtil.convertToMediaMetadataList(list));
+        mMediaController.getTransportControls()
+                .sendCustomAction(MusicPlaybackManager.CUSTOM_ACTION_MUSIC_QUEUE_APPEND, args);
+    }
+
+    /**
+     * 在播放队列的position处插入音频
+     */
+    public <T extends IMusicInfo> void insertToPlayList(final List<T> list, final int position) {
+        if (list == null || list.isEmpty()) return;
+        if (mMediaController == null) return;
+        Bundle args = new Bundle();
+        args.putParcelableArrayList(MusicPlaybackManager.KEY_MUSIC_QUEUE, MusicConvertUtil.convertToMediaMetadataList(list));
+        args.putInt(MusicPlaybackManager.KEY_MUSIC_QUEUE_POSITION, position);
+        mMediaController.getTransportControls()
+                .sendCustomAction(MusicPlaybackManager.CUSTOM_ACTION_MUSIC_QUEUE_INSERT, args);
+    }
+
+    /**
+     * 移除播放队列中从position开始的count个音频
+     */
+    public void removeFromPlayList(final int position, final int count) {
+        if (mMediaController == null) return;
+        Bundle args = new Bundle();
+        args.putInt(MusicPlaybackManager.KEY_MUSIC_QUEUE_POSITION, position);
+        args.putInt(MusicPlaybackManager.KEY_MUSIC_QUEUE_COUNT, count);
+        mMediaController.getTransportControls()
+                .sendCustomAction(MusicPlaybackManager.CUSTOM_ACTION_MUSIC_QUEUE_REMOVE, args);
+    }
+
+    /**
+     * 将播放队列中from处的音频移动到to处
+     */
+    public void moveInPlayList(final int from, final int to) {
+        if (mMediaController == null) return;
+        Bundle args = new Bundle();
+        args.putInt(MusicPlaybackManager.KEY_MUSIC_QUEUE_POSITION, from);
+        args.putInt(MusicPlaybackManager.KEY_MUSIC_QUEUE_TO_POSITION, to);
+        mMediaController.getTransportControls()
+                .sendCustomAction(MusicPlaybackManager.CUSTOM_ACTION_MUSIC_QUEUE_MOVE, args);
+    }
+
     /**
      * 播放
      */
@@ -208,7 +419,7 @@ public class MusicManager {
     }
 
     /**
-     * seek
+     * seek，拖动结束时调用，精确定位
      */
     public void seekTo(long pos) {
         if (mTransportControls != null) {
@@ -217,6 +428,63 @@ public class MusicManager {
 
     }
 
+    /**
+     * 设置交叉淡入淡出的时长，2~8秒，0表示关闭
+     *
+     * @param millis
+     */
+    public void setCrossfadeDuration(long millis) {
+        if (mTransportControls != null) {
+            Bundle args = new Bundle();
+            args.putLong(MusicPlaybackManager.KEY_MUSIC_CROSSFADE_DURATION, millis);
+            mTransportControls.sendCustomAction(MusicPlaybackManager.CUSTOM_ACTION_MUSIC_CROSSFADE, args);
+        }
+    }
+
+    /**
+     * 读取开始播放的各阶段耗时，结果为 {@link PlayLatencyTracker#toBundle()}
+     *
+     * @param receiver
+     */
+    public void getPlayLatency(ResultReceiver receiver) {
+        if (mMediaController == null) return;
+        mMediaController.sendCommand(MusicPlaybackManager.CUSTOM_ACTION_MUSIC_PLAY_LATENCY, null, receiver);
+    }
+
+    /**
+     * 快速seek，拖动进度条的过程中调用，结束时再调用{@link #seekTo(long)}
+     */
+    public void scrubTo(long pos) {
+        if (mTransportControls != null) {
+            Bundle args = new Bundle();
+            args.putLong(MusicPlaybackManager.KEY_MUSIC_SEEK_POSITION, pos);
+            mTransportControls.sendCustomAction(MusicPlaybackManager.CUSTOM_ACTION_MUSIC_SCRUB, args);
+        }
+    }
+
+    /**
+     * 随机播放
+     *
+     * @param shuffleMode {@link PlaybackStateCompat#SHUFFLE_MODE_NONE} 或 {@link PlaybackStateCompat#SHUFFLE_MODE_ALL}
+     */
+    public void setShuffleMode(int shuffleMode) {
+        if (mTransportControls != null) {
+            mTransportControls.setShuffleMode(shuffleMode);
+        }
+    }
+
+    /**
+     * 循环播放
+     *
+     * @param repeatMode {@link PlaybackStateCompat#REPEAT_MODE_NONE}、{@link PlaybackStateCompat#REPEAT_MODE_ONE}
+     *                   或 {@link PlaybackStateCompat#REPEAT_MODE_ALL}
+     */
+    public void setRepeatMode(int repeatMode) {
+        if (mTransportControls != null) {
+            mTransportControls.setRepeatMode(repeatMode);
+        }
+    }
+
 
     // #########################################初始化###############################################
 
@@ -265,6 +533,7 @@ public class MusicManager {
      * 断开链接
      */
     public void disconnect() {
+        cancelPlayListTransfer();
         if (mMediaController != null) {
             mMediaController.unregisterCallback(mMediaControllerCallback);
             mMediaController = null;
@@ -551,7 +820,8 @@ public class MusicManager {
      * 网络是否允许播放
      */
     public boolean isNetWorkAllow() {
-        if (!NetUtils.isConnected(mContext)) {
+        // 尚未初始化，例如 service 被线控按键启动
+        if (mContext == null || !NetUtils.isConnected(mContext)) {
             return false;
         }
         return NetUtils.isWIFI(mContext)
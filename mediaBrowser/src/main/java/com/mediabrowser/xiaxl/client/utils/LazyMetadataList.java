@@ -0,0 +1,71 @@
+package com.mediabrowser.xiaxl.client.utils;
+
+import android.support.v4.media.MediaMetadataCompat;
+import android.util.LruCache;
+
+import com.mediabrowser.xiaxl.client.model.IMusicInfo;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 延迟转换的 {@link MediaMetadataCompat} 列表
+ * <br/>只持有 {@link IMusicInfo}，第一次访问时才转换为 {@link MediaMetadataCompat}，
+ * 最近访问的结果保存在一个小的LRU中
+ */
+
+public class LazyMetadataList<T extends IMusicInfo> extends AbstractList<MediaMetadataCompat> {
+
+    // 原始数据
+    private final List<T> mInfoList;
+    // 已转换的数据 index -> MediaMetadataCompat
+    private final LruCache<Integer, MediaMetadataCompat> mCache;
+
+
+    /**
+     * 构造方法
+     *
+     * @param list
+     * @param cacheSize LRU中最多保存的数量
+     */
+    public LazyMetadataList(List<T> list, int cacheSize) {
+        this.mInfoList = list;
+        this.mCache = new LruCache<>(Math.max(1, cacheSize));
+    }
+
+    @Override
+    public MediaMetadataCompat get(int index) {
+        MediaMetadataCompat metadata = mCache.get(index);
+        if (metadata == null) {
+            metadata = MusicConvertUtil.convertToMediaMetadata(mInfoList.get(index));
+            mCache.put(index, metadata);
+        }
+        return metadata;
+    }
+
+    @Override
+    public int size() {
+        return mInfoList.size();
+    }
+
+    /**
+     * 转换[from, to)范围内的数据，用于发送给Service
+     * <br/>已在LRU中的直接使用，其他的转换后不放入LRU，避免挤掉当前正在显示的数据
+     *
+     * @param from
+     * @param to
+     * @return
+     */
+    public ArrayList<MediaMetadataCompat> toArrayList(int from, int to) {
+        ArrayList<MediaMetadataCompat> list = new ArrayList<>(Math.max(0, to - from));
+        for (int i = from; i < to; i++) {
+            MediaMetadataCompat metadata = mCache.get(i);
+            if (metadata == null) {
+                metadata = MusicConvertUtil.convertToMediaMetadata(mInfoList.get(i));
+            }
+            list.add(metadata);
+        }
+        return list;
+    }
+}
@@ -34,23 +34,35 @@ public class MusicConvertUtil {
 
     /**
      * {@link IMusicInfo} 转为{@link MediaMetadataCompat}
+     * <br/>重复率高的字段（歌手、专辑、流派、封面地址、付费状态）经过 {@link StringPool} 去重
      *
      * @param info
      * @return
      */
     public static MediaMetadataCompat convertToMediaMetadata(IMusicInfo info) {
+        return convertToMediaMetadata(info, StringPool.getDefault());
+    }
+
+    /**
+     * {@link IMusicInfo} 转为{@link MediaMetadataCompat}
+     *
+     * @param info
+     * @param pool 字符串去重池
+     * @return
+     */
+    public static MediaMetadataCompat convertToMediaMetadata(IMusicInfo info, StringPool pool) {
         //
         return new MediaMetadataCompat.Builder()
                 .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, info.getMediaId())
-                .putString(MusicMetadataConstant.CUSTOM_METADATA_PAY_TYPE, info.freeType())
+                .putString(MusicMetadataConstant.CUSTOM_METADATA_PAY_TYPE, pool.intern(info.freeType()))
                 .putString(MusicMetadataConstant.CUSTOM_METADATA_TRACK_SOURCE, info.getSource())
-                .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, info.getAlbum())
-                .putString(MediaMetadataCompat.METADATA_KEY_ARTIST, info.getArtist())
+                .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, pool.intern(info.getAlbum()))
+                .putString(MediaMetadataCompat.METADATA_KEY_ARTIST, pool.intern(info.getArtist()))
                 .putString(MediaMetadataCompat.METADATA_KEY_DISPLAY_DESCRIPTION, info.getDescription())
                 .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, info.getDuration())
-                .putString(MediaMetadataCompat.METADATA_KEY_GENRE, info.getGenre())
-                .putString(MediaMetadataCompat.METADATA_KEY_ART_URI, info.getArtUrl())
-                .putString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI, info.getAlbumArtUrl())
+                .putString(MediaMetadataCompat.METADATA_KEY_GENRE, pool.intern(info.getGenre()))
+                .putString(MediaMetadataCompat.METADATA_KEY_ART_URI, pool.intern(info.getArtUrl()))
+                .putString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI, pool.intern(info.getAlbumArtUrl()))
                 .putString(MediaMetadataCompat.METADATA_KEY_TITLE, info.getTitle())
                 .build();
     }
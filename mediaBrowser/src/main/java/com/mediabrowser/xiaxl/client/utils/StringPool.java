@@ -0,0 +1,112 @@
+package com.mediabrowser.xiaxl.client.utils;
+
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+
+/**
+ * 字符串去重池
+ * <br/>歌手、专辑、流派和封面地址在曲库中大量重复，相同的值只保留一份
+ * <br/>weak模式下，没有其他地方引用的字符串可以被回收，适合进程内长期共享的池
+ */
+public class StringPool {
+
+    // 进程内共享的池（weak模式）
+    private static final StringPool sDefault = new StringPool(true);
+
+    // 是否weak模式
+    private final boolean mWeak;
+    // 强引用的池
+    private final Map<String, String> mStrongPool;
+    // 弱引用的池
+    private final Map<String, WeakReference<String>> mWeakPool;
+
+    // 命中次数
+    private int mHitCount;
+    // 未命中次数
+    private int mMissCount;
+
+
+    /**
+     * 构造方法
+     *
+     * @param weak 是否使用弱引用
+     */
+    public StringPool(boolean weak) {
+        this.mWeak = weak;
+        this.mStrongPool = weak ? null : new HashMap<String, String>();
+        this.mWeakPool = weak ? new WeakHashMap<String, WeakReference<String>>() : null;
+    }
+
+    /**
+     * 进程内共享的池
+     *
+     * @return
+     */
+    public static StringPool getDefault() {
+        return sDefault;
+    }
+
+
+    /**
+     * 返回池中与value相等的字符串，不存在时将value加入池中
+     *
+     * @param value
+     * @return
+     */
+    public synchronized String intern(String value) {
+        if (value == null) {
+            return null;
+        }
+        String pooled;
+        if (mWeak) {
+            WeakReference<String> ref = mWeakPool.get(value);
+            pooled = ref == null ? null : ref.get();
+            if (pooled == null) {
+                mWeakPool.put(value, new WeakReference<>(value));
+            }
+        } else {
+            pooled = mStrongPool.get(value);
+            if (pooled == null) {
+                mStrongPool.put(value, value);
+            }
+        }
+        if (pooled == null) {
+            mMissCount++;
+            return value;
+        }
+        mHitCount++;
+        return pooled;
+    }
+
+    /**
+     * 池中字符串的数量
+     *
+     * @return
+     */
+    public synchronized int size() {
+        return mWeak ? mWeakPool.size() : mStrongPool.size();
+    }
+
+    /**
+     * 清空
+     */
+    public synchronized void clear() {
+        if (mWeak) {
+            mWeakPool.clear();
+        } else {
+            mStrongPool.clear();
+        }
+        mHitCount = 0;
+        mMissCount = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "StringPool{weak=" + mWeak + ", size=" + size()
+                + ", hit=" + mHitCount + ", miss=" + mMissCount + "}";
+    }
+}
@@ -0,0 +1,231 @@
+package com.mediabrowser.xiaxl.service;
+
+import android.content.res.Resources;
+import android.support.v4.media.MediaBrowserCompat.MediaItem;
+import android.support.v4.media.MediaDescriptionCompat;
+
+import com.mediabrowser.xiaxl.R;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 浏览目录：根目录 -> 歌手 / 专辑 / 流派 -> 音频
+ * <p>
+ * A view over one immutable {@link QueueStore}. The grouping of each category (sorted group
+ * names and the store indexes of their tracks as int[]) is built on first use, once, so a
+ * page of any level only builds the MediaItems it returns. Thread safe.
+ * <p>
+ * Media ids: {@link #MEDIA_ID_ARTISTS}, {@link #MEDIA_ID_ALBUMS}, {@link #MEDIA_ID_GENRES} for
+ * the categories, category + {@link #SEPARATOR} + name for a group, and the track's own
+ * mediaId for tracks, so they play through onPlayFromMediaId.
+ */
+public class BrowseTree {
+
+    // 分类
+    public static final String MEDIA_ID_ARTISTS = "__ARTISTS__";
+    public static final String MEDIA_ID_ALBUMS = "__ALBUMS__";
+    public static final String MEDIA_ID_GENRES = "__GENRES__";
+    // 分类与分组名之间的分隔符
+    public static final char SEPARATOR = '|';
+
+    private static final String[] CATEGORIES = {MEDIA_ID_ARTISTS, MEDIA_ID_ALBUMS, MEDIA_ID_GENRES};
+    private static final int[] CATEGORY_TITLES = {R.string.browse_artists, R.string.browse_albums, R.string.browse_genres};
+    // 分组使用的列：QueueStore.STRING_KEYS 中的 artist、album、genre
+    private static final int[] CATEGORY_COLUMNS = {2, 3, 4};
+
+    private final Resources mResources;
+    private final QueueStore mStore;
+    // 每个分类的分组，第一次访问时创建
+    private final Grouping[] mGroupings = new Grouping[CATEGORIES.length];
+
+
+    public BrowseTree(Resources resources, QueueStore store) {
+        this.mResources = resources;
+        this.mStore = store;
+    }
+
+    /**
+     * 对应的播放队列数据
+     */
+    public QueueStore getStore() {
+        return mStore;
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 获取子节点
+     *
+     * @param rootId   根目录的mediaId
+     * @param parentId
+     * @param page     页码，小于0表示不分页
+     * @param pageSize 每页数量
+     * @return 不认识的parentId返回null
+     */
+    public List<MediaItem> getChildren(String rootId, String parentId, int page, int pageSize) {
+        // 根目录
+        if (rootId.equals(parentId)) {
+            List<MediaItem> items = new ArrayList<>(CATEGORIES.length);
+            for (int c = 0; c < CATEGORIES.length; c++) {
+                items.add(browsableItem(CATEGORIES[c], mResources.getString(CATEGORY_TITLES[c]), null));
+            }
+            return subList(items, page, pageSize);
+        }
+        // 分类
+        int category = indexOfCategory(parentId);
+        if (category >= 0) {
+            Grouping grouping = getGrouping(category);
+            int[] range = pageRange(grouping.mNames.length, page, pageSize);
+            List<MediaItem> items = new ArrayList<>(range[1] - range[0]);
+            for (int g = range[0]; g < range[1]; g++) {
+                String name = grouping.mNames[g];
+                items.add(browsableItem(parentId + SEPARATOR + name,
+                        name.isEmpty() ? mResources.getString(R.string.browse_unknown) : name,
+                        mResources.getString(R.string.browse_track_count, grouping.mTracks[g].length)));
+            }
+            return items;
+        }
+        // 分组
+        int separator = parentId.indexOf(SEPARATOR);
+        if (separator > 0) {
+            category = indexOfCategory(parentId.substring(0, separator));
+            if (category >= 0) {
+                Grouping grouping = getGrouping(category);
+                Integer group = grouping.mIndexByName.get(parentId.substring(separator + 1));
+                if (group == null) {
+                    return new ArrayList<>();
+                }
+                int[] tracks = grouping.mTracks[group];
+                int[] range = pageRange(tracks.length, page, pageSize);
+                List<MediaItem> items = new ArrayList<>(range[1] - range[0]);
+                for (int t = range[0]; t < range[1]; t++) {
+                    items.add(new MediaItem(mStore.buildMetadata(tracks[t]).getDescription(),
+                            MediaItem.FLAG_PLAYABLE));
+                }
+                return items;
+            }
+        }
+        return null;
+    }
+
+    private static int indexOfCategory(String mediaId) {
+        for (int c = 0; c < CATEGORIES.length; c++) {
+            if (CATEGORIES[c].equals(mediaId)) {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    private static MediaItem browsableItem(String mediaId, String title, String subtitle) {
+        MediaDescriptionCompat description = new MediaDescriptionCompat.Builder()
+                .setMediaId(mediaId)
+                .setTitle(title)
+                .setSubtitle(subtitle)
+                .build();
+        return new MediaItem(description, MediaItem.FLAG_BROWSABLE);
+    }
+
+    /**
+     * 分页范围 [start, end)
+     */
+    private static int[] pageRange(int size, int page, int pageSize) {
+        if (page < 0 || pageSize < 1) {
+            return new int[]{0, size};
+        }
+        long start = (long) page * pageSize;
+        if (start >= size) {
+            return new int[]{0, 0};
+        }
+        return new int[]{(int) start, (int) Math.min(size, start + pageSize)};
+    }
+
+    private static List<MediaItem> subList(List<MediaItem> items, int page, int pageSize) {
+        int[] range = pageRange(items.size(), page, pageSize);
+        return new ArrayList<>(items.subList(range[0], range[1]));
+    }
+
+
+    // ##########################################################################################
+
+    private synchronized Grouping getGrouping(int category) {
+        if (mGroupings[category] == null) {
+            mGroupings[category] = buildGrouping(CATEGORY_COLUMNS[category]);
+        }
+        return mGroupings[category];
+    }
+
+    /**
+     * 按列分组，分组名按中文排序
+     */
+    private Grouping buildGrouping(int column) {
+        int size = mStore.size();
+        // 分组名 -> 音频数量
+        Map<String, int[]> counts = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            String name = groupName(column, i);
+            int[] count = counts.get(name);
+            if (count == null) {
+                counts.put(name, new int[]{1});
+            } else {
+                count[0]++;
+            }
+        }
+        String[] names = counts.keySet().toArray(new String[counts.size()]);
+        final Collator collator = Collator.getInstance(Locale.CHINA);
+        Arrays.sort(names, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                // 未知的分组放在最后
+                if (a.isEmpty() || b.isEmpty()) {
+                    return a.isEmpty() ? (b.isEmpty() ? 0 : 1) : -1;
+                }
+                return collator.compare(a, b);
+            }
+        });
+        Map<String, Integer> indexByName = new HashMap<>(names.length * 4 / 3 + 1);
+        int[][] tracks = new int[names.length][];
+        for (int g = 0; g < names.length; g++) {
+            indexByName.put(names[g], g);
+            tracks[g] = new int[counts.get(names[g])[0]];
+        }
+        // 分组中的音频按播放队列顺序排列
+        int[] filled = new int[names.length];
+        for (int i = 0; i < size; i++) {
+            int g = indexByName.get(groupName(column, i));
+            tracks[g][filled[g]++] = i;
+        }
+        return new Grouping(names, indexByName, tracks);
+    }
+
+    private String groupName(int column, int index) {
+        String name = mStore.getString(column, index);
+        return name == null ? "" : name.trim();
+    }
+
+    /**
+     * 一个分类的分组
+     */
+    private static final class Grouping {
+        // 排序后的分组名，""表示未知
+        private final String[] mNames;
+        // 分组名 -> index
+        private final Map<String, Integer> mIndexByName;
+        // 每个分组中音频在 QueueStore 中的index
+        private final int[][] mTracks;
+
+        private Grouping(String[] names, Map<String, Integer> indexByName, int[][] tracks) {
+            this.mNames = names;
+            this.mIndexByName = indexByName;
+            this.mTracks = tracks;
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package com.mediabrowser.xiaxl.service;
+
+/**
+ * 不可变的哈希查找表
+ * <p>
+ * A hash array mapped trie: each level consumes 5 bits of the key's hash and stores only the
+ * occupied slots, selected by a 32-bit bitmap. {@link #put} and {@link #remove} copy just the
+ * nodes on the path to the key and share the rest with the original, so successive versions
+ * of a large table cost O(changed keys) each while every version stays readable from any
+ * thread. Keys whose full hashes collide share a leaf below the last level.
+ * <p>
+ * A {@link Builder} applies a batch of changes: nodes it has already copied are changed in
+ * place, so a batch of k changes costs about k short paths rather than k full path copies.
+ * <p>
+ * Keys and values must not be null.
+ */
+final class HashTrie<K, V> {
+
+    // 每层使用的hash位数
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    // hash用完之后的层，key按顺序保存在同一个节点中
+    private static final int COLLISION_SHIFT = 35;
+
+    private static final Node EMPTY_NODE = new Node(0, new Object[0], null);
+    private static final HashTrie EMPTY = new HashTrie(EMPTY_NODE, 0);
+
+    // 根节点
+    private final Node mRoot;
+    // key的数量
+    private final int mSize;
+
+
+    private HashTrie(Node root, int size) {
+        this.mRoot = root;
+        this.mSize = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> HashTrie<K, V> empty() {
+        return (HashTrie<K, V>) EMPTY;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * key对应的value
+     *
+     * @param key
+     * @return 不存在时返回null
+     */
+    @SuppressWarnings("unchecked")
+    V get(Object key) {
+        int hash = hash(key);
+        Node node = mRoot;
+        for (int shift = 0; ; shift += BITS) {
+            Object[] array = node.mArray;
+            if (shift >= COLLISION_SHIFT) {
+                for (int i = 0; i < array.length; i += 2) {
+                    if (key.equals(array[i])) {
+                        return (V) array[i + 1];
+                    }
+                }
+                return null;
+            }
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((node.mBitmap & bit) == 0) {
+                return null;
+            }
+            int index = 2 * Integer.bitCount(node.mBitmap & (bit - 1));
+            Object k = array[index];
+            if (k == null) {
+                node = (Node) array[index + 1];
+                continue;
+            }
+            return key.equals(k) ? (V) array[index + 1] : null;
+        }
+    }
+
+    /**
+     * 加入或替换key对应的value
+     *
+     * @return 新的查找表，没有变化时返回自身
+     */
+    HashTrie<K, V> put(K key, V value) {
+        boolean[] added = new boolean[1];
+        Node root = put(mRoot, hash(key), key, value, 0, added, null);
+        if (root == mRoot) {
+            return this;
+        }
+        return new HashTrie<>(root, added[0] ? mSize + 1 : mSize);
+    }
+
+    /**
+     * 移除key
+     *
+     * @return 新的查找表，key不存在时返回自身
+     */
+    HashTrie<K, V> remove(Object key) {
+        boolean[] removed = new boolean[1];
+        Node root = remove(mRoot, hash(key), key, 0, removed, null);
+        if (!removed[0]) {
+            return this;
+        }
+        return new HashTrie<>(root == null ? EMPTY_NODE : root, mSize - 1);
+    }
+
+    /**
+     * 从当前内容开始批量修改
+     */
+    Builder<K, V> toBuilder() {
+        return new Builder<>(mRoot, mSize);
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 批量修改
+     * <p>
+     * Not thread safe. The table returned by {@link #build()} is immutable; changes made after
+     * it copy nodes again instead of touching the published ones.
+     */
+    static final class Builder<K, V> {
+
+        // 本次修改新建的节点属于该对象，可以原地修改
+        private Object mOwner = new Object();
+        private Node mRoot;
+        private int mSize;
+
+        private Builder(Node root, int size) {
+            this.mRoot = root;
+            this.mSize = size;
+        }
+
+        void put(K key, V value) {
+            boolean[] added = new boolean[1];
+            mRoot = HashTrie.put(mRoot, hash(key), key, value, 0, added, mOwner);
+            if (added[0]) {
+                mSize++;
+            }
+        }
+
+        void remove(Object key) {
+            boolean[] removed = new boolean[1];
+            Node root = HashTrie.remove(mRoot, hash(key), key, 0, removed, mOwner);
+            if (removed[0]) {
+                mRoot = root == null ? EMPTY_NODE : root;
+                mSize--;
+            }
+        }
+
+        HashTrie<K, V> build() {
+            // 之后的修改不能再改动已发布的节点
+            mOwner = new Object();
+            return new HashTrie<>(mRoot, mSize);
+        }
+    }
+
+
+    // ##########################################################################################
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @param owner 不为null时，属于owner的节点原地修改
+     */
+    private static Node put(Node node, int hash, Object key, Object value, int shift,
+                            boolean[] added, Object owner) {
+        Object[] array = node.mArray;
+        if (shift >= COLLISION_SHIFT) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    return array[i + 1] == value ? node : node.with(i + 1, value, owner);
+                }
+            }
+            added[0] = true;
+            return node.inserted(array.length, 0, key, value, owner);
+        }
+        int bit = 1 << ((hash >>> shift) & MASK);
+        int index = 2 * Integer.bitCount(node.mBitmap & (bit - 1));
+        // 空位
+        if ((node.mBitmap & bit) == 0) {
+            added[0] = true;
+            return node.inserted(index, bit, key, value, owner);
+        }
+        Object k = array[index];
+        Object v = array[index + 1];
+        // 子节点
+        if (k == null) {
+            Node child = put((Node) v, hash, key, value, shift + BITS, added, owner);
+            return child == v ? node : node.with(index + 1, child, owner);
+        }
+        // 同一个key
+        if (key.equals(k)) {
+            return v == value ? node : node.with(index + 1, value, owner);
+        }
+        // 两个key在这一层冲突，下移到新的子节点
+        added[0] = true;
+        Node child = put(EMPTY_NODE, hash(k), k, v, shift + BITS, new boolean[1], owner);
+        child = put(child, hash, key, value, shift + BITS, added, owner);
+        return node.with(index, null, index + 1, child, owner);
+    }
+
+    /**
+     * @param removed 返回key是否存在并已移除
+     * @return 移除后的节点，节点为空时返回null
+     */
+    private static Node remove(Node node, int hash, Object key, int shift, boolean[] removed,
+                               Object owner) {
+        Object[] array = node.mArray;
+        if (shift >= COLLISION_SHIFT) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    removed[0] = true;
+                    return array.length == 2 ? null : node.removed(i, 0, owner);
+                }
+            }
+            return node;
+        }
+        int bit = 1 << ((hash >>> shift) & MASK);
+        if ((node.mBitmap & bit) == 0) {
+            return node;
+        }
+        int index = 2 * Integer.bitCount(node.mBitmap & (bit - 1));
+        Object k = array[index];
+        if (k == null) {
+            Node child = (Node) array[index + 1];
+            Node rest = remove(child, hash, key, shift + BITS, removed, owner);
+            if (!removed[0]) {
+                return node;
+            }
+            if (rest == null) {
+                return array.length == 2 ? null : node.removed(index, bit, owner);
+            }
+            // 子节点只剩一个key时收回到这一层
+            if (rest.mArray.length == 2 && rest.mArray[0] != null) {
+                return node.with(index, rest.mArray[0], index + 1, rest.mArray[1], owner);
+            }
+            return rest == child ? node : node.with(index + 1, rest, owner);
+        }
+        if (!key.equals(k)) {
+            return node;
+        }
+        removed[0] = true;
+        return array.length == 2 ? null : node.removed(index, bit, owner);
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 节点：mBitmap 中每个占用的位对应 mArray 中的两项，(key, value) 或 (null, 子节点)
+     * <p>
+     * Only a {@link Builder} whose owner created the node changes it, before the node is
+     * published through {@link #build()}.
+     */
+    private static final class Node {
+        int mBitmap;
+        Object[] mArray;
+        final Object mOwner;
+
+        Node(int bitmap, Object[] array, Object owner) {
+            this.mBitmap = bitmap;
+            this.mArray = array;
+            this.mOwner = owner;
+        }
+
+        private boolean isEditable(Object owner) {
+            return owner != null && owner == mOwner;
+        }
+
+        // 替换一项
+        Node with(int index, Object value, Object owner) {
+            if (isEditable(owner)) {
+                mArray[index] = value;
+                return this;
+            }
+            Object[] copy = mArray.clone();
+            copy[index] = value;
+            return new Node(mBitmap, copy, owner);
+        }
+
+        // 替换两项
+        Node with(int index1, Object value1, int index2, Object value2, Object owner) {
+            if (isEditable(owner)) {
+                mArray[index1] = value1;
+                mArray[index2] = value2;
+                return this;
+            }
+            Object[] copy = mArray.clone();
+            copy[index1] = value1;
+            copy[index2] = value2;
+            return new Node(mBitmap, copy, owner);
+        }
+
+        // 在index处插入一对
+        Node inserted(int index, int bit, Object key, Object value, Object owner) {
+            Object[] copy = new Object[mArray.length + 2];
+            System.arraycopy(mArray, 0, copy, 0, index);
+            copy[index] = key;
+            copy[index + 1] = value;
+            System.arraycopy(mArray, index, copy, index + 2, mArray.length - index);
+            if (isEditable(owner)) {
+                mArray = copy;
+                mBitmap |= bit;
+                return this;
+            }
+            return new Node(mBitmap | bit, copy, owner);
+        }
+
+        // 移除index处的一对
+        Node removed(int index, int bit, Object owner) {
+            Object[] copy = new Object[mArray.length - 2];
+            System.arraycopy(mArray, 0, copy, 0, index);
+            System.arraycopy(mArray, index + 2, copy, index, copy.length - index);
+            if (isEditable(owner)) {
+                mArray = copy;
+                mBitmap &= ~bit;
+                return this;
+            }
+            return new Node(mBitmap & ~bit, copy, owner);
+        }
+    }
+}
@@ -18,7 +18,9 @@ package com.mediabrowser.xiaxl.service;
 
 import android.content.Context;
 import android.os.Bundle;
+import android.os.ResultReceiver;
 import android.os.SystemClock;
+import android.provider.MediaStore;
 import android.support.annotation.NonNull;
 import android.support.v4.media.MediaDescriptionCompat;
 import android.support.v4.media.MediaMetadataCompat;
@@ -26,8 +28,11 @@ import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 
 import com.mediabrowser.xiaxl.client.MusicManager;
+import com.mediabrowser.xiaxl.service.cache.TrackHeadPrefetcher;
+import com.mediabrowser.xiaxl.service.playback.PlayLatencyTracker;
 import com.mediabrowser.xiaxl.service.playback.Playback;
 
+import java.util.ArrayList;
 import java.util.List;
 
 
@@ -47,6 +52,22 @@ public class MusicPlaybackManager implements Playback.PlaybackCallback {
     public static final String CUSTOM_ACTION_MUSIC_UPDATE_QUNEN = "com.netease.awakeing.music.MUSIC_QUEUE_UPDATE";
     // 重置队列
     public static final String CUSTOM_ACTION_MUSIC_QUEUE_RESET = "com.netease.awakeing.music.MUSIC_QUEUE_RESET";
+    // 队列末尾追加音频
+    public static final String CUSTOM_ACTION_MUSIC_QUEUE_APPEND = "com.netease.awakeing.music.MUSIC_QUEUE_APPEND";
+    // 队列指定位置插入音频
+    public static final String CUSTOM_ACTION_MUSIC_QUEUE_INSERT = "com.netease.awakeing.music.MUSIC_QUEUE_INSERT";
+    // 移除队列中一段音频
+    public static final String CUSTOM_ACTION_MUSIC_QUEUE_REMOVE = "com.netease.awakeing.music.MUSIC_QUEUE_REMOVE";
+    // 移动队列中的音频
+    public static final String CUSTOM_ACTION_MUSIC_QUEUE_MOVE = "com.netease.awakeing.music.MUSIC_QUEUE_MOVE";
+    // 切换到缓存的播放队列
+    public static final String CUSTOM_ACTION_MUSIC_QUEUE_SWITCH = "com.netease.awakeing.music.MUSIC_QUEUE_SWITCH";
+    // 拖动进度条时的快速seek
+    public static final String CUSTOM_ACTION_MUSIC_SCRUB = "com.netease.awakeing.music.MUSIC_SCRUB";
+    // 设置交叉淡入淡出的时长
+    public static final String CUSTOM_ACTION_MUSIC_CROSSFADE = "com.netease.awakeing.music.MUSIC_CROSSFADE";
+    // 读取开始播放的耗时统计，通过 sendCommand 发送，结果为 PlayLatencyTracker.toBundle()
+    public static final String CUSTOM_ACTION_MUSIC_PLAY_LATENCY = "com.netease.awakeing.music.MUSIC_PLAY_LATENCY";
 
     /**
      * key
@@ -57,6 +78,33 @@ public class MusicPlaybackManager implements Playback.PlaybackCallback {
     public static final String KEY_MUSIC_QUEUE_TITLE = "com.netease.awakeing.music.KEY_MUSIC_QUEUE_TITLE";
     // 播放index，小于0表示不播
     public static final String KEY_MUSIC_QUEUE_PLAY_INDEX = "com.netease.awakeing.music.KEY_MUSIC_QUEUE_PLAY_INDEX";
+    // 增量修改的起始位置
+    public static final String KEY_MUSIC_QUEUE_POSITION = "com.netease.awakeing.music.KEY_MUSIC_QUEUE_POSITION";
+    // 移除的数量
+    public static final String KEY_MUSIC_QUEUE_COUNT = "com.netease.awakeing.music.KEY_MUSIC_QUEUE_COUNT";
+    // 分段发送播放列表时，之后是否还有数据，最后一段为false
+    public static final String KEY_MUSIC_QUEUE_HAS_MORE = "com.netease.awakeing.music.KEY_MUSIC_QUEUE_HAS_MORE";
+    // 移动的目标位置
+    public static final String KEY_MUSIC_QUEUE_TO_POSITION = "com.netease.awakeing.music.KEY_MUSIC_QUEUE_TO_POSITION";
+    // 快速seek的位置
+    public static final String KEY_MUSIC_SEEK_POSITION = "com.netease.awakeing.music.KEY_MUSIC_SEEK_POSITION";
+    // 客户端发出播放请求的时间 SystemClock.elapsedRealtime()
+    public static final String KEY_MUSIC_REQUEST_TIME = "com.netease.awakeing.music.KEY_MUSIC_REQUEST_TIME";
+    // 交叉淡入淡出的时长ms，0表示不使用
+    public static final String KEY_MUSIC_CROSSFADE_DURATION = "com.netease.awakeing.music.KEY_MUSIC_CROSSFADE_DURATION";
+
+    /**
+     * 搜索
+     */
+    // 搜索时最多匹配的数量
+    private static final int SEARCH_LIMIT = 20;
+    // 语音搜索时附带的字段
+    private static final String[] SEARCH_EXTRA_KEYS = {
+            MediaStore.EXTRA_MEDIA_TITLE,
+            MediaStore.EXTRA_MEDIA_ARTIST,
+            MediaStore.EXTRA_MEDIA_ALBUM,
+            MediaStore.EXTRA_MEDIA_GENRE
+    };
 
 
     /**
@@ -81,6 +129,19 @@ public class MusicPlaybackManager implements Playback.PlaybackCallback {
      */
     // 正在播放的MediaId
     private String mPlayingMediaId = "";
+    // 从快照恢复的音频，下次播放该音频时从mResumePosition处开始
+    private String mResumeMediaId;
+    private long mResumePosition;
+    // 无缝播放：是否预加载下一首
+    private boolean mGaplessEnabled = true;
+    // 预加载的下一首音频的MediaId
+    private String mNextMediaId;
+    // 预加载音频的开头部分
+    private TrackHeadPrefetcher mTrackHeadPrefetcher;
+    // 上次预加载开头部分的MediaId
+    private List<String> mPrefetchMediaIds = new ArrayList<>();
+    // 开始播放的耗时统计
+    private PlayLatencyTracker mPlayLatencyTracker;
 
 
     /**
@@ -127,18 +188,133 @@ public class MusicPlaybackManager implements Playback.PlaybackCallback {
                 }
                 // 其他状态，则播放该音频
                 else {
-                    mMusicPlayback.play(mMusicQueue.getMusicSource(toPlayMediaId));
+                    playMedia(toPlayMediaId);
                 }
             }
             // 播放该音频
             else {
-                mMusicPlayback.play(mMusicQueue.getMusicSource(toPlayMediaId));
+                playMedia(toPlayMediaId);
             }
             // 当前播放的音频
             mPlayingMediaId = currentMusic.getDescription().getMediaId();
         }
     }
 
+    /**
+     * 设置是否无缝播放
+     *
+     * @param enabled
+     */
+    public void setGaplessEnabled(boolean enabled) {
+        mGaplessEnabled = enabled;
+        updateNextSource();
+    }
+
+    /**
+     * 设置预加载音频开头部分的类
+     *
+     * @param prefetcher
+     */
+    public void setTrackHeadPrefetcher(TrackHeadPrefetcher prefetcher) {
+        mTrackHeadPrefetcher = prefetcher;
+    }
+
+    /**
+     * 设置开始播放的耗时统计
+     *
+     * @param tracker
+     */
+    public void setPlayLatencyTracker(PlayLatencyTracker tracker) {
+        mPlayLatencyTracker = tracker;
+    }
+
+    /**
+     * 开始处理播放请求
+     *
+     * @param extras 客户端的参数，包含 KEY_MUSIC_REQUEST_TIME
+     */
+    private void beginPlayRequest(Bundle extras) {
+        if (mPlayLatencyTracker != null) {
+            mPlayLatencyTracker.onRequest(extras != null ? extras.getLong(KEY_MUSIC_REQUEST_TIME) : 0);
+        }
+    }
+
+    /**
+     * 播放请求处理完毕
+     */
+    private void endPlayRequest() {
+        if (mPlayLatencyTracker != null) {
+            mPlayLatencyTracker.endRequest();
+        }
+    }
+
+    /**
+     * 让播放器预加载队列中的下一首音频，并预加载后面几首的开头部分
+     * <p>
+     * Called whenever the answer to "what plays next" may have changed: playback started,
+     * the queue was edited, shuffle or repeat changed. Cheap when nothing changed, since the
+     * playback ignores a source it already holds. Repeat-one keeps its seek-to-start path.
+     */
+    private void updateNextSource() {
+        int state = mMusicPlayback.getState();
+        boolean active = state == PlaybackStateCompat.STATE_PLAYING
+                || state == PlaybackStateCompat.STATE_PAUSED
+                || state == PlaybackStateCompat.STATE_BUFFERING;
+        String nextMediaId = null;
+        if (active && mGaplessEnabled
+                && mMusicQueue.getRepeatMode() != PlaybackStateCompat.REPEAT_MODE_ONE) {
+            nextMediaId = mMusicQueue.peekNextMediaId();
+        }
+        mNextMediaId = nextMediaId;
+        mMusicPlayback.setNextSource(nextMediaId == null ? null : mMusicQueue.getMusicSource(nextMediaId));
+        // 预加载后面几首的开头部分，跳到这些音频时不需要等待网络
+        if (active && mTrackHeadPrefetcher != null) {
+            List<String> mediaIds = mMusicQueue.peekNextMediaIds(TrackHeadPrefetcher.PREFETCH_COUNT);
+            if (!mediaIds.equals(mPrefetchMediaIds)) {
+                mPrefetchMediaIds = mediaIds;
+                List<String> sources = new ArrayList<>(mediaIds.size());
+                for (String mediaId : mediaIds) {
+                    sources.add(mMusicQueue.getMusicSource(mediaId));
+                }
+                mTrackHeadPrefetcher.prefetch(sources);
+            }
+        }
+    }
+
+    /**
+     * 播放对应mediaId的音频，从快照恢复的音频从上次的位置继续播放
+     *
+     * @param mediaId
+     */
+    private void playMedia(String mediaId) {
+        long position = mediaId.equals(mResumeMediaId) ? mResumePosition : 0;
+        mResumeMediaId = null;
+        mMusicPlayback.play(mMusicQueue.getMusicSource(mediaId), position);
+    }
+
+    /**
+     * 从快照恢复播放队列，恢复后处于停止状态，播放时从上次的位置继续
+     *
+     * @param data
+     */
+    public void restoreMusicQueue(QueueSnapshot.Data data) {
+        if (data == null || data.queue == null || data.queue.isEmpty()) {
+            return;
+        }
+        // 设置播放队列
+        mMusicQueue.setNewMediaMetadatas(data.title, data.queue, data.index);
+        // 记录恢复的播放位置
+        MediaSessionCompat.QueueItem currentMusic = mMusicQueue.getCurrentQueueItem();
+        if (currentMusic != null) {
+            mResumeMediaId = currentMusic.getDescription().getMediaId();
+            mResumePosition = data.position;
+            mMusicQueue.saveCurrentPosition(data.position);
+        }
+        mMusicPlayback.setState(PlaybackStateCompat.STATE_STOPPED);
+        // 回调播放状态
+        callbackServicePlaybackState(null);
+    }
+
     /**
      * 暂停
      */
@@ -185,6 +361,8 @@ public class MusicPlaybackManager implements Playback.PlaybackCallback {
         int index = extras.getInt(KEY_MUSIC_QUEUE_PLAY_INDEX, -1);
         // 回调 保存播放记录
         callbackClient2SavePlayRecord();
+        // 缓存当前播放队列
+        mMusicQueue.cacheCurrentQueue(getCurrentPosition());
         // 设置播放队列
         mMusicQueue.setNewMediaMetadatas(title, list, index);
         // 播放音频
@@ -193,6 +371,40 @@ public class MusicPlaybackManager implements Playback.PlaybackCallback {
         }
     }
 
+    /**
+     * 切换到缓存的播放队列并播放，不需要重新传输队列数据
+     * <p>
+     * The current queue is cached in turn, so the client can flip between named queues; each
+     * one resumes at its own index and position.
+     *
+     * @param extras
+     */
+    private void switchMusicQueue(Bundle extras) {
+        if (extras == null) {
+            return;
+        }
+        // 标题
+        String title = extras.getString(KEY_MUSIC_QUEUE_TITLE);
+        if (!mMusicQueue.hasCachedQueue(title)) {
+            return;
+        }
+        // 回调 保存播放记录
+        callbackClient2SavePlayRecord();
+        // 缓存当前播放队列
+        mMusicQueue.cacheCurrentQueue(getCurrentPosition());
+        // 切换播放队列
+        long position = mMusicQueue.switchToCachedQueue(title);
+        // 从该队列上次的位置继续播放
+        MediaSessionCompat.QueueItem currentMusic = mMusicQueue.getCurrentQueueItem();
+        if (currentMusic == null) {
+            return;
+        }
+        mResumeMediaId = currentMusic.getDescription().getMediaId();
+        mResumePosition = position;
+        mPlayingMediaId = "";
+        handlePlayRequest();
+    }
+
     /**
      * 更新播放队列
      *
@@ -243,6 +455,141 @@ public class MusicPlaybackManager implements Playback.PlaybackCallback {
     }
 
 
+    /**
+     * 播放搜索到的音频，例如语音搜索
+     * <p>
+     * The first hit in the current queue wins; otherwise the first hit in a cached named
+     * queue, which is switched to. An empty query just resumes playback, as the
+     * ACTION_PLAY_FROM_SEARCH contract asks.
+     *
+     * @param query
+     * @param extras 可能包含 MediaStore.EXTRA_MEDIA_TITLE/ARTIST/ALBUM/GENRE
+     */
+    private void playFromSearch(String query, Bundle extras) {
+        StringBuilder text = new StringBuilder(query == null ? "" : query);
+        if (extras != null) {
+            for (String key : SEARCH_EXTRA_KEYS) {
+                String value = extras.getString(key);
+                if (value != null && text.indexOf(value) < 0) {
+                    text.append(' ').append(value);
+                }
+            }
+        }
+        // 空的查询：继续播放
+        if (text.toString().trim().isEmpty()) {
+            handlePlayRequest();
+            return;
+        }
+        List<String> results = mMusicQueue.search(text.toString(), SEARCH_LIMIT);
+        // 当前播放队列中的音频
+        for (String mediaId : results) {
+            if (mMusicQueue.getState().indexOf(mediaId) >= 0) {
+                callbackClient2SavePlayRecord();
+                mMusicQueue.setCurrentQueueItem(mediaId);
+                handlePlayRequest();
+                return;
+            }
+        }
+        // 缓存队列中的音频
+        for (String mediaId : results) {
+            if (playFromCachedQueue(mediaId)) {
+                return;
+            }
+        }
+        // 没有搜索结果
+        callbackServicePlaybackState("No music found for: " + text);
+    }
+
+    /**
+     * 切换到包含mediaId的缓存队列并播放该音频
+     *
+     * @param mediaId
+     * @return 没有缓存队列包含该音频时返回false
+     */
+    private boolean playFromCachedQueue(String mediaId) {
+        String title = mMusicQueue.findCachedQueue(mediaId);
+        if (title == null) {
+            return false;
+        }
+        callbackClient2SavePlayRecord();
+        mMusicQueue.cacheCurrentQueue(getCurrentPosition());
+        mMusicQueue.switchToCachedQueue(title);
+        mMusicQueue.setCurrentQueueItem(mediaId);
+        handlePlayRequest();
+        return true;
+    }
+
+    /**
+     * 增量修改播放队列：追加、插入、移除、移动
+     * <p>
+     * Only the delta travels over binder; {@link MusicQueue} is changed in place and keeps
+     * pointing at the same track. Chunks of a list sent with {@link #KEY_MUSIC_QUEUE_HAS_MORE}
+     * are inserted as one batch that is published when the last chunk arrives.
+     *
+     * @param action
+     * @param extras
+     */
+    private void editMusicQueue(String action, Bundle extras) {
+        if (extras == null) {
+            return;
+        }
+        extras.setClassLoader(MediaDescriptionCompat.class.getClassLoader());
+        // 起始位置
+        int position = extras.getInt(KEY_MUSIC_QUEUE_POSITION, -1);
+        // 追加、插入
+        if (CUSTOM_ACTION_MUSIC_QUEUE_APPEND.equals(action)
+                || CUSTOM_ACTION_MUSIC_QUEUE_INSERT.equals(action)) {
+            boolean hasMore = extras.getBoolean(KEY_MUSIC_QUEUE_HAS_MORE);
+            if (hasMore) {
+                mMusicQueue.beginBatchEdit();
+            }
+            List<MediaMetadataCompat> list = extras.getParcelableArrayList(KEY_MUSIC_QUEUE);
+            if (CUSTOM_ACTION_MUSIC_QUEUE_APPEND.equals(action)) {
+                mMusicQueue.appendMediaMetadatas(list);
+            } else {
+                mMusicQueue.insertMediaMetadatas(position, list);
+            }
+            if (!hasMore) {
+                mMusicQueue.endBatchEdit();
+            }
+        }
+        // 移除
+        else if (CUSTOM_ACTION_MUSIC_QUEUE_REMOVE.equals(action)) {
+            int count = extras.getInt(KEY_MUSIC_QUEUE_COUNT, 1);
+            if (mMusicQueue.removeQueueRange(position, count) > 0
+                    && !mPlayingMediaId.isEmpty()
+                    && mMusicQueue.getState().indexOf(mPlayingMediaId) < 0) {
+                onPlayingItemRemoved();
+            }
+        }
+        // 移动
+        else if (CUSTOM_ACTION_MUSIC_QUEUE_MOVE.equals(action)) {
+            int toPosition = extras.getInt(KEY_MUSIC_QUEUE_TO_POSITION, -1);
+            mMusicQueue.moveQueueItem(position, toPosition);
+        }
+    }
+
+
+    /**
+     * 正在播放的音频被移出队列：播放中则改为播放顶替它的音频，否则停止
+     * <p>
+     * {@link MusicQueue#removeQueueRange} has already moved the current index to the item that
+     * took its place, but the player still holds the removed track and would skip that item
+     * when the removed track completes.
+     */
+    private void onPlayingItemRemoved() {
+        int state = mMusicPlayback.getState();
+        boolean playing = state == PlaybackStateCompat.STATE_PLAYING
+                || state == PlaybackStateCompat.STATE_BUFFERING;
+        mPlayingMediaId = "";
+        if (playing && mMusicQueue.getCurrentQueueItem() != null) {
+            handlePlayRequest();
+        } else {
+            handleStopRequest(null);
+        }
+    }
+
+
     // #########################################################################################
 
 
@@ -273,17 +620,28 @@ public class MusicPlaybackManager implements Playback.PlaybackCallback {
 
         @Override
         public void onSeekTo(long position) {
-            mMusicPlayback.seekTo((int) position);
+            mMusicPlayback.seekTo(position);
         }
 
         @Override
         public void onPlayFromMediaId(String mediaId, Bundle extras) {
+            beginPlayRequest(extras);
             //
             callbackClient2SavePlayRecord();
             //
             if (mMusicQueue.setCurrentQueueItem(mediaId)) {
                 handlePlayRequest();
             }
+            // 搜索结果可能来自缓存队列
+            else {
+                playFromCachedQueue(mediaId);
+            }
+            endPlayRequest();
+        }
+
+        @Override
+        public void onPlayFromSearch(String query, Bundle extras) {
+            playFromSearch(query, extras);
         }
 
         @Override
@@ -316,20 +674,74 @@ public class MusicPlaybackManager implements Playback.PlaybackCallback {
             }
         }
 
+        @Override
+        public void onSetShuffleMode(int shuffleMode) {
+            // 随机播放
+            mMusicQueue.setShuffleMode(shuffleMode != PlaybackStateCompat.SHUFFLE_MODE_NONE);
+            mServiceCallback.onShuffleModeChanged(shuffleMode);
+            updateNextSource();
+        }
+
+        @Override
+        public void onSetRepeatMode(int repeatMode) {
+            // 循环播放
+            mMusicQueue.setRepeatMode(repeatMode);
+            mServiceCallback.onRepeatModeChanged(repeatMode);
+            updateNextSource();
+        }
+
+        @Override
+        public void onCommand(String command, Bundle extras, ResultReceiver cb) {
+            // 开始播放的耗时统计
+            if (CUSTOM_ACTION_MUSIC_PLAY_LATENCY.equals(command)) {
+                if (cb != null) {
+                    cb.send(0, mPlayLatencyTracker != null ? mPlayLatencyTracker.toBundle() : new Bundle());
+                }
+            }
+        }
+
         @Override
         public void onCustomAction(@NonNull String action, Bundle extras) {
+            // 快速seek，拖动过程中频繁调用，不影响队列
+            if (CUSTOM_ACTION_MUSIC_SCRUB.equals(action)) {
+                if (extras != null) {
+                    mMusicPlayback.scrubTo(extras.getLong(KEY_MUSIC_SEEK_POSITION));
+                }
+                return;
+            }
             // 更新播放队列
             if (CUSTOM_ACTION_MUSIC_UPDATE_QUNEN.equals(action)) {
                 updateMusicQueue(extras);
             }
             // 播放音频列表
             else if (CUSTOM_ACTION_MUSIC_PLAY_QUNEN.equals(action)) {
+                beginPlayRequest(extras);
                 playMusicQueue(extras);
+                endPlayRequest();
             }
             // 重置播放队列
             else if (CUSTOM_ACTION_MUSIC_QUEUE_RESET.equals(action)) {
                 handleResetPlayerQueue(extras);
             }
+            // 增量修改播放队列
+            else if (CUSTOM_ACTION_MUSIC_QUEUE_APPEND.equals(action)
+                    || CUSTOM_ACTION_MUSIC_QUEUE_INSERT.equals(action)
+                    || CUSTOM_ACTION_MUSIC_QUEUE_REMOVE.equals(action)
+                    || CUSTOM_ACTION_MUSIC_QUEUE_MOVE.equals(action)) {
+                editMusicQueue(action, extras);
+            }
+            // 切换到缓存的播放队列
+            else if (CUSTOM_ACTION_MUSIC_QUEUE_SWITCH.equals(action)) {
+                switchMusicQueue(extras);
+            }
+            // 交叉淡入淡出，需要预加载下一首
+            else if (CUSTOM_ACTION_MUSIC_CROSSFADE.equals(action)) {
+                if (extras != null) {
+                    mMusicPlayback.setCrossfadeDuration(extras.getLong(KEY_MUSIC_CROSSFADE_DURATION));
+                }
+            }
+            // 队列变化后，下一首可能不同
+            updateNextSource();
         }
     }
 
@@ -364,7 +776,15 @@ public class MusicPlaybackManager implements Playback.PlaybackCallback {
     public void onCompletion() {
         // 保存播放记录
         callbackClient2SavePlayRecord();
+        // 单曲循环：不释放MediaPlayer，直接从头播放
+        if (mMusicQueue.getRepeatMode() == PlaybackStateCompat.REPEAT_MODE_ONE
+                && mMusicQueue.getCurrentQueueItem() != null) {
+            mMusicPlayback.seekTo(0);
+            mMusicPlayback.start();
+            return;
+        }
         // The media player finished playing the current song, so we go ahead and start the next.
+        // 列表循环时 MusicQueue 会回绕到队列开头
         if (mMusicQueue.skipQueuePosition(1)) {
             handlePlayRequest();
         } else {
@@ -374,6 +794,38 @@ public class MusicPlaybackManager implements Playback.PlaybackCallback {
         }
     }
 
+    /**
+     * Implementation of the Playback.PlaybackCallback interface
+     * <p>
+     * 已无缝切换到预加载的下一首，只需要移动队列的index
+     */
+    @Override
+    public void onNextStarted() {
+        // 保存上一首的播放记录，此时已播放完成
+        MediaMetadataCompat metadata = mMusicQueue.getCurrentMetadata();
+        if (metadata != null) {
+            callbackClient2SavePlayRecord(metadata.getLong(MediaMetadataCompat.METADATA_KEY_DURATION));
+        }
+        String nextMediaId = mNextMediaId;
+        mNextMediaId = null;
+        // 队列中已没有下一首
+        if (nextMediaId == null || !mMusicQueue.skipQueuePosition(1)) {
+            handleStopRequest(null);
+        }
+        // 切换到的正是队列中的下一首
+        else if (nextMediaId.equals(mMusicQueue.getState().getCurrentMediaId())) {
+            mPlayingMediaId = nextMediaId;
+            mServiceCallback.onPlaybackStart();
+            callbackServicePlaybackState(null);
+            updateNextSource();
+        }
+        // 预加载的不是队列中的下一首，按原来的方式播放
+        else {
+            mPlayingMediaId = "";
+            handlePlayRequest();
+        }
+    }
+
     /**
      * Implementation of the Playback.PlaybackCallback interface
      * <p>
@@ -384,9 +836,15 @@ public class MusicPlaybackManager implements Playback.PlaybackCallback {
     @Override
     public void onPlaybackStatusChanged(int state) {
         callbackServicePlaybackState(null);
+        // 开始播放后预加载下一首
+        if (state == PlaybackStateCompat.STATE_PLAYING) {
+            updateNextSource();
+        }
         //
         if (state == PlaybackStateCompat.STATE_PAUSED || state == PlaybackStateCompat.STATE_STOPPED) {
             callbackClient2SavePlayRecord();
+            // 保存播放位置到快照
+            mMusicQueue.saveCurrentPosition(getCurrentPosition());
         }
 
     }
@@ -421,6 +879,10 @@ public class MusicPlaybackManager implements Playback.PlaybackCallback {
         void onPlaybackStop();
 
         void onPlaybackStateUpdated(PlaybackStateCompat newState);
+
+        void onShuffleModeChanged(int shuffleMode);
+
+        void onRepeatModeChanged(int repeatMode);
     }
 
 
@@ -432,13 +894,23 @@ public class MusicPlaybackManager implements Playback.PlaybackCallback {
      * 1、播放新音频时，保存上一音频的播放记录
      */
     public void callbackClient2SavePlayRecord() {
+        if (mMusicPlayback != null) {
+            callbackClient2SavePlayRecord(mMusicPlayback.getCurrentStreamPosition());
+        }
+    }
+
+    /**
+     * 回调到Client  保存播放记录
+     *
+     * @param position 当前音频的播放位置
+     */
+    private void callbackClient2SavePlayRecord(long position) {
         // 回调到client端 保存当前播放记录
         if (mMusicPlayback != null && mMusicPlayback.isConnected() && MusicManager.getInstance().getRecordListener() != null) {
             MediaMetadataCompat mediaMetadataCompat = mMusicQueue.getCurrentMetadata();
             if (mediaMetadataCompat == null) {
                 return;
             }
-            long position = mMusicPlayback.getCurrentStreamPosition();
             // 回调到client端 保存当前播放记录
             MusicManager.getInstance().getRecordListener().onSaveRecord(mMusicQueue.getCurrentMetadata(), position);
         }
@@ -459,7 +931,7 @@ public class MusicPlaybackManager implements Playback.PlaybackCallback {
         long position = PlaybackStateCompat.PLAYBACK_POSITION_UNKNOWN;
         // 当前播放到的位置
         if (mMusicPlayback != null && mMusicPlayback.isConnected()) {
-            position = mMusicPlayback.getCurrentStreamPosition();
+            position = getCurrentPosition();
         }
         // 当前播放状态
         int state = mMusicPlayback.getState();
@@ -498,6 +970,18 @@ public class MusicPlaybackManager implements Playback.PlaybackCallback {
         }
     }
 
+    /**
+     * 当前播放位置，从快照恢复且尚未播放时返回恢复的位置
+     *
+     * @return
+     */
+    private long getCurrentPosition() {
+        if (mResumeMediaId != null) {
+            return mResumePosition;
+        }
+        return mMusicPlayback.getCurrentStreamPosition();
+    }
+
     // ############################################################################################
 
 
@@ -513,7 +997,9 @@ public class MusicPlaybackManager implements Playback.PlaybackCallback {
                         PlaybackStateCompat.ACTION_PLAY_FROM_MEDIA_ID |
                         PlaybackStateCompat.ACTION_PLAY_FROM_SEARCH |
                         PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS |
-                        PlaybackStateCompat.ACTION_SKIP_TO_NEXT;
+                        PlaybackStateCompat.ACTION_SKIP_TO_NEXT |
+                        PlaybackStateCompat.ACTION_SET_SHUFFLE_MODE |
+                        PlaybackStateCompat.ACTION_SET_REPEAT_MODE;
 
         // 这五行代码根本就没有作用
         if (mMusicPlayback.isPlaying()) {
@@ -20,19 +20,27 @@ import android.content.res.Resources;
 import android.support.annotation.NonNull;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
 
 import com.mediabrowser.xiaxl.client.utils.MusicMetadataConstant;
-import com.mediabrowser.xiaxl.service.utils.QueueUtil;
+import com.mediabrowser.xiaxl.service.cache.AudioDiskCache;
 
+import java.io.File;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 /**
  * Simple data provider for queues. Keeps track of a current queue and a current index in the
  * queue. Also provides methods to set the current queue based on common queries, relying on a
  * given MusicProvider to provide the actual media metadata.
+ * <p>
+ * The queue, its lookup maps and the current index live in one immutable {@link State} that
+ * is swapped through a single volatile reference. Changes are made by the session callback
+ * thread only, copy-on-write; binder threads, the notification and playback callbacks can read
+ * {@link #getState()} (or any getter) without locks and never see a half-applied change.
  */
 public class MusicQueue {
     private static final String TAG = "MusicQueue";
@@ -48,24 +56,74 @@ public class MusicQueue {
 
 
     /**
-     * 上次数据
+     * 播放数据
      */
-    // 上次的播放队列
-    private List<MediaSessionCompat.QueueItem> mLastQueue;
-    // 上次的数据列表
-    private LinkedHashMap<String, MediaMetadataCompat> mLastMusicListById;
-    // 上次播放的index
-    private int mLastIndex;
+    // 当前播放数据（不可变，整体替换）
+    private volatile State mState = State.EMPTY;
+    // 上次播放数据
+    private volatile State mLastState;
+    // 下一个新增QueueItem使用的queueId，保证增量修改后queueId依然唯一
+    private long mNextQueueId;
 
     /**
-     * 当前播放数据
+     * 播放队列窗口
      */
-    // 当前播放队列（同步队列）
-    private List<MediaSessionCompat.QueueItem> mPlayingQueue;
-    // 当前数据列表
-    private LinkedHashMap<String, MediaMetadataCompat> mMusicListById;
-    // 当前播放的index
-    private int mCurrentIndex;
+    // 对外发布的窗口中，当前index之前的数量，小于等于0表示发布整个队列
+    private int mWindowBefore;
+    // 对外发布的窗口中，当前index之后的数量
+    private int mWindowAfter;
+    // 上次发布窗口的范围 [mWindowStart, mWindowEnd)
+    private int mWindowStart;
+    private int mWindowEnd;
+
+    /**
+     * 随机播放
+     */
+    // 是否随机播放
+    private boolean mShuffleEnabled;
+    // 随机播放顺序
+    private final ShuffleOrder mShuffleOrder = new ShuffleOrder(new Random());
+
+    /**
+     * 批量修改
+     */
+    // 批量插入中，随机顺序、快照和队列回调推迟到 endBatchEdit
+    private boolean mBatchEditing;
+    // 批量插入期间队列是否有变化
+    private boolean mBatchChanged;
+
+    /**
+     * 循环播放
+     */
+    // 循环模式 PlaybackStateCompat.REPEAT_MODE_*
+    private int mRepeatMode = PlaybackStateCompat.REPEAT_MODE_NONE;
+
+    // 音频的磁盘缓存
+    private AudioDiskCache mAudioDiskCache;
+
+    // 播放队列的磁盘快照
+    private QueueSnapshot mQueueSnapshot;
+    // 快照中当前音频的播放位置
+    private long mSnapshotPosition;
+
+    // 搜索索引，包含加入过播放队列的所有音频
+    private final SearchIndex mSearchIndex = new SearchIndex();
+    // 拼音搜索索引
+    private final PinyinIndex mPinyinIndex;
+
+    /**
+     * 缓存的命名播放队列
+     */
+    // 最多缓存的队列数量（不含当前队列）
+    private static final int MAX_CACHED_QUEUES = 4;
+    // 队列名 -> 缓存的队列，按访问顺序排列，超出数量时移除最久未使用的
+    private final LinkedHashMap<String, CachedQueue> mCachedQueues =
+            new LinkedHashMap<String, CachedQueue>(MAX_CACHED_QUEUES + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedQueue> eldest) {
+                    return size() > MAX_CACHED_QUEUES;
+                }
+            };
 
 
     /**
@@ -77,21 +135,7 @@ public class MusicQueue {
     public MusicQueue(@NonNull Resources resources, @NonNull MetadataUpdateListener listener) {
         this.mMetadataUpdateListener = listener;
         this.mResources = resources;
-        /**
-         * 当前
-         */
-        // 当前播放队列（同步队列） MediaSessionCompat.QueueItem
-        mPlayingQueue = Collections.synchronizedList(new ArrayList<MediaSessionCompat.QueueItem>());
-        // 当前数据列表
-        mMusicListById = new LinkedHashMap<>();
-        // 当前播放的index
-        mCurrentIndex = 0;
-        /**
-         * 上次
-         */
-        // 上次的数据列表
-        mLastMusicListById = new LinkedHashMap<>();
-
+        this.mPinyinIndex = new PinyinIndex(resources);
     }
 
 
@@ -103,42 +147,180 @@ public class MusicQueue {
      * @param index
      */
     public void setNewMediaMetadatas(String title, List<MediaMetadataCompat> list, int index) {
-        // 暂存上次的播放队列
-        mLastMusicListById.clear();
-        mLastMusicListById.putAll(mMusicListById);
-        // 清空队列
-        mMusicListById.clear();
+        // 去重，保持原有顺序
+        LinkedHashMap<String, MediaMetadataCompat> musicListById = new LinkedHashMap<>();
         for (MediaMetadataCompat item : list) {
             String musicId = item.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID);
-            mMusicListById.put(musicId, item);
+            musicListById.put(musicId, item);
+        }
+        // 转为紧凑存储
+        QueueStore store = QueueStore.of(new ArrayList<>(musicListById.values()), 0);
+        mNextQueueId = store.size();
+        // 新的音频加入搜索索引
+        mSearchIndex.add(store, 0, store.size());
+        mPinyinIndex.add(store, 0, store.size());
+        // 判断当前播放的index是否存在
+        if (index < 0 || index >= store.size()) {
+            index = 0;
+        }
+        // 同名的缓存队列已过期
+        if (title != null) {
+            mCachedQueues.remove(title);
         }
-        // MediaMetadataCompat 转化为 MediaSessionCompat.QueueItem
-        List<MediaSessionCompat.QueueItem> queueItemList = QueueUtil.convertToQueue(mMusicListById.values());
         // 设置当前播放队列
-        setNewQueue(title, queueItemList, index);
+        setNewState(new State(title, store, index));
+        // 保存快照
+        saveQueueSnapshot();
     }
 
+    /**
+     * 缓存当前播放队列，之后可以通过 {@link #switchToCachedQueue(String)} 切换回来
+     * <p>
+     * Caching is just keeping a reference to the immutable {@link State}; nothing is copied.
+     * Queues without a title are not cached.
+     *
+     * @param position 当前音频的播放位置，切换回来时从这里继续
+     */
+    public void cacheCurrentQueue(long position) {
+        State state = mState;
+        if (state.mTitle == null || state.size() == 0) {
+            return;
+        }
+        mCachedQueues.put(state.mTitle, new CachedQueue(state, mNextQueueId, position));
+    }
 
     /**
-     * 设置当前播放队列
+     * 是否缓存了对应名字的播放队列
      *
      * @param title
-     * @param newQueue
-     * @param index
+     * @return
      */
-    private void setNewQueue(String title, List<MediaSessionCompat.QueueItem> newQueue, int index) {
-        // 保存上次播放记录
-        mLastQueue = mPlayingQueue;
-        // 当前播放记录
-        mPlayingQueue = newQueue;
-        // 判断当前播放的index是否存在
-        if (!QueueUtil.isIndexPlayable(index, mPlayingQueue)) {
-            index = 0;
+    public boolean hasCachedQueue(String title) {
+        return title != null && mCachedQueues.containsKey(title);
+    }
+
+    /**
+     * 切换到缓存的播放队列，当前播放队列不会自动缓存
+     *
+     * @param title
+     * @return 切换后当前音频的播放位置，没有缓存时返回-1
+     */
+    public long switchToCachedQueue(String title) {
+        CachedQueue cached = title == null ? null : mCachedQueues.remove(title);
+        if (cached == null) {
+            return -1;
+        }
+        mNextQueueId = cached.mNextQueueId;
+        // 设置当前播放队列
+        setNewState(cached.mState);
+        // 保存快照
+        mSnapshotPosition = cached.mPosition;
+        saveQueueSnapshot();
+        return cached.mPosition;
+    }
+
+    /**
+     * 设置播放队列的磁盘快照，之后队列的变化都会写入快照
+     *
+     * @param snapshot
+     */
+    public void setQueueSnapshot(QueueSnapshot snapshot) {
+        this.mQueueSnapshot = snapshot;
+    }
+
+    /**
+     * 保存当前播放位置到快照
+     *
+     * @param position
+     */
+    public void saveCurrentPosition(long position) {
+        mSnapshotPosition = position;
+        if (mQueueSnapshot != null) {
+            mQueueSnapshot.saveState(mState.mCurrentIndex, position);
         }
+    }
+
+    /**
+     * 当前队列变化后保存快照
+     */
+    private void saveQueueSnapshot() {
+        if (mQueueSnapshot != null) {
+            State state = mState;
+            mQueueSnapshot.saveQueue(state.mTitle, state.mStore, state.mCurrentIndex,
+                    mSnapshotPosition);
+        }
+    }
+
+
+    /**
+     * 设置当前播放队列
+     *
+     * @param state
+     */
+    private void setNewState(State state) {
+        // 新的队列会整体发布，未结束的批量插入不再需要
+        mBatchEditing = false;
+        mBatchChanged = false;
         // 当前播放队列的index
-        setCurrentQueueIndex(index);
+        setCurrentState(state, false);
+        // 重新生成随机播放顺序
+        if (mShuffleEnabled) {
+            reshuffle();
+        }
         // 回调 播放队列发生变化
-        mMetadataUpdateListener.onQueueUpdated(title, newQueue);
+        publishQueue();
+    }
+
+    /**
+     * 设置对外发布的播放队列窗口
+     * <p>
+     * Very large queues overflow the binder transaction buffer when handed to
+     * MediaSession#setQueue. With a window set, only the items around the current index are
+     * published, and the window is re-centered as the index moves. MusicQueue still owns the
+     * full list; published items keep their queueIds so onSkipToQueueItem keeps working.
+     *
+     * @param before 当前index之前发布的数量，小于等于0表示发布整个队列
+     * @param after  当前index之后发布的数量
+     */
+    public void setQueueWindow(int before, int after) {
+        mWindowBefore = before;
+        mWindowAfter = Math.max(0, after);
+        mWindowStart = 0;
+        mWindowEnd = 0;
+    }
+
+    /**
+     * 回调 播放队列发生变化，开启窗口时只回调当前index附近的数据
+     */
+    private void publishQueue() {
+        State state = mState;
+        int size = state.size();
+        if (mWindowBefore <= 0) {
+            mMetadataUpdateListener.onQueueUpdated(state.mTitle, state.mStore.buildQueueItems(0, size));
+            return;
+        }
+        int index = Math.max(0, Math.min(state.mCurrentIndex, size - 1));
+        mWindowStart = Math.max(0, index - mWindowBefore);
+        mWindowEnd = Math.min(size, index + mWindowAfter + 1);
+        // 只为窗口内的数据创建 QueueItem
+        List<MediaSessionCompat.QueueItem> window = state.mStore.buildQueueItems(mWindowStart, mWindowEnd);
+        mMetadataUpdateListener.onQueueUpdated(state.mTitle, window);
+    }
+
+    /**
+     * 当前index是否还在已发布窗口的中间区域
+     * <p>
+     * Half of the smaller side is kept as a margin, so the window is shifted in steps instead
+     * of being republished on every skip.
+     *
+     * @param index
+     * @return
+     */
+    private boolean isInsideQueueWindow(int index) {
+        int margin = Math.min(mWindowBefore, mWindowAfter) / 2;
+        boolean nearStart = mWindowStart > 0 && index < mWindowStart + margin;
+        boolean nearEnd = mWindowEnd < mState.size() && index >= mWindowEnd - margin;
+        return index >= mWindowStart && index < mWindowEnd && !nearStart && !nearEnd;
     }
 
     /**
@@ -148,29 +330,57 @@ public class MusicQueue {
      * @return
      */
     private boolean setCurrentQueueIndex(int index) {
+        State state = mState;
         // 如果当前index存在
-        if (QueueUtil.isIndexPlayable(index, mPlayingQueue)) {
-            // 保存上次播放index
-            mLastIndex = mCurrentIndex;
-            // 设置当前播放的index
-            mCurrentIndex = index;
-            // 返回上次播放的Item
-            MediaSessionCompat.QueueItem lastMusic = getLastQueueItem();
-            // 回调上次的播放数据
-            if (lastMusic != null) {
-                final String musicId = lastMusic.getDescription().getMediaId();
-                MediaMetadataCompat metadata = mLastMusicListById.get(musicId);
-                mMetadataUpdateListener.onBeforeMetadataChanged(metadata);
-            }
-            // 清空上次播放数据
-            mLastMusicListById.clear();
-            mLastQueue = null;
-            mLastIndex = -1;
-            // 回调当前播放数据
-            callBackMetadaChanged();
-            return true;
+        if (!state.isIndexPlayable(index)) {
+            return false;
+        }
+        setCurrentState(state.withCurrentIndex(index), true);
+        return true;
+    }
+
+    /**
+     * 发布新的播放数据，并回调当前播放数据
+     *
+     * @param state
+     * @param updateWindow index移出已发布窗口时，是否重新发布窗口
+     */
+    private void setCurrentState(State state, boolean updateWindow) {
+        // 保存上次播放数据
+        State lastState = mState;
+        mLastState = lastState;
+        // 发布当前播放数据
+        mState = state;
+        // 同步随机播放位置
+        int index = state.mCurrentIndex;
+        if (mShuffleEnabled && state.isIndexPlayable(index)) {
+            mShuffleOrder.setCurrent(state.mStore.getQueueId(index));
+        }
+        // 回调上次的播放数据
+        MediaMetadataCompat lastMetadata = lastState.getCurrentMetadata();
+        if (lastMetadata != null) {
+            mMetadataUpdateListener.onBeforeMetadataChanged(lastMetadata);
+        }
+        // 保存快照
+        mSnapshotPosition = 0;
+        if (mQueueSnapshot != null) {
+            mQueueSnapshot.saveState(index, 0);
+        }
+        // 回调当前播放数据
+        callBackMetadaChanged();
+        // 窗口跟随当前index移动
+        if (updateWindow && mWindowBefore > 0 && !isInsideQueueWindow(index)) {
+            publishQueue();
         }
-        return false;
+    }
+
+    /**
+     * 当前的播放数据，可在任意线程读取
+     *
+     * @return
+     */
+    public State getState() {
+        return mState;
     }
 
     /**
@@ -179,13 +389,7 @@ public class MusicQueue {
      * @return
      */
     public MediaMetadataCompat getCurrentMetadata() {
-        MediaSessionCompat.QueueItem currentQueueItem = getCurrentQueueItem();
-        if (currentQueueItem == null)
-            return null;
-        else {
-            final String musicId = currentQueueItem.getDescription().getMediaId();
-            return mMusicListById.get(musicId);
-        }
+        return mState.getCurrentMetadata();
     }
 
     /**
@@ -196,13 +400,35 @@ public class MusicQueue {
      * 获取网络播放地址
      */
     public String getMusicSource(String musicId) {
-        // 音频数据
-        MediaMetadataCompat track = mMusicListById.get(musicId);
-        if (track == null) {
-            return null;
-        }
         // 获取网络播放地址
-        return track.getString(MusicMetadataConstant.CUSTOM_METADATA_TRACK_SOURCE);
+        String url = getMusicUrl(musicId);
+        // 已缓存到本地
+        if (mAudioDiskCache != null) {
+            File file = mAudioDiskCache.get(url);
+            if (file != null) {
+                return file.getPath();
+            }
+        }
+        return url;
+    }
+
+    /**
+     * 获取网络播放地址
+     *
+     * @param musicId
+     * @return
+     */
+    public String getMusicUrl(String musicId) {
+        return mState.getString(musicId, MusicMetadataConstant.CUSTOM_METADATA_TRACK_SOURCE);
+    }
+
+    /**
+     * 设置音频的磁盘缓存，{@link #getMusicSource(String)} 优先返回本地文件
+     *
+     * @param cache
+     */
+    public void setAudioDiskCache(AudioDiskCache cache) {
+        mAudioDiskCache = cache;
     }
 
 
@@ -212,14 +438,7 @@ public class MusicQueue {
      * @return
      */
     public List<MediaMetadataCompat> getAllMediaMetadatas() {
-        if (mMusicListById == null) {
-            return Collections.emptyList();
-        }
-        List<MediaMetadataCompat> list = new ArrayList<>(mMusicListById.size());
-        for (MediaMetadataCompat metadata : mMusicListById.values()) {
-            list.add(metadata);
-        }
-        return list;
+        return mState.getAllMediaMetadatas();
     }
 
 
@@ -229,12 +448,7 @@ public class MusicQueue {
      * @return
      */
     public MediaSessionCompat.QueueItem getCurrentQueueItem() {
-        // 判断对应index的数据是否存在
-        if (!QueueUtil.isIndexPlayable(mCurrentIndex, mPlayingQueue)) {
-            return null;
-        }
-        // 根据index 取播放队列数据
-        return mPlayingQueue.get(mCurrentIndex);
+        return mState.getCurrentQueueItem();
     }
 
     /**
@@ -243,15 +457,8 @@ public class MusicQueue {
      * @return
      */
     public MediaSessionCompat.QueueItem getLastQueueItem() {
-        // 返回上次播放的Item
-        if (QueueUtil.isIndexPlayable(mLastIndex, mLastQueue)) {
-            return mLastQueue.get(mLastIndex);
-        }
-        //
-        if (QueueUtil.isIndexPlayable(mLastIndex, mPlayingQueue)) {
-            return mPlayingQueue.get(mLastIndex);
-        }
-        return null;
+        State lastState = mLastState;
+        return lastState == null ? null : lastState.getCurrentQueueItem();
     }
 
     /**
@@ -262,7 +469,10 @@ public class MusicQueue {
      */
     public boolean setCurrentQueueItem(long queueId) {
         // set the current index on queue from the queue Id:
-        int index = QueueUtil.getMusicIndexOnQueue(mPlayingQueue, queueId);
+        int index = mState.mStore.indexOfQueueId(queueId);
+        if (index < 0) {
+            return false;
+        }
         return setCurrentQueueIndex(index);
     }
 
@@ -274,7 +484,10 @@ public class MusicQueue {
      */
     public boolean setCurrentQueueItem(String mediaId) {
         // set the current index on queue from the music Id:
-        int index = QueueUtil.getMusicIndexOnQueue(mPlayingQueue, mediaId);
+        int index = mState.indexOf(mediaId);
+        if (index < 0) {
+            return false;
+        }
         return setCurrentQueueIndex(index);
     }
 
@@ -285,11 +498,330 @@ public class MusicQueue {
      * @return
      */
     public boolean skipQueuePosition(int amount) {
-        int index = mCurrentIndex + amount;
-        if (!QueueUtil.isIndexPlayable(index, mPlayingQueue)) {
+        int index = skipIndex(amount);
+        return index >= 0 && setCurrentQueueIndex(index);
+    }
+
+    /**
+     * 下一首音频的mediaId，不改变当前播放的index
+     * <p>
+     * Follows the same shuffle and repeat rules as {@code skipQueuePosition(1)}, so what is
+     * prepared ahead of time is what the queue advances to.
+     *
+     * @return 没有下一首时返回null
+     */
+    public String peekNextMediaId() {
+        State state = mState;
+        int index = skipIndex(1);
+        return state.isIndexPlayable(index) ? state.mStore.getMediaId(index) : null;
+    }
+
+    /**
+     * 接下来的count首音频的mediaId，不改变当前播放的index
+     *
+     * @param count
+     * @return 按播放顺序排列，列表循环时不会包含当前音频
+     */
+    public List<String> peekNextMediaIds(int count) {
+        State state = mState;
+        List<String> mediaIds = new ArrayList<>(count);
+        for (int amount = 1; amount <= count; amount++) {
+            int index = skipIndex(amount);
+            if (!state.isIndexPlayable(index) || index == state.mCurrentIndex) {
+                break;
+            }
+            mediaIds.add(state.mStore.getMediaId(index));
+        }
+        return mediaIds;
+    }
+
+    /**
+     * 跳过amount首后的index
+     *
+     * @return 无法跳过时返回-1
+     */
+    private int skipIndex(int amount) {
+        State state = mState;
+        // 随机播放时按随机顺序跳过
+        if (mShuffleEnabled) {
+            return mShuffleOrder.skip(state.mStore, amount, isRepeatAll());
+        }
+        int size = state.size();
+        int position = state.mCurrentIndex + amount;
+        // 列表循环时，越过队列两端后回绕
+        if (isRepeatAll() && size > 0) {
+            position = ((position % size) + size) % size;
+        }
+        if (position < 0 || position >= size) {
+            return -1;
+        }
+        return position;
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 设置循环模式
+     *
+     * @param repeatMode PlaybackStateCompat.REPEAT_MODE_*
+     */
+    public void setRepeatMode(int repeatMode) {
+        mRepeatMode = repeatMode;
+    }
+
+    /**
+     * 当前循环模式
+     *
+     * @return
+     */
+    public int getRepeatMode() {
+        return mRepeatMode;
+    }
+
+    /**
+     * 是否列表循环
+     *
+     * @return
+     */
+    private boolean isRepeatAll() {
+        return mRepeatMode == PlaybackStateCompat.REPEAT_MODE_ALL
+                || mRepeatMode == PlaybackStateCompat.REPEAT_MODE_GROUP;
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 开启或关闭随机播放，当前播放的音频保持不变
+     * <p>
+     * The queue itself is never reordered; shuffle order lives in a {@link ShuffleOrder}, so
+     * next/previous stay O(1) and queue edits only touch the edited items.
+     *
+     * @param enabled
+     */
+    public void setShuffleMode(boolean enabled) {
+        if (mShuffleEnabled == enabled) {
+            return;
+        }
+        mShuffleEnabled = enabled;
+        if (enabled) {
+            reshuffle();
+        }
+    }
+
+    /**
+     * 是否随机播放
+     *
+     * @return
+     */
+    public boolean isShuffleMode() {
+        return mShuffleEnabled;
+    }
+
+    /**
+     * 重新生成随机播放顺序，当前音频排在第一位
+     * <p>
+     * Only for turning shuffle on and for new queues; edits update the order in place.
+     */
+    private void reshuffle() {
+        State state = mState;
+        mShuffleOrder.reset(state.mStore, state.mCurrentIndex);
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 开始批量插入，之后的 {@link #insertMediaMetadatas} 只修改队列数据
+     * <p>
+     * A list sent in chunks would otherwise rewrite the snapshot and publish the whole queue
+     * once per chunk, which is quadratic in the list size. The shuffle order is still updated
+     * per chunk, since that only touches the inserted items. Starting a new queue, switching queues, or removing or moving items ends the batch.
+     */
+    public void beginBatchEdit() {
+        mBatchEditing = true;
+    }
+
+    /**
+     * 结束批量插入：保存快照、发布队列，各一次
+     */
+    public void endBatchEdit() {
+        if (!mBatchEditing) {
+            return;
+        }
+        mBatchEditing = false;
+        if (!mBatchChanged) {
+            return;
+        }
+        mBatchChanged = false;
+        saveQueueSnapshot();
+        publishQueue();
+    }
+
+    /**
+     * 在队列末尾追加音频，已在队列中的mediaId会被忽略
+     *
+     * @param list
+     * @return 实际追加的数量
+     */
+    public int appendMediaMetadatas(List<MediaMetadataCompat> list) {
+        return insertMediaMetadatas(mState.size(), list);
+    }
+
+    /**
+     * 在队列的position处插入音频，已在队列中的mediaId会被忽略
+     * <p>
+     * Only the inserted items are converted; items after the insertion point just get their
+     * index shifted, and the current index keeps pointing at the same track.
+     *
+     * @param position
+     * @param list
+     * @return 实际插入的数量
+     */
+    public int insertMediaMetadatas(int position, List<MediaMetadataCompat> list) {
+        if (list == null || list.isEmpty()) {
+            return 0;
+        }
+        State state = mState;
+        int size = state.size();
+        position = Math.max(0, Math.min(position, size));
+        // 过滤掉已存在的音频
+        Map<String, MediaMetadataCompat> addedById = new LinkedHashMap<>();
+        for (MediaMetadataCompat item : list) {
+            String musicId = item.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID);
+            if (musicId == null || state.indexOf(musicId) >= 0) {
+                continue;
+            }
+            addedById.put(musicId, item);
+        }
+        if (addedById.isEmpty()) {
+            return 0;
+        }
+        List<MediaMetadataCompat> added = new ArrayList<>(addedById.values());
+        // 只转换新增的数据
+        QueueStore store = state.mStore.insert(position, added, mNextQueueId);
+        mNextQueueId += added.size();
+        mSearchIndex.add(store, position, position + added.size());
+        mPinyinIndex.add(store, position, position + added.size());
+        // 当前播放的音频后移
+        int currentIndex = state.mCurrentIndex;
+        if (currentIndex >= position && size > 0) {
+            currentIndex += added.size();
+        }
+        mLastState = state;
+        mState = state.withStore(store, currentIndex);
+        // 新增的音频随机放到当前音频之后，空队列时整体生成
+        if (mShuffleEnabled) {
+            if (size == 0) {
+                reshuffle();
+            } else {
+                mShuffleOrder.insert(store, position, position + added.size());
+            }
+        }
+        if (mBatchEditing) {
+            mBatchChanged = true;
+            return added.size();
+        }
+        // 保存快照，只写入新增数据
+        if (mQueueSnapshot != null) {
+            mQueueSnapshot.insertQueue(state.mTitle, store, position, added.size());
+            mQueueSnapshot.saveState(currentIndex, mSnapshotPosition);
+        }
+        publishQueue();
+        return added.size();
+    }
+
+    /**
+     * 移除队列中从position开始的count个音频
+     * <p>
+     * If the current track is removed, the item that takes its place becomes current and
+     * listeners are told about the new metadata.
+     *
+     * @param position
+     * @param count
+     * @return 实际移除的数量
+     */
+    public int removeQueueRange(int position, int count) {
+        State state = mState;
+        int size = state.size();
+        if (position < 0 || position >= size || count <= 0) {
+            return 0;
+        }
+        endBatchEdit();
+        int end = Math.min(size, position + count);
+        QueueStore store = state.mStore.remove(position, end);
+        // 修正当前播放的index
+        int currentIndex = state.mCurrentIndex;
+        boolean currentRemoved = false;
+        if (currentIndex >= end) {
+            currentIndex -= end - position;
+        } else if (currentIndex >= position) {
+            currentRemoved = true;
+            currentIndex = Math.min(position, store.size() - 1);
+        }
+        if (mShuffleEnabled) {
+            mShuffleOrder.remove(store, end - position);
+            // 随机播放时由随机顺序中的下一首顶替
+            if (currentRemoved) {
+                int next = mShuffleOrder.skip(store, 1, isRepeatAll());
+                if (next >= 0) {
+                    currentIndex = next;
+                }
+            }
+            if (currentIndex >= 0 && currentIndex < store.size()) {
+                mShuffleOrder.setCurrent(store.getQueueId(currentIndex));
+            }
+        }
+        mLastState = state;
+        mState = state.withStore(store, currentIndex);
+        // 保存快照，只记录移除的范围
+        if (mQueueSnapshot != null) {
+            mQueueSnapshot.removeQueue(state.mTitle, store, position, end - position);
+            mQueueSnapshot.saveState(currentIndex, mSnapshotPosition);
+        }
+        publishQueue();
+        if (currentRemoved) {
+            callBackMetadaChanged();
+        }
+        return end - position;
+    }
+
+    /**
+     * 将队列中from处的音频移动到to处
+     *
+     * @param from
+     * @param to
+     * @return
+     */
+    public boolean moveQueueItem(int from, int to) {
+        State state = mState;
+        if (!state.isIndexPlayable(from) || !state.isIndexPlayable(to)) {
             return false;
         }
-        setCurrentQueueIndex(index);
+        if (from == to) {
+            return true;
+        }
+        endBatchEdit();
+        QueueStore store = state.mStore.move(from, to);
+        // 当前播放的音频跟随移动
+        int currentIndex = state.mCurrentIndex;
+        if (currentIndex == from) {
+            currentIndex = to;
+        } else if (from < currentIndex && currentIndex <= to) {
+            currentIndex--;
+        } else if (to <= currentIndex && currentIndex < from) {
+            currentIndex++;
+        }
+        mLastState = state;
+        // 随机顺序保存的是queueId，移动不需要修改
+        mState = state.withStore(store, currentIndex);
+        // 保存快照，只记录移动
+        if (mQueueSnapshot != null) {
+            mQueueSnapshot.moveQueue(state.mTitle, store, from, to);
+            mQueueSnapshot.saveState(currentIndex, mSnapshotPosition);
+        }
+        publishQueue();
         return true;
     }
 
@@ -300,25 +832,256 @@ public class MusicQueue {
      * 回调当前播放数据
      */
     private void callBackMetadaChanged() {
-        // 获取当前的 QueueItem
-        MediaSessionCompat.QueueItem currentMusic = getCurrentQueueItem();
+        // 获取当前的 MediaMetadataCompat
+        MediaMetadataCompat metadata = mState.getCurrentMetadata();
         // 当前播放队列为null,回调数据错误
-        if (currentMusic == null) {
+        if (metadata == null) {
             mMetadataUpdateListener.onMetadataRetrieveError();
             return;
         }
-        // 回调当前播放数据
-        final String musicId = currentMusic.getDescription().getMediaId();
-        MediaMetadataCompat metadata = mMusicListById.get(musicId);
-        if (metadata == null) {
-            throw new IllegalArgumentException("Invalid musicId " + musicId);
-        }
         // 回调数据变化
         mMetadataUpdateListener.onMetadataChanged(metadata);
 
     }
 
 
+    // ##########################################################################################
+
+    /**
+     * 播放队列的不可变快照：播放队列、index查找表和当前播放的index
+     * <p>
+     * Never modified once published, so it can be shared freely across threads. Queue data is
+     * kept in a {@link QueueStore}; metadata and queue items are built on demand, and the
+     * current item's are cached.
+     */
+    public static final class State {
+
+        // 空队列
+        static final State EMPTY = new State(null, QueueStore.EMPTY, 0);
+
+        // 队列名
+        private final String mTitle;
+        // 播放队列数据，包括index查找表
+        private final QueueStore mStore;
+        // 当前播放的index
+        private final int mCurrentIndex;
+        // 当前音频的数据，首次访问时创建
+        private volatile MediaMetadataCompat mCurrentMetadata;
+        private volatile MediaSessionCompat.QueueItem mCurrentQueueItem;
+
+        private State(String title, QueueStore store, int currentIndex) {
+            this.mTitle = title;
+            this.mStore = store;
+            this.mCurrentIndex = currentIndex;
+        }
+
+        /**
+         * 只修改当前index，其他数据共享
+         */
+        private State withCurrentIndex(int currentIndex) {
+            return new State(mTitle, mStore, currentIndex);
+        }
+
+        /**
+         * 替换播放队列数据，查找表随 QueueStore 一起更新
+         */
+        private State withStore(QueueStore store, int currentIndex) {
+            return new State(mTitle, store, currentIndex);
+        }
+
+        // 队列名
+        public String getTitle() {
+            return mTitle;
+        }
+
+        // 播放队列数据
+        public QueueStore getStore() {
+            return mStore;
+        }
+
+        // 当前播放的index
+        public int getCurrentIndex() {
+            return mCurrentIndex;
+        }
+
+        // 当前播放的mediaId，不存在时返回null
+        public String getCurrentMediaId() {
+            return isIndexPlayable(mCurrentIndex) ? mStore.getMediaId(mCurrentIndex) : null;
+        }
+
+        // 队列长度
+        public int size() {
+            return mStore.size();
+        }
+
+        // 对应index是否存在
+        public boolean isIndexPlayable(int index) {
+            return index >= 0 && index < mStore.size();
+        }
+
+        // 对应mediaId在队列中的index，不存在时返回-1
+        public int indexOf(String mediaId) {
+            return mStore.indexOf(mediaId);
+        }
+
+        // 对应mediaId的数据
+        public MediaMetadataCompat getMetadata(String mediaId) {
+            int index = indexOf(mediaId);
+            if (index < 0) {
+                return null;
+            }
+            return index == mCurrentIndex ? getCurrentMetadata() : mStore.buildMetadata(index);
+        }
+
+        // 对应mediaId的字符串数据，不需要创建 MediaMetadataCompat
+        public String getString(String mediaId, String key) {
+            int index = indexOf(mediaId);
+            if (index < 0) {
+                return null;
+            }
+            for (int k = 0; k < QueueStore.STRING_KEYS.length; k++) {
+                if (QueueStore.STRING_KEYS[k].equals(key)) {
+                    return mStore.getString(k, index);
+                }
+            }
+            return null;
+        }
+
+        // 当前的 QueueItem
+        public MediaSessionCompat.QueueItem getCurrentQueueItem() {
+            if (!isIndexPlayable(mCurrentIndex)) {
+                return null;
+            }
+            MediaSessionCompat.QueueItem item = mCurrentQueueItem;
+            if (item == null) {
+                item = new MediaSessionCompat.QueueItem(getCurrentMetadata().getDescription(),
+                        mStore.getQueueId(mCurrentIndex));
+                mCurrentQueueItem = item;
+            }
+            return item;
+        }
+
+        // 当前的 MediaMetadataCompat
+        public MediaMetadataCompat getCurrentMetadata() {
+            if (!isIndexPlayable(mCurrentIndex)) {
+                return null;
+            }
+            MediaMetadataCompat metadata = mCurrentMetadata;
+            if (metadata == null) {
+                metadata = mStore.buildMetadata(mCurrentIndex);
+                mCurrentMetadata = metadata;
+            }
+            return metadata;
+        }
+
+        // 按播放队列的顺序返回所有的MediaMetadata数据
+        public List<MediaMetadataCompat> getAllMediaMetadatas() {
+            return mStore.buildAllMetadata();
+        }
+    }
+
+
+    /**
+     * 搜索当前播放队列和缓存队列中的音频，字母组成的查询同时按拼音和首字母搜索
+     * <p>
+     * The indexes keep every track that ever entered a queue; the filter drops the ones that
+     * have since left while ranking, so they cannot fill the limit and hide current matches.
+     * The pinyin index is built in the background after the first search; until then letter
+     * queries get the keyword results only.
+     *
+     * @param query
+     * @param limit 最多返回的数量
+     * @return 按匹配程度排序的mediaId，都在当前播放队列或缓存队列中
+     */
+    public List<String> search(String query, int limit) {
+        SearchIndex.Filter queued = new SearchIndex.Filter() {
+            @Override
+            public boolean accept(String mediaId) {
+                return mState.indexOf(mediaId) >= 0 || findCachedQueue(mediaId) != null;
+            }
+        };
+        List<String> result = mSearchIndex.search(query, limit, queued);
+        if (result.size() < limit && PinyinIndex.isPinyinQuery(query)) {
+            for (String mediaId : mPinyinIndex.search(query, limit, queued)) {
+                if (result.size() >= limit) {
+                    break;
+                }
+                if (!result.contains(mediaId)) {
+                    result.add(mediaId);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 等待拼音索引在后台建好，测试用
+     *
+     * @param timeoutMs
+     * @return 拼音表是否已加载
+     * @throws InterruptedException
+     */
+    boolean awaitSearchIndex(long timeoutMs) throws InterruptedException {
+        return mPinyinIndex.awaitBuilt(timeoutMs);
+    }
+
+    /**
+     * 当前播放队列或缓存队列中对应mediaId的数据
+     *
+     * @param mediaId
+     * @return
+     */
+    public MediaMetadataCompat findMetadata(String mediaId) {
+        MediaMetadataCompat metadata = mState.getMetadata(mediaId);
+        if (metadata != null) {
+            return metadata;
+        }
+        for (CachedQueue cached : mCachedQueues.values()) {
+            metadata = cached.mState.getMetadata(mediaId);
+            if (metadata != null) {
+                return metadata;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 包含对应mediaId的缓存队列
+     *
+     * @param mediaId
+     * @return 队列名，没有时返回null
+     */
+    public String findCachedQueue(String mediaId) {
+        for (Map.Entry<String, CachedQueue> entry : mCachedQueues.entrySet()) {
+            if (entry.getValue().mState.indexOf(mediaId) >= 0) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 缓存的播放队列
+     */
+    private static final class CachedQueue {
+        // 播放数据
+        private final State mState;
+        // 该队列下一个新增QueueItem使用的queueId
+        private final long mNextQueueId;
+        // 当前音频的播放位置
+        private final long mPosition;
+
+        private CachedQueue(State state, long nextQueueId, long position) {
+            this.mState = state;
+            this.mNextQueueId = nextQueueId;
+            this.mPosition = position;
+        }
+    }
+
+
     // ##########################################################################################
 
     /**
@@ -23,20 +23,35 @@ import android.os.Handler;
 import android.os.Message;
 import android.os.RemoteException;
 import android.support.annotation.NonNull;
+import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaBrowserCompat.MediaItem;
 import android.support.v4.media.MediaBrowserServiceCompat;
+import android.support.v4.media.MediaDescriptionCompat;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaButtonReceiver;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
+import android.text.TextUtils;
+import android.util.Log;
 
+import com.mediabrowser.xiaxl.service.cache.AudioDiskCache;
+import com.mediabrowser.xiaxl.service.cache.CacheProxyServer;
+import com.mediabrowser.xiaxl.service.cache.TrackHeadPrefetcher;
 import com.mediabrowser.xiaxl.service.notification.MediaNotificationManager;
 import com.mediabrowser.xiaxl.service.playback.MusicPlayback;
-import com.mediabrowser.xiaxl.service.playback.Playback;
+import com.mediabrowser.xiaxl.service.playback.PlayLatencyTracker;
 
+import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * This class provides a MediaBrowser through a service. It exposes the media library to a browsing
@@ -127,14 +142,93 @@ public class MusicService extends MediaBrowserServiceCompat implements
     // Delay stopSelf by using a handler.
     private static final int STOP_DELAY = 30000;
 
+    /**
+     * 对外发布的播放队列窗口
+     */
+    // 当前音频之前发布的数量
+    // Keeps MediaSession#setQueue well under the binder transaction limit for huge queues.
+    private static final int QUEUE_WINDOW_BEFORE = 100;
+    // 当前音频之后发布的数量
+    private static final int QUEUE_WINDOW_AFTER = 400;
+
+    // 播放队列快照文件名
+    private static final String QUEUE_SNAPSHOT_FILE = "music_queue.snapshot";
+    // 本地缓存代理未完成文件的目录
+    private static final String CACHE_PROXY_DIR = "audio_proxy";
+    // 搜索结果的最大数量
+    private static final int SEARCH_LIMIT = 50;
+    // 缓存的浏览目录页数
+    private static final int MAX_CACHED_CHILDREN = 256;
+    // 播放队列变化后延迟刷新浏览目录，合并这段时间内的所有变化
+    private static final long BROWSE_INVALIDATE_DELAY = 500;
+
     /**
      * obj
      */
     // MediaSessionCompat
     private MediaSessionCompat mMediaSession;
+    // 合并对 MediaSessionCompat 的更新，每个命令只发布一次
+    private SessionPublisher mSessionPublisher;
+    // 播放队列
+    private MusicQueue mMusicQueue;
+    /**
+     * 浏览目录
+     * <p>
+     * Children are computed on mBrowseExecutor and cached there per parentId and page, so the
+     * tree and the cache are only touched by that thread. When the queue's store changes, the
+     * cached entries are recomputed and notifyChildrenChanged is sent only for the parents
+     * whose children actually differ. Queue changes are coalesced for
+     * BROWSE_INVALIDATE_DELAY, so a burst of edits recomputes the cache once instead of once
+     * per edit; onLoadChildren always reads the current store, so browsing is never stale.
+     */
+    // 计算浏览目录的线程
+    private final ExecutorService mBrowseExecutor = Executors.newSingleThreadExecutor();
+    // 浏览目录，只在 mBrowseExecutor 中访问
+    private BrowseTree mBrowseTree;
+    // parentId + 分页 -> 子节点，只在 mBrowseExecutor 中访问
+    private final LinkedHashMap<ChildrenKey, List<MediaItem>> mChildrenCache =
+            new LinkedHashMap<ChildrenKey, List<MediaItem>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ChildrenKey, List<MediaItem>> eldest) {
+                    return size() > MAX_CACHED_CHILDREN;
+                }
+            };
+    // 主线程
+    private final Handler mMainHandler = new Handler();
+    // 已安排刷新浏览目录，只在主线程访问
+    private boolean mBrowseInvalidatePending;
+    // 刷新浏览目录，使用执行时最新的播放队列数据
+    private final Runnable mBrowseInvalidateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mBrowseInvalidatePending = false;
+            if (mMusicQueue == null || mBrowseExecutor.isShutdown()) {
+                return;
+            }
+            final QueueStore store = mMusicQueue.getState().getStore();
+            mBrowseExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    updateBrowseTree(store);
+                }
+            });
+        }
+    };
     // 1、MusicPlayback的封装类；
     // 2、MediaSession.Callback 回调封装
     private MusicPlaybackManager mPlaybackManager;
+    // 播放器
+    private MusicPlayback mMusicPlayback;
+    // 开始播放的耗时统计
+    private final PlayLatencyTracker mPlayLatencyTracker = new PlayLatencyTracker();
+    // 预加载音频的开头部分
+    private TrackHeadPrefetcher mTrackHeadPrefetcher;
+    // 音频的磁盘缓存
+    private AudioDiskCache mAudioDiskCache;
+    // 本地缓存代理
+    private CacheProxyServer mCacheProxyServer;
+    // 播放队列的磁盘快照
+    private QueueSnapshot mQueueSnapshot;
     // notification
     private MediaNotificationManager mMediaNotificationManager;
     // 延时一定时间 若无音频播放 则stop service
@@ -166,8 +260,8 @@ public class MusicService extends MediaBrowserServiceCompat implements
                          *
                          * 该方法将回调到 Client 的 {@link MediaControllerCallback.onMetadataChanged}
                          */
-                        if (mMediaSession != null) {
-                            mMediaSession.setMetadata(metadata);
+                        if (mSessionPublisher != null) {
+                            mSessionPublisher.setMetadata(metadata);
                         }
                     }
 
@@ -185,16 +279,35 @@ public class MusicService extends MediaBrowserServiceCompat implements
                          *
                          * 该方法将回调到 Client 的 {@link MediaControllerCallback.onQueueChanged}
                          */
-                        if (mMediaSession != null) {
-                            mMediaSession.setQueue(newQueue);
-                            mMediaSession.setQueueTitle(title);
+                        if (mSessionPublisher != null) {
+                            mSessionPublisher.setQueue(title, newQueue);
                         }
+                        // 播放队列数据变化时更新浏览目录
+                        invalidateBrowseTree();
                     }
                 });
+        // 只对外发布当前音频附近的播放队列
+        queueManager.setQueueWindow(QUEUE_WINDOW_BEFORE, QUEUE_WINDOW_AFTER);
+        mMusicQueue = queueManager;
+        // 音频的磁盘缓存
+        mAudioDiskCache = new AudioDiskCache(this);
+        queueManager.setAudioDiskCache(mAudioDiskCache);
+        // 预加载音频的开头部分
+        mTrackHeadPrefetcher = new TrackHeadPrefetcher(this);
+        // 本地缓存代理，边播边缓存
+        mCacheProxyServer = new CacheProxyServer(new File(getCacheDir(), CACHE_PROXY_DIR),
+                mAudioDiskCache, mTrackHeadPrefetcher);
+        mCacheProxyServer.start();
         // 初始化 MusicPlayback
-        Playback playback = new MusicPlayback(this);
+        MusicPlayback playback = new MusicPlayback(this);
+        mMusicPlayback = playback;
+        playback.setTrackHeadPrefetcher(mTrackHeadPrefetcher);
+        playback.setCacheProxyServer(mCacheProxyServer);
+        playback.setPlayLatencyTracker(mPlayLatencyTracker);
         // 初始化 MusicPlaybackManager
         mPlaybackManager = new MusicPlaybackManager(getApplicationContext(), this, queueManager, playback);
+        mPlaybackManager.setTrackHeadPrefetcher(mTrackHeadPrefetcher);
+        mPlaybackManager.setPlayLatencyTracker(mPlayLatencyTracker);
         // 创建 MediaSessionCompat
         // Start a new MediaSession
         initSession();
@@ -202,6 +315,7 @@ public class MusicService extends MediaBrowserServiceCompat implements
         if (mMediaSession == null) {
             return;
         }
+        mSessionPublisher = new SessionPublisher(mMediaSession);
         // 获取并设置token
         setSessionToken(mMediaSession.getSessionToken());
         // 用户通过MediaControllerCompat对UI的操作，
@@ -227,6 +341,12 @@ public class MusicService extends MediaBrowserServiceCompat implements
         } catch (RemoteException e) {
             throw new IllegalStateException("Could not create a MediaNotificationManager", e);
         }
+        /**
+         * 从快照恢复上次的播放队列，之后队列的变化都会写入快照
+         */
+        mQueueSnapshot = new QueueSnapshot(new File(getFilesDir(), QUEUE_SNAPSHOT_FILE));
+        mPlaybackManager.restoreMusicQueue(mQueueSnapshot.restore());
+        queueManager.setQueueSnapshot(mQueueSnapshot);
 
     }
 
@@ -289,13 +409,35 @@ public class MusicService extends MediaBrowserServiceCompat implements
         // 停止播放  释放资源
         // Service is being killed, so make sure we release our resources
         mPlaybackManager.handleStopRequest(null);
+        mMusicPlayback.release();
+        Log.d(TAG, mPlayLatencyTracker.toString());
         // 移除所有的Notification
         if (mMediaNotificationManager != null) {
             mMediaNotificationManager.stopNotification();
         }
         // 移除所有的事件
         mDelayedStopHandler.removeCallbacksAndMessages(null);
+        mMainHandler.removeCallbacksAndMessages(null);
+        mBrowseExecutor.shutdownNow();
+        if (mTrackHeadPrefetcher != null) {
+            mTrackHeadPrefetcher.release();
+        }
+        if (mCacheProxyServer != null) {
+            Log.d(TAG, mCacheProxyServer.toString());
+            mCacheProxyServer.release();
+        }
+        if (mAudioDiskCache != null) {
+            Log.d(TAG, mAudioDiskCache.toString());
+            mAudioDiskCache.release();
+        }
+        if (mQueueSnapshot != null) {
+            mQueueSnapshot.release();
+        }
         // 释放session
+        if (mSessionPublisher != null) {
+            Log.d(TAG, mSessionPublisher.toString());
+            mSessionPublisher.release();
+        }
         if (mMediaSession != null) {
             mMediaSession.release();
         }
@@ -319,9 +461,146 @@ public class MusicService extends MediaBrowserServiceCompat implements
     @Override
     public void onLoadChildren(@NonNull final String parentMediaId,
                                @NonNull final Result<List<MediaItem>> result) {
-        if (MEDIA_ID_EMPTY_ROOT.equals(parentMediaId)) {
+        onLoadChildren(parentMediaId, result, null);
+    }
+
+    /**
+     * 浏览目录，支持 {@link MediaBrowserCompat#EXTRA_PAGE} / {@link MediaBrowserCompat#EXTRA_PAGE_SIZE} 分页
+     */
+    @Override
+    public void onLoadChildren(@NonNull final String parentMediaId,
+                               @NonNull final Result<List<MediaItem>> result, Bundle options) {
+        if (MEDIA_ID_EMPTY_ROOT.equals(parentMediaId) || mMusicQueue == null
+                || mBrowseExecutor.isShutdown()) {
             result.sendResult(new ArrayList<MediaItem>());
+            return;
+        }
+        int page = -1;
+        int pageSize = -1;
+        if (options != null) {
+            page = options.getInt(MediaBrowserCompat.EXTRA_PAGE, -1);
+            pageSize = options.getInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, -1);
+        }
+        final ChildrenKey key = new ChildrenKey(parentMediaId, page, pageSize);
+        final QueueStore store = mMusicQueue.getState().getStore();
+        // 在后台线程计算
+        result.detach();
+        mBrowseExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                updateBrowseTree(store);
+                List<MediaItem> children = mChildrenCache.get(key);
+                if (children == null) {
+                    children = loadChildren(key);
+                    if (children != null) {
+                        mChildrenCache.put(key, children);
+                    }
+                }
+                result.sendResult(children);
+            }
+        });
+    }
+
+    /**
+     * 播放队列变化后，延迟 BROWSE_INVALIDATE_DELAY 在后台更新浏览目录，期间的变化只更新一次
+     */
+    private void invalidateBrowseTree() {
+        if (mBrowseInvalidatePending || mMusicQueue == null || mBrowseExecutor.isShutdown()) {
+            return;
         }
+        mBrowseInvalidatePending = true;
+        mMainHandler.postDelayed(mBrowseInvalidateRunnable, BROWSE_INVALIDATE_DELAY);
+    }
+
+    /**
+     * 切换到新的播放队列数据，重新计算已缓存的子节点，只通知发生变化的parentId
+     * <p>
+     * 只在 mBrowseExecutor 中调用
+     */
+    private void updateBrowseTree(QueueStore store) {
+        if (mBrowseTree != null && mBrowseTree.getStore() == store) {
+            return;
+        }
+        boolean first = mBrowseTree == null;
+        mBrowseTree = new BrowseTree(getResources(), store);
+        if (first) {
+            return;
+        }
+        final Set<String> changed = new HashSet<>();
+        Iterator<Map.Entry<ChildrenKey, List<MediaItem>>> iterator =
+                mChildrenCache.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<ChildrenKey, List<MediaItem>> entry = iterator.next();
+            List<MediaItem> children = loadChildren(entry.getKey());
+            if (sameChildren(entry.getValue(), children)) {
+                continue;
+            }
+            if (children == null) {
+                iterator.remove();
+            } else {
+                entry.setValue(children);
+            }
+            changed.add(entry.getKey().mParentId);
+        }
+        if (changed.isEmpty()) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (String parentId : changed) {
+                    notifyChildrenChanged(parentId);
+                }
+            }
+        });
+    }
+
+    /**
+     * 计算缓存key对应的子节点
+     */
+    private List<MediaItem> loadChildren(ChildrenKey key) {
+        return mBrowseTree.getChildren(MEDIA_ID_ROOT, key.mParentId, key.mPage, key.mPageSize);
+    }
+
+    /**
+     * 子节点是否相同：mediaId、标题和副标题
+     */
+    private static boolean sameChildren(List<MediaItem> a, List<MediaItem> b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            MediaDescriptionCompat da = a.get(i).getDescription();
+            MediaDescriptionCompat db = b.get(i).getDescription();
+            if (!TextUtils.equals(da.getMediaId(), db.getMediaId())
+                    || !TextUtils.equals(da.getTitle(), db.getTitle())
+                    || !TextUtils.equals(da.getSubtitle(), db.getSubtitle())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * 搜索：按关键词、拼音或首字母匹配标题、歌手、专辑、流派
+     */
+    @Override
+    public void onSearch(@NonNull String query, Bundle extras,
+                         @NonNull Result<List<MediaItem>> result) {
+        List<MediaItem> items = new ArrayList<>();
+        if (mMusicQueue != null) {
+            for (String mediaId : mMusicQueue.search(query, SEARCH_LIMIT)) {
+                MediaMetadataCompat metadata = mMusicQueue.findMetadata(mediaId);
+                if (metadata != null) {
+                    items.add(new MediaItem(metadata.getDescription(), MediaItem.FLAG_PLAYABLE));
+                }
+            }
+        }
+        result.sendResult(items);
     }
 
 
@@ -374,24 +653,82 @@ public class MusicService extends MediaBrowserServiceCompat implements
 
     @Override
     public void onNotificationRequired() {
+        // notification 从 MediaControllerCompat 读取数据，先发布等待中的更新
+        if (mSessionPublisher != null) {
+            mSessionPublisher.flush();
+        }
         // 显示notification
         mMediaNotificationManager.startNotification();
     }
 
     @Override
     public void onPlaybackStateUpdated(PlaybackStateCompat newState) {
-        if (mMediaSession == null) {
+        if (mSessionPublisher == null) {
             return;
         }
         /**
          *
          * 该方法将回调到 Client 的 {@link MediaControllerCallback.onPlaybackStateChanged}
          */
-        //
-        try {
-            mMediaSession.setPlaybackState(newState);
-        } catch (NoSuchMethodError e) {
-            mMediaSession = null;
+        // 同一个命令中的多次更新只发布最后一次
+        mSessionPublisher.setPlaybackState(newState);
+    }
+
+    @Override
+    public void onShuffleModeChanged(int shuffleMode) {
+        if (mMediaSession == null) {
+            return;
+        }
+        // 该方法将回调到 Client 的 MediaControllerCallback.onShuffleModeChanged
+        mMediaSession.setShuffleMode(shuffleMode);
+    }
+
+    @Override
+    public void onRepeatModeChanged(int repeatMode) {
+        if (mMediaSession == null) {
+            return;
+        }
+        // 该方法将回调到 Client 的 MediaControllerCallback.onRepeatModeChanged
+        mMediaSession.setRepeatMode(repeatMode);
+    }
+
+
+    // ###########################################################################################
+
+    /**
+     * 子节点缓存的key：parentId 和分页参数
+     * <p>
+     * A value object rather than a joined string, so a parentId may contain any character.
+     */
+    private static final class ChildrenKey {
+        private final String mParentId;
+        // 页码，不分页时为-1
+        private final int mPage;
+        // 每页数量，不分页时为-1
+        private final int mPageSize;
+
+        private ChildrenKey(String parentId, int page, int pageSize) {
+            this.mParentId = parentId;
+            this.mPage = page;
+            this.mPageSize = pageSize;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ChildrenKey)) {
+                return false;
+            }
+            ChildrenKey other = (ChildrenKey) o;
+            return mPage == other.mPage && mPageSize == other.mPageSize
+                    && mParentId.equals(other.mParentId);
+        }
+
+        @Override
+        public int hashCode() {
+            return (mParentId.hashCode() * 31 + mPage) * 31 + mPageSize;
         }
     }
 
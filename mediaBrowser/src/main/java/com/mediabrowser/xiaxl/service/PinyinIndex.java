@@ -0,0 +1,475 @@
+package com.mediabrowser.xiaxl.service;
+
+import android.content.res.Resources;
+
+import com.mediabrowser.xiaxl.service.utils.PinyinTable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 拼音和首字母搜索索引
+ * <p>
+ * Titles and artists that contain Chinese are indexed by their full pinyin ("zhoujielun")
+ * and their initials ("zjl"), starting from every syllable, so a query matches any run of
+ * syllables by prefix. Keys live in a trie made of parallel primitive arrays (label, first
+ * child, next sibling, posting head) with postings as int linked lists, so there is no
+ * object per node.
+ * <p>
+ * {@link PinyinTable} is only loaded by the first search. Until then only the mediaId and the
+ * indexed fields of added tracks are kept, as references to the pooled strings; the stores
+ * themselves are not retained. The first search hands those to a background thread, which
+ * loads the table and indexes them into a separate instance, and returns nothing, so
+ * {@link MusicQueue} serves the keyword results alone. The next call on the main thread takes
+ * over the finished arrays and indexes the few tracks added in the meantime, so neither the
+ * table nor a large backlog is ever processed on the main thread.
+ * <p>
+ * Not thread safe; used on the main thread together with {@link MusicQueue}. The background
+ * build only touches its own instance.
+ */
+public class PinyinIndex {
+
+    // 建索引的字段：QueueStore.STRING_KEYS 中的列，title、artist
+    private static final int[] FIELD_COLUMNS = {1, 2};
+    // key的最大长度
+    private static final int MAX_KEY_LENGTH = 32;
+    // 索引中最多的音频数量，超出时清空重建
+    private static final int MAX_DOCUMENTS = 200000;
+
+    private final Resources mResources;
+    // 不为null时使用该拼音表，不从资源文件读取
+    private final PinyinTable mPresetTable;
+    // 拼音表，第一次搜索后在后台加载
+    private PinyinTable mTable;
+    // 拼音表加载前加入的数据：每个音频依次为 mediaId 和 FIELD_COLUMNS 对应的字段
+    private List<String> mPending = new ArrayList<>();
+    private final Set<String> mPendingMediaIds = new HashSet<>();
+    // 后台加载拼音表并建索引的线程
+    private Thread mBuildThread;
+    // 后台建好的索引，由主线程接管
+    private volatile PinyinIndex mBuilt;
+
+    /**
+     * 音频
+     */
+    // mediaId -> doc
+    private Map<String, Integer> mDocByMediaId = new HashMap<>();
+    // doc -> mediaId
+    private String[] mMediaIds;
+    private int mDocCount;
+
+    /**
+     * trie，0为根节点
+     */
+    private char[] mLabels;
+    private int[] mFirstChild;
+    private int[] mNextSibling;
+    private int[] mPostingHead;
+    private int mNodeCount;
+
+    /**
+     * posting链表
+     */
+    private int[] mPostingDocs;
+    private int[] mPostingNext;
+    private int mPostingCount;
+
+
+    public PinyinIndex(Resources resources) {
+        this(resources, null);
+    }
+
+    /**
+     * @param resources
+     * @param table     不为null时直接使用该拼音表，测试用
+     */
+    PinyinIndex(Resources resources, PinyinTable table) {
+        this.mResources = resources;
+        this.mPresetTable = table;
+        reset();
+    }
+
+    private void reset() {
+        mDocByMediaId.clear();
+        mMediaIds = new String[256];
+        mDocCount = 0;
+        mLabels = new char[1024];
+        mFirstChild = new int[1024];
+        mNextSibling = new int[1024];
+        mPostingHead = new int[1024];
+        mNodeCount = 0;
+        mPostingDocs = new int[1024];
+        mPostingNext = new int[1024];
+        mPostingCount = 0;
+        newNode((char) 0);
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 为store中[from, to)范围内的音频建索引，已有索引的mediaId会被忽略
+     *
+     * @param store
+     * @param from
+     * @param to
+     */
+    public void add(QueueStore store, int from, int to) {
+        adoptBuilt();
+        if (mTable == null) {
+            addPending(store, from, to);
+            return;
+        }
+        if (mDocCount + (to - from) > MAX_DOCUMENTS) {
+            reset();
+        }
+        List<String> syllables = new ArrayList<>();
+        StringBuilder key = new StringBuilder();
+        String[] fields = new String[FIELD_COLUMNS.length];
+        for (int i = from; i < to; i++) {
+            for (int f = 0; f < FIELD_COLUMNS.length; f++) {
+                fields[f] = store.getString(FIELD_COLUMNS[f], i);
+            }
+            addDocument(store.getMediaId(i), fields, syllables, key);
+        }
+    }
+
+    /**
+     * 拼音表加载前，只保留 mediaId 和需要建索引的字段
+     */
+    private void addPending(QueueStore store, int from, int to) {
+        if (mPendingMediaIds.size() + (to - from) > MAX_DOCUMENTS) {
+            mPending.clear();
+            mPendingMediaIds.clear();
+        }
+        for (int i = from; i < to; i++) {
+            String mediaId = store.getMediaId(i);
+            if (mediaId == null || !mPendingMediaIds.add(mediaId)) {
+                continue;
+            }
+            mPending.add(mediaId);
+            for (int column : FIELD_COLUMNS) {
+                mPending.add(store.getString(column, i));
+            }
+        }
+    }
+
+    /**
+     * 为一个音频建索引
+     *
+     * @param mediaId
+     * @param fields    FIELD_COLUMNS 对应的字段
+     * @param syllables 复用的临时列表
+     * @param key       复用的临时key
+     */
+    private void addDocument(String mediaId, String[] fields, List<String> syllables,
+                             StringBuilder key) {
+        if (mediaId == null || mDocByMediaId.containsKey(mediaId)) {
+            return;
+        }
+        int doc = newDocument(mediaId);
+        for (String field : fields) {
+            syllables.clear();
+            if (!toSyllables(field, syllables)) {
+                continue;
+            }
+            // 从每个音节开始的全拼和首字母
+            for (int start = 0; start < syllables.size(); start++) {
+                key.setLength(0);
+                for (int s = start; s < syllables.size() && key.length() < MAX_KEY_LENGTH; s++) {
+                    key.append(syllables.get(s));
+                }
+                insert(key, doc);
+                key.setLength(0);
+                for (int s = start; s < syllables.size() && key.length() < MAX_KEY_LENGTH; s++) {
+                    key.append(syllables.get(s).charAt(0));
+                }
+                insert(key, doc);
+            }
+        }
+    }
+
+    /**
+     * 将文字转为音节：汉字转为拼音，字母和数字按单词切分
+     *
+     * @return 是否包含汉字
+     */
+    private boolean toSyllables(String text, List<String> out) {
+        if (text == null) {
+            return false;
+        }
+        boolean hasHan = false;
+        int wordStart = -1;
+        int length = text.length();
+        for (int i = 0; i < length; ) {
+            int cp = text.codePointAt(i);
+            int next = i + Character.charCount(cp);
+            String pinyin = mTable.toPinyin(cp);
+            boolean asciiWord = cp < 0x80 && Character.isLetterOrDigit(cp);
+            if (!asciiWord && wordStart >= 0) {
+                out.add(text.substring(wordStart, i).toLowerCase(Locale.ROOT));
+                wordStart = -1;
+            }
+            if (pinyin != null) {
+                hasHan = true;
+                out.add(pinyin);
+            } else if (asciiWord && wordStart < 0) {
+                wordStart = i;
+            }
+            i = next;
+        }
+        if (wordStart >= 0) {
+            out.add(text.substring(wordStart).toLowerCase(Locale.ROOT));
+        }
+        return hasHan;
+    }
+
+    private int newDocument(String mediaId) {
+        if (mDocCount == mMediaIds.length) {
+            String[] mediaIds = new String[mDocCount * 2];
+            System.arraycopy(mMediaIds, 0, mediaIds, 0, mDocCount);
+            mMediaIds = mediaIds;
+        }
+        int doc = mDocCount++;
+        mMediaIds[doc] = mediaId;
+        mDocByMediaId.put(mediaId, doc);
+        return doc;
+    }
+
+    private void insert(CharSequence key, int doc) {
+        int node = 0;
+        for (int i = 0; i < key.length(); i++) {
+            node = child(node, key.charAt(i), true);
+        }
+        // doc按递增顺序加入，链表头就是最近加入的doc
+        int head = mPostingHead[node];
+        if (head >= 0 && mPostingDocs[head] == doc) {
+            return;
+        }
+        if (mPostingCount == mPostingDocs.length) {
+            mPostingDocs = grow(mPostingDocs);
+            mPostingNext = grow(mPostingNext);
+        }
+        mPostingDocs[mPostingCount] = doc;
+        mPostingNext[mPostingCount] = head;
+        mPostingHead[node] = mPostingCount++;
+    }
+
+    /**
+     * 查找子节点
+     *
+     * @param create 不存在时是否创建
+     * @return 不存在且不创建时返回-1
+     */
+    private int child(int node, char label, boolean create) {
+        for (int c = mFirstChild[node]; c >= 0; c = mNextSibling[c]) {
+            if (mLabels[c] == label) {
+                return c;
+            }
+        }
+        if (!create) {
+            return -1;
+        }
+        int c = newNode(label);
+        mNextSibling[c] = mFirstChild[node];
+        mFirstChild[node] = c;
+        return c;
+    }
+
+    private int newNode(char label) {
+        if (mNodeCount == mLabels.length) {
+            char[] labels = new char[mNodeCount * 2];
+            System.arraycopy(mLabels, 0, labels, 0, mNodeCount);
+            mLabels = labels;
+            mFirstChild = grow(mFirstChild);
+            mNextSibling = grow(mNextSibling);
+            mPostingHead = grow(mPostingHead);
+        }
+        int node = mNodeCount++;
+        mLabels[node] = label;
+        mFirstChild[node] = -1;
+        mNextSibling[node] = -1;
+        mPostingHead[node] = -1;
+        return node;
+    }
+
+    private static int[] grow(int[] array) {
+        int[] grown = new int[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 是否可以作为拼音搜索：只包含字母、数字和空格，且至少有一个字母
+     *
+     * @param query
+     * @return
+     */
+    public static boolean isPinyinQuery(String query) {
+        if (query == null) {
+            return false;
+        }
+        boolean hasLetter = false;
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+                hasLetter = true;
+            } else if (!(c >= '0' && c <= '9') && c != ' ') {
+                return false;
+            }
+        }
+        return hasLetter;
+    }
+
+    /**
+     * 按拼音或首字母前缀搜索
+     *
+     * @param query 例如 "zjl"、"zhoujielun"、"qilixiang"
+     * @param limit  最多返回的数量
+     * @param filter 过滤条件，为null时不过滤
+     * @return 匹配的mediaId，完整匹配的在前，之后按key长度排序
+     */
+    public List<String> search(String query, int limit, SearchIndex.Filter filter) {
+        List<String> result = new ArrayList<>();
+        if (!isPinyinQuery(query) || limit <= 0) {
+            return result;
+        }
+        adoptBuilt();
+        if (mTable == null) {
+            // 拼音表加载前没有结果
+            startBuild();
+            return result;
+        }
+        // 找到前缀对应的节点
+        int node = 0;
+        for (int i = 0; i < query.length() && node >= 0; i++) {
+            char c = Character.toLowerCase(query.charAt(i));
+            if (c != ' ') {
+                node = child(node, c, false);
+            }
+        }
+        if (node <= 0) {
+            return result;
+        }
+        // 按层遍历子树，较短的key先返回
+        boolean[] added = new boolean[mDocCount];
+        int[] queue = new int[16];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = node;
+        while (head < tail && result.size() < limit) {
+            int current = queue[head++];
+            for (int p = mPostingHead[current]; p >= 0 && result.size() < limit; p = mPostingNext[p]) {
+                int doc = mPostingDocs[p];
+                if (!added[doc]) {
+                    added[doc] = true;
+                    if (filter == null || filter.accept(mMediaIds[doc])) {
+                        result.add(mMediaIds[doc]);
+                    }
+                }
+            }
+            for (int c = mFirstChild[current]; c >= 0; c = mNextSibling[c]) {
+                if (tail == queue.length) {
+                    queue = grow(queue);
+                }
+                queue[tail++] = c;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 在后台线程加载拼音表，并为之前加入的数据建索引
+     */
+    private void startBuild() {
+        if (mBuildThread != null) {
+            return;
+        }
+        final List<String> pending = mPending;
+        mPending = new ArrayList<>();
+        mPendingMediaIds.clear();
+        mBuildThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                PinyinIndex built = new PinyinIndex(mResources, mPresetTable);
+                built.mTable = mPresetTable != null ? mPresetTable
+                        : PinyinTable.getInstance(mResources);
+                built.indexPending(pending);
+                mBuilt = built;
+            }
+        }, "PinyinIndex");
+        mBuildThread.setPriority(Thread.MIN_PRIORITY);
+        mBuildThread.start();
+    }
+
+    /**
+     * 接管后台建好的索引，并为建索引期间加入的数据建索引
+     */
+    private void adoptBuilt() {
+        PinyinIndex built = mBuilt;
+        if (built == null || mTable != null) {
+            return;
+        }
+        mBuilt = null;
+        mTable = built.mTable;
+        mDocByMediaId = built.mDocByMediaId;
+        mMediaIds = built.mMediaIds;
+        mDocCount = built.mDocCount;
+        mLabels = built.mLabels;
+        mFirstChild = built.mFirstChild;
+        mNextSibling = built.mNextSibling;
+        mPostingHead = built.mPostingHead;
+        mNodeCount = built.mNodeCount;
+        mPostingDocs = built.mPostingDocs;
+        mPostingNext = built.mPostingNext;
+        mPostingCount = built.mPostingCount;
+        List<String> pending = mPending;
+        mPending = new ArrayList<>();
+        mPendingMediaIds.clear();
+        indexPending(pending);
+    }
+
+    /**
+     * 等待后台建索引完成并接管，测试用
+     *
+     * @param timeoutMs
+     * @return 拼音表是否已加载
+     * @throws InterruptedException
+     */
+    boolean awaitBuilt(long timeoutMs) throws InterruptedException {
+        if (mBuildThread != null) {
+            mBuildThread.join(timeoutMs);
+        }
+        adoptBuilt();
+        return mTable != null;
+    }
+
+    /**
+     * 为拼音表加载前加入的数据建索引
+     *
+     * @param pending 每个音频依次为 mediaId 和 FIELD_COLUMNS 对应的字段
+     */
+    private void indexPending(List<String> pending) {
+        int stride = 1 + FIELD_COLUMNS.length;
+        if (mDocCount + pending.size() / stride > MAX_DOCUMENTS) {
+            reset();
+        }
+        List<String> syllables = new ArrayList<>();
+        StringBuilder key = new StringBuilder();
+        String[] fields = new String[FIELD_COLUMNS.length];
+        for (int i = 0; i < pending.size(); i += stride) {
+            for (int f = 0; f < FIELD_COLUMNS.length; f++) {
+                fields[f] = pending.get(i + 1 + f);
+            }
+            addDocument(pending.get(i), fields, syllables, key);
+        }
+    }
+}
@@ -0,0 +1,479 @@
+package com.mediabrowser.xiaxl.service;
+
+import android.support.v4.media.MediaMetadataCompat;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 播放队列的磁盘快照
+ * <p>
+ * Keeps a compact binary copy of {@link MusicQueue} on disk so that a service restarted by
+ * START_STICKY can show the last queue right away. The file holds a full copy of the queue
+ * followed by a log of the edits made since: inserts carry their new records, removes and moves
+ * just their positions, so each edit writes bytes in proportion to what it changed. The header
+ * (current index and position) is rewritten in place. Once the log outgrows the copy or holds
+ * {@link #MAX_LOG_ENTRIES} edits, the next edit rewrites the whole file from the current queue
+ * through a temp file and a rename, which keeps edits amortized O(delta) and bounds the work
+ * of a restore. All writes run on a single background thread, in order. Reading maps the file
+ * into memory and replays the log.
+ * <p>
+ * Layout: magic, version, index, position, count, entries, end, log, title, then count records
+ * of {@link #STRING_KEYS} followed by the duration, then the log from offset log to offset
+ * end. end is the offset just past the last complete log entry. An edit writes its entry at
+ * end and then updates entries and end together in one write, so an entry left by a write
+ * that was killed halfway is overwritten by the next one and never read.
+ */
+public class QueueSnapshot {
+
+    private static final String TAG = "QueueSnapshot";
+
+    // 文件头
+    private static final int MAGIC = 0x4d515331;
+    private static final int VERSION = 3;
+    // 文件头中各字段的偏移
+    private static final int INDEX_OFFSET = 8;
+    private static final int POSITION_OFFSET = 12;
+    // 修改记录的数量，紧跟着有效数据的结束位置，两者一起写入
+    private static final int ENTRIES_OFFSET = 24;
+    private static final int END_OFFSET = 28;
+    // 之后是修改记录的开始位置
+    private static final int HEADER_SIZE = 44;
+
+    /**
+     * 修改记录的类型
+     */
+    // 插入：position, count, count条音频数据
+    private static final byte OP_INSERT = 1;
+    // 移除：position, count
+    private static final byte OP_REMOVE = 2;
+    // 移动：from, to
+    private static final byte OP_MOVE = 3;
+    // 修改记录超过该大小、且超过完整数据的大小时，重写整个文件
+    private static final int MIN_LOG_SIZE = 64 * 1024;
+    // 修改记录超过该数量时重写整个文件，限制恢复时重放的次数
+    private static final int MAX_LOG_ENTRIES = 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // 快照中保存的字符串数据，与 QueueStore 的列一致
+    private static final String[] STRING_KEYS = QueueStore.STRING_KEYS;
+
+    // 快照文件
+    private final File mFile;
+    // 写文件的线程
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+
+    /**
+     * 构造方法
+     *
+     * @param file 快照文件
+     */
+    public QueueSnapshot(File file) {
+        this.mFile = file;
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 保存整个播放队列
+     *
+     * @param title
+     * @param store 播放队列数据，不可变，可直接在写线程中读取
+     * @param index
+     * @param position
+     */
+    public void saveQueue(final String title, final QueueStore store, final int index,
+                          final long position) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeQueue(title, store, index, position);
+            }
+        });
+    }
+
+    /**
+     * 记录插入：store中 [position, position + count) 为新插入的音频
+     *
+     * @param title
+     * @param store    插入之后的播放队列
+     * @param position
+     * @param count
+     */
+    public void insertQueue(String title, final QueueStore store, final int position,
+                            final int count) {
+        appendLog(title, store, new LogEntry() {
+            @Override
+            public void write(DataOutputStream out) throws IOException {
+                out.writeByte(OP_INSERT);
+                out.writeInt(position);
+                out.writeInt(count);
+                for (int i = position; i < position + count; i++) {
+                    writeRecord(out, store, i);
+                }
+            }
+        });
+    }
+
+    /**
+     * 记录移除 [position, position + count)
+     *
+     * @param title
+     * @param store    移除之后的播放队列
+     * @param position
+     * @param count
+     */
+    public void removeQueue(String title, QueueStore store, final int position, final int count) {
+        appendLog(title, store, new LogEntry() {
+            @Override
+            public void write(DataOutputStream out) throws IOException {
+                out.writeByte(OP_REMOVE);
+                out.writeInt(position);
+                out.writeInt(count);
+            }
+        });
+    }
+
+    /**
+     * 记录把from处的音频移动到to处
+     *
+     * @param title
+     * @param store 移动之后的播放队列
+     * @param from
+     * @param to
+     */
+    public void moveQueue(String title, QueueStore store, final int from, final int to) {
+        appendLog(title, store, new LogEntry() {
+            @Override
+            public void write(DataOutputStream out) throws IOException {
+                out.writeByte(OP_MOVE);
+                out.writeInt(from);
+                out.writeInt(to);
+            }
+        });
+    }
+
+    /**
+     * 保存当前播放的index和播放位置
+     *
+     * @param index
+     * @param position
+     */
+    public void saveState(final int index, final long position) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mFile.exists()) {
+                    return;
+                }
+                RandomAccessFile file = null;
+                try {
+                    file = new RandomAccessFile(mFile, "rw");
+                    file.seek(INDEX_OFFSET);
+                    file.writeInt(index);
+                    file.seek(POSITION_OFFSET);
+                    file.writeLong(position);
+                } catch (IOException e) {
+                    Log.e(TAG, "saveState: " + e.getMessage());
+                } finally {
+                    closeQuietly(file);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * 停止写线程，已提交的写入仍会完成
+     */
+    public void release() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * 停止写线程并等待已提交的写入完成
+     *
+     * @return 是否在超时之前完成
+     */
+    boolean releaseAndWait(long timeoutMs) throws InterruptedException {
+        mExecutor.shutdown();
+        return mExecutor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 一条修改记录
+     */
+    private interface LogEntry {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * 在有效数据的末尾追加修改记录，记录过多或快照不可用时改为重写整个文件
+     *
+     * @param title
+     * @param store 修改之后的播放队列，重写时使用
+     * @param entry
+     */
+    private void appendLog(final String title, final QueueStore store, final LogEntry entry) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int index = 0;
+                long position = 0;
+                RandomAccessFile file = null;
+                try {
+                    if (mFile.length() >= HEADER_SIZE) {
+                        file = new RandomAccessFile(mFile, "rw");
+                        if (file.readInt() == MAGIC && file.readInt() == VERSION) {
+                            index = file.readInt();
+                            position = file.readLong();
+                            file.seek(ENTRIES_OFFSET);
+                            int entries = file.readInt();
+                            long end = file.readLong();
+                            long log = file.readLong();
+                            if (entries < MAX_LOG_ENTRIES
+                                    && end - log <= Math.max(MIN_LOG_SIZE, log - HEADER_SIZE)) {
+                                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                                entry.write(new DataOutputStream(bytes));
+                                // 从有效数据的末尾开始写，覆盖上次写到一半留下的数据
+                                file.seek(end);
+                                file.write(bytes.toByteArray());
+                                file.setLength(end + bytes.size());
+                                // 再一次写入新的记录数量和结束位置
+                                ByteBuffer header = ByteBuffer.allocate(12);
+                                header.putInt(entries + 1);
+                                header.putLong(end + bytes.size());
+                                file.seek(ENTRIES_OFFSET);
+                                file.write(header.array());
+                                return;
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "appendLog: " + e.getMessage());
+                } finally {
+                    closeQuietly(file);
+                }
+                writeQueue(title, store, index, position);
+            }
+        });
+    }
+
+    /**
+     * 在写线程中重写整个文件
+     */
+    private void writeQueue(String title, QueueStore store, int index, long position) {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(index);
+            out.writeLong(position);
+            out.writeInt(store.size());
+            out.writeInt(0);
+            out.writeLong(0);
+            out.writeLong(0);
+            writeString(out, title);
+            for (int i = 0; i < store.size(); i++) {
+                writeRecord(out, store, i);
+            }
+            out.close();
+            out = null;
+            // 没有修改记录，结束位置和修改记录的开始位置都是文件末尾
+            RandomAccessFile file = new RandomAccessFile(tmp, "rw");
+            try {
+                file.seek(END_OFFSET);
+                file.writeLong(file.length());
+                file.writeLong(file.length());
+            } finally {
+                file.close();
+            }
+            // 写完后再替换，进程被杀时不会留下写了一半的快照
+            if (!tmp.renameTo(mFile)) {
+                Log.e(TAG, "saveQueue: rename failed");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "saveQueue: " + e.getMessage());
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 读取快照
+     *
+     * @return 快照不存在或已损坏时返回null
+     */
+    public Data restore() {
+        if (!mFile.exists() || mFile.length() < HEADER_SIZE) {
+            return null;
+        }
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "r");
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+            Data data = new Data();
+            data.index = buffer.getInt();
+            data.position = buffer.getLong();
+            int count = buffer.getInt();
+            buffer.getInt();
+            long end = buffer.getLong();
+            long log = buffer.getLong();
+            if (log < HEADER_SIZE || end < log || end > channel.size()) {
+                return null;
+            }
+            buffer.limit((int) end);
+            byte[] scratch = new byte[256];
+            data.title = readString(buffer, scratch);
+            List<MediaMetadataCompat> queue = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                queue.add(readRecord(buffer, scratch));
+            }
+            if (buffer.position() != log) {
+                return null;
+            }
+            // 按顺序重放修改记录
+            while (buffer.position() < end) {
+                byte op = buffer.get();
+                int first = buffer.getInt();
+                int second = buffer.getInt();
+                if (op == OP_INSERT && first >= 0 && first <= queue.size() && second >= 0) {
+                    List<MediaMetadataCompat> added = new ArrayList<>(second);
+                    for (int i = 0; i < second; i++) {
+                        added.add(readRecord(buffer, scratch));
+                    }
+                    queue.addAll(first, added);
+                } else if (op == OP_REMOVE && first >= 0 && second >= 0
+                        && first + second <= queue.size()) {
+                    queue.subList(first, first + second).clear();
+                } else if (op == OP_MOVE && first >= 0 && first < queue.size()
+                        && second >= 0 && second < queue.size()) {
+                    queue.add(second, queue.remove(first));
+                } else {
+                    return null;
+                }
+            }
+            data.queue = queue;
+            return data;
+        } catch (Exception e) {
+            Log.e(TAG, "restore: " + e.getMessage());
+            return null;
+        } finally {
+            closeQuietly(file);
+        }
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 写入store中index处的音频数据
+     */
+    private static void writeRecord(DataOutputStream out, QueueStore store, int index)
+            throws IOException {
+        for (int k = 0; k < STRING_KEYS.length; k++) {
+            writeString(out, store.getString(k, index));
+        }
+        out.writeLong(store.getDuration(index));
+    }
+
+    /**
+     * 读取一条音频数据
+     */
+    private static MediaMetadataCompat readRecord(ByteBuffer buffer, byte[] scratch) {
+        MediaMetadataCompat.Builder builder = new MediaMetadataCompat.Builder();
+        for (String key : STRING_KEYS) {
+            String value = readString(buffer, scratch);
+            if (value != null) {
+                builder.putString(key, value);
+            }
+        }
+        builder.putLong(MediaMetadataCompat.METADATA_KEY_DURATION, buffer.getLong());
+        return builder.build();
+    }
+
+    /**
+     * 写入字符串：长度(-1表示null) + UTF-8数据
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * 读取字符串
+     */
+    private static String readString(ByteBuffer buffer, byte[] scratch) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+        buffer.get(bytes, 0, length);
+        return new String(bytes, 0, length, UTF_8);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 快照数据
+     */
+    public static class Data {
+        // 队列名
+        public String title;
+        // 播放队列
+        public List<MediaMetadataCompat> queue;
+        // 当前播放的index
+        public int index;
+        // 当前播放位置
+        public long position;
+    }
+}
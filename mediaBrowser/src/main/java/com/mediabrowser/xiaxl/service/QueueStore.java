@@ -0,0 +1,423 @@
+package com.mediabrowser.xiaxl.service;
+
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+
+import com.mediabrowser.xiaxl.client.utils.MusicMetadataConstant;
+import com.mediabrowser.xiaxl.client.utils.StringPool;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 播放队列的紧凑存储
+ * <p>
+ * Stores queue metadata column by column: one String[] per key in {@link #STRING_KEYS}, plus
+ * long[] for durations and queueIds. Repeated artists, albums, genres and art URLs go through
+ * the shared {@link StringPool}, so each distinct value is kept once. {@link MediaMetadataCompat} and {@link MediaSessionCompat.QueueItem}
+ * objects are only built on demand, for the current item and the published window.
+ * <p>
+ * The columns are split into immutable chunks of at most {@link #CHUNK_SIZE} items, found by
+ * binary search over their start indexes. An edit rebuilds only the chunks it touches plus
+ * the array of chunk references, so inserting, removing or moving d items costs
+ * O(d + CHUNK_SIZE + size / CHUNK_SIZE) instead of a copy of every column. Rebuilt chunks are
+ * merged with a neighbour when they would fall below half a chunk, which keeps the number of
+ * chunks within 2 * size / CHUNK_SIZE + 1.
+ * <p>
+ * Lookups by mediaId and queueId do not store positions, which every insert or remove before
+ * them would shift. Instead a {@link HashTrie} maps mediaId to queueId, which never changes,
+ * and another maps queueId to the chunk holding it; the position is the chunk's start plus a
+ * scan of its at most {@link #CHUNK_SIZE} queueIds. An edit updates the entries of the added
+ * and removed items and of the rebuilt chunks only. MediaIds are unique within a store.
+ * <p>
+ * Instances are immutable; every change returns a new store sharing the untouched chunks.
+ */
+public final class QueueStore {
+
+    // 按列保存的字符串数据
+    public static final String[] STRING_KEYS = {
+            MediaMetadataCompat.METADATA_KEY_MEDIA_ID,
+            MediaMetadataCompat.METADATA_KEY_TITLE,
+            MediaMetadataCompat.METADATA_KEY_ARTIST,
+            MediaMetadataCompat.METADATA_KEY_ALBUM,
+            MediaMetadataCompat.METADATA_KEY_GENRE,
+            MediaMetadataCompat.METADATA_KEY_DISPLAY_DESCRIPTION,
+            MediaMetadataCompat.METADATA_KEY_ART_URI,
+            MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI,
+            MusicMetadataConstant.CUSTOM_METADATA_TRACK_SOURCE,
+            MusicMetadataConstant.CUSTOM_METADATA_PAY_TYPE
+    };
+    // mediaId 所在的列
+    private static final int COLUMN_MEDIA_ID = 0;
+    // 重复率高、需要去重的列：歌手、专辑、流派、封面地址、付费状态
+    private static final boolean[] POOLED_COLUMNS = {
+            false, false, true, true, true, false, true, true, false, true
+    };
+    // 每块的最大数量，重建的块不少于一半
+    static final int CHUNK_SIZE = 256;
+
+    // 空队列
+    static final QueueStore EMPTY = new QueueStore(new Chunk[0],
+            HashTrie.<String, Long>empty(), HashTrie.<Long, Chunk>empty());
+
+    // 数量
+    private final int mSize;
+    // 按顺序排列的块
+    private final Chunk[] mChunks;
+    // mStarts[c] 为第c块第一个音频的index，mStarts[mChunks.length] == mSize
+    private final int[] mStarts;
+    // 块 -> 在 mChunks 中的位置
+    private final Map<Chunk, Integer> mChunkIndex;
+    // mediaId -> queueId
+    private final HashTrie<String, Long> mQueueIdByMediaId;
+    // queueId -> 所在的块
+    private final HashTrie<Long, Chunk> mChunkByQueueId;
+
+
+    private QueueStore(Chunk[] chunks, HashTrie<String, Long> queueIdByMediaId,
+                       HashTrie<Long, Chunk> chunkByQueueId) {
+        mChunks = chunks;
+        mStarts = new int[chunks.length + 1];
+        mChunkIndex = new IdentityHashMap<>(chunks.length);
+        for (int c = 0; c < chunks.length; c++) {
+            mStarts[c + 1] = mStarts[c] + chunks[c].mSize;
+            mChunkIndex.put(chunks[c], c);
+        }
+        mSize = mStarts[chunks.length];
+        mQueueIdByMediaId = queueIdByMediaId;
+        mChunkByQueueId = chunkByQueueId;
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 由 MediaMetadataCompat 列表创建
+     *
+     * @param list
+     * @param firstQueueId 第一个音频的queueId，之后依次递增
+     * @return
+     */
+    public static QueueStore of(List<MediaMetadataCompat> list, long firstQueueId) {
+        return EMPTY.insert(0, list, firstQueueId);
+    }
+
+    /**
+     * 在position处插入数据
+     */
+    public QueueStore insert(int position, List<MediaMetadataCompat> list, long firstQueueId) {
+        Chunk inserted = new Chunk(list.size());
+        inserted.fill(0, list, firstQueueId);
+        return splice(position, position, inserted, 0, inserted.mSize);
+    }
+
+    /**
+     * 移除[from, to)范围内的数据
+     */
+    public QueueStore remove(int from, int to) {
+        return splice(from, to, null, 0, 0);
+    }
+
+    /**
+     * 将from处的数据移动到to处
+     */
+    public QueueStore move(int from, int to) {
+        int c = chunkAt(from);
+        Chunk chunk = mChunks[c];
+        int offset = from - mStarts[c];
+        return remove(from, from + 1).splice(to, to, chunk, offset, offset + 1);
+    }
+
+    /**
+     * 用 src 中[srcFrom, srcTo)的数据替换[from, to)范围，只重建受影响的块
+     */
+    private QueueStore splice(int from, int to, Chunk src, int srcFrom, int srcTo) {
+        // 受影响的块 [lo, hi)：包含from的块，到包含to的块（to恰好在块的开头时不包含）
+        int lo = from < mSize ? chunkAt(from) : mChunks.length;
+        int hi = to < mSize ? chunkAt(to) : mChunks.length;
+        if (hi < mChunks.length && to > mStarts[hi]) {
+            hi++;
+        }
+        // 保留的前后部分
+        int prefix = lo < hi ? from - mStarts[lo] : 0;
+        int suffix = lo < hi ? mStarts[hi] - Math.max(to, mStarts[hi - 1]) : 0;
+        int count = prefix + (srcTo - srcFrom) + suffix;
+        // 重建的块过小时，合并相邻的块
+        Chunk left = null;
+        Chunk right = null;
+        if (count > 0 && count < CHUNK_SIZE / 2) {
+            if (lo > 0) {
+                left = mChunks[--lo];
+                count += left.mSize;
+            } else if (hi < mChunks.length) {
+                right = mChunks[hi++];
+                count += right.mSize;
+            }
+        }
+        // 依次写入：左侧合并的块、前部、插入的数据、后部、右侧合并的块
+        Chunk middle = new Chunk(count);
+        int position = 0;
+        if (left != null) {
+            middle.copyFrom(left, 0, position, left.mSize);
+            position += left.mSize;
+        }
+        if (prefix > 0) {
+            middle.copyFrom(mChunks[left != null ? lo + 1 : lo], 0, position, prefix);
+            position += prefix;
+        }
+        if (src != null) {
+            middle.copyFrom(src, srcFrom, position, srcTo - srcFrom);
+            position += srcTo - srcFrom;
+        }
+        if (suffix > 0) {
+            Chunk last = mChunks[right != null ? hi - 2 : hi - 1];
+            middle.copyFrom(last, last.mSize - suffix, position, suffix);
+            position += suffix;
+        }
+        if (right != null) {
+            middle.copyFrom(right, 0, position, right.mSize);
+        }
+        // 查找表：移除的音频、插入的音频、以及重建的块中的所有音频
+        HashTrie.Builder<String, Long> queueIdByMediaId = mQueueIdByMediaId.toBuilder();
+        HashTrie.Builder<Long, Chunk> chunkByQueueId = mChunkByQueueId.toBuilder();
+        for (int c = from < to ? chunkAt(from) : 0; from < to && c < mChunks.length && mStarts[c] < to; c++) {
+            Chunk chunk = mChunks[c];
+            int end = Math.min(to, mStarts[c + 1]) - mStarts[c];
+            for (int i = Math.max(from, mStarts[c]) - mStarts[c]; i < end; i++) {
+                String mediaId = chunk.mColumns[COLUMN_MEDIA_ID][i];
+                if (mediaId != null) {
+                    queueIdByMediaId.remove(mediaId);
+                }
+                chunkByQueueId.remove(chunk.mQueueIds[i]);
+            }
+        }
+        for (int i = srcFrom; i < srcTo; i++) {
+            String mediaId = src.mColumns[COLUMN_MEDIA_ID][i];
+            if (mediaId != null) {
+                queueIdByMediaId.put(mediaId, src.mQueueIds[i]);
+            }
+        }
+        // 按相近的大小切分
+        int pieces = (count + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        Chunk[] chunks = new Chunk[mChunks.length - (hi - lo) + pieces];
+        System.arraycopy(mChunks, 0, chunks, 0, lo);
+        int offset = 0;
+        for (int i = 0; i < pieces; i++) {
+            int size = count / pieces + (i < count % pieces ? 1 : 0);
+            Chunk piece = middle;
+            if (pieces > 1) {
+                piece = new Chunk(size);
+                piece.copyFrom(middle, offset, 0, size);
+            }
+            for (int j = 0; j < size; j++) {
+                chunkByQueueId.put(piece.mQueueIds[j], piece);
+            }
+            chunks[lo + i] = piece;
+            offset += size;
+        }
+        System.arraycopy(mChunks, hi, chunks, lo + pieces, mChunks.length - hi);
+        return new QueueStore(chunks, queueIdByMediaId.build(), chunkByQueueId.build());
+    }
+
+    /**
+     * index所在的块
+     */
+    private int chunkAt(int index) {
+        int low = 0;
+        int high = mChunks.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (mStarts[mid] <= index) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 数量
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * 对应mediaId的index
+     *
+     * @return 不存在时返回-1
+     */
+    public int indexOf(String mediaId) {
+        if (mediaId == null) {
+            return -1;
+        }
+        Long queueId = mQueueIdByMediaId.get(mediaId);
+        return queueId == null ? -1 : indexOfQueueId(queueId);
+    }
+
+    /**
+     * 对应queueId的index
+     *
+     * @return 不存在时返回-1
+     */
+    public int indexOfQueueId(long queueId) {
+        Chunk chunk = mChunkByQueueId.get(queueId);
+        if (chunk == null) {
+            return -1;
+        }
+        int start = mStarts[mChunkIndex.get(chunk)];
+        long[] queueIds = chunk.mQueueIds;
+        for (int i = 0; i < chunk.mSize; i++) {
+            if (queueIds[i] == queueId) {
+                return start + i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 对应index的 mediaId
+     */
+    public String getMediaId(int index) {
+        return getString(COLUMN_MEDIA_ID, index);
+    }
+
+    /**
+     * 对应index的字符串数据
+     *
+     * @param column {@link #STRING_KEYS} 中的位置
+     */
+    public String getString(int column, int index) {
+        int c = chunkAt(index);
+        return mChunks[c].mColumns[column][index - mStarts[c]];
+    }
+
+    /**
+     * 对应index的时长
+     */
+    public long getDuration(int index) {
+        int c = chunkAt(index);
+        return mChunks[c].mDurations[index - mStarts[c]];
+    }
+
+    /**
+     * 对应index的 queueId
+     */
+    public long getQueueId(int index) {
+        int c = chunkAt(index);
+        return mChunks[c].mQueueIds[index - mStarts[c]];
+    }
+
+    /**
+     * 创建对应index的 MediaMetadataCompat
+     */
+    public MediaMetadataCompat buildMetadata(int index) {
+        int c = chunkAt(index);
+        return mChunks[c].buildMetadata(index - mStarts[c]);
+    }
+
+    /**
+     * 创建对应index的 QueueItem
+     */
+    public MediaSessionCompat.QueueItem buildQueueItem(int index) {
+        return new MediaSessionCompat.QueueItem(buildMetadata(index).getDescription(),
+                getQueueId(index));
+    }
+
+    /**
+     * 创建[from, to)范围内的 QueueItem
+     */
+    public List<MediaSessionCompat.QueueItem> buildQueueItems(int from, int to) {
+        List<MediaSessionCompat.QueueItem> items = new ArrayList<>(Math.max(0, to - from));
+        for (int i = from; i < to; i++) {
+            items.add(buildQueueItem(i));
+        }
+        return items;
+    }
+
+    /**
+     * 创建所有的 MediaMetadataCompat
+     */
+    public List<MediaMetadataCompat> buildAllMetadata() {
+        List<MediaMetadataCompat> list = new ArrayList<>(mSize);
+        for (Chunk chunk : mChunks) {
+            for (int i = 0; i < chunk.mSize; i++) {
+                list.add(chunk.buildMetadata(i));
+            }
+        }
+        return list;
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 一块连续的音频数据，创建并写入后不再修改
+     */
+    private static final class Chunk {
+        // 数量
+        final int mSize;
+        // mColumns[key][index]
+        final String[][] mColumns;
+        // 时长
+        final long[] mDurations;
+        // queueId
+        final long[] mQueueIds;
+
+        Chunk(int size) {
+            mSize = size;
+            mColumns = new String[STRING_KEYS.length][size];
+            mDurations = new long[size];
+            mQueueIds = new long[size];
+        }
+
+        /**
+         * 复制src中[srcPos, srcPos + length)的数据到dstPos
+         */
+        void copyFrom(Chunk src, int srcPos, int dstPos, int length) {
+            if (length <= 0) {
+                return;
+            }
+            for (int k = 0; k < STRING_KEYS.length; k++) {
+                System.arraycopy(src.mColumns[k], srcPos, mColumns[k], dstPos, length);
+            }
+            System.arraycopy(src.mDurations, srcPos, mDurations, dstPos, length);
+            System.arraycopy(src.mQueueIds, srcPos, mQueueIds, dstPos, length);
+        }
+
+        /**
+         * 从position开始写入数据，重复率高的字符串只保存一份
+         */
+        void fill(int position, List<MediaMetadataCompat> list, long firstQueueId) {
+            StringPool pool = StringPool.getDefault();
+            int index = position;
+            for (MediaMetadataCompat metadata : list) {
+                for (int k = 0; k < STRING_KEYS.length; k++) {
+                    String value = metadata.getString(STRING_KEYS[k]);
+                    mColumns[k][index] = POOLED_COLUMNS[k] ? pool.intern(value) : value;
+                }
+                mDurations[index] = metadata.getLong(MediaMetadataCompat.METADATA_KEY_DURATION);
+                mQueueIds[index] = firstQueueId++;
+                index++;
+            }
+        }
+
+        MediaMetadataCompat buildMetadata(int index) {
+            MediaMetadataCompat.Builder builder = new MediaMetadataCompat.Builder();
+            for (int k = 0; k < STRING_KEYS.length; k++) {
+                String value = mColumns[k][index];
+                if (value != null) {
+                    builder.putString(STRING_KEYS[k], value);
+                }
+            }
+            builder.putLong(MediaMetadataCompat.METADATA_KEY_DURATION, mDurations[index]);
+            return builder.build();
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package com.mediabrowser.xiaxl.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 播放队列的搜索索引
+ * <p>
+ * Inverted index from token to the tracks whose title, artist, album or genre contain it.
+ * Latin text is split into lower-cased words; CJK, kana and hangul are indexed one character
+ * per token, since those titles have no spaces. A track is indexed once, the first time it
+ * enters any queue, so the index also covers tracks of cached queues and ones since removed.
+ * A {@link Filter} passed to the search is applied while ranking, so tracks that have left
+ * every queue never take one of the limit slots. It is only asked about tracks that would
+ * enter the current top, not about every candidate.
+ * <p>
+ * A query ranks tracks by how many of its tokens they contain, then by the weight of the
+ * fields that matched (title > artist > album > genre). Scores are accumulated in reusable
+ * int[] arrays, so a query touches only the posting lists of its own tokens.
+ * <p>
+ * Partial matches are returned only when no track contains every token, so a query whose
+ * tokens are all indexed first walks its shortest posting list and binary-searches the
+ * others. A token found in most of the catalog (e.g. "album 42") then costs a few lookups
+ * per candidate instead of a pass over its whole list.
+ * <p>
+ * Not thread safe; used on the main thread together with {@link MusicQueue}.
+ */
+public class SearchIndex {
+
+    /**
+     * 搜索结果的过滤条件
+     */
+    public interface Filter {
+        /**
+         * @param mediaId
+         * @return 是否可以作为搜索结果
+         */
+        boolean accept(String mediaId);
+    }
+
+    // 建索引的字段：QueueStore.STRING_KEYS 中的列
+    private static final int[] FIELD_COLUMNS = {1, 2, 3, 4};
+    // 字段权重：title、artist、album、genre
+    private static final int[] FIELD_WEIGHTS = {8, 4, 2, 1};
+    // 索引中最多的音频数量，超出时清空重建
+    private static final int MAX_DOCUMENTS = 200000;
+    // posting 中字段掩码占用的位数
+    private static final int FIELD_BITS = 4;
+
+    // token -> posting列表，每一项为 doc << FIELD_BITS | 字段掩码
+    private final Map<String, Postings> mPostings = new HashMap<>();
+    // mediaId -> doc
+    private final Map<String, Integer> mDocByMediaId = new HashMap<>();
+    // doc -> mediaId
+    private String[] mMediaIds = new String[256];
+    private int mDocCount;
+
+    /**
+     * 查询时复用的数组
+     */
+    private int[] mScores = new int[0];
+    private int[] mMatches = new int[0];
+    private int[] mStamps = new int[0];
+    private int mStamp;
+
+
+    // ##########################################################################################
+
+    /**
+     * 为store中[from, to)范围内的音频建索引，已有索引的mediaId会被忽略
+     *
+     * @param store
+     * @param from
+     * @param to
+     */
+    public void add(QueueStore store, int from, int to) {
+        if (mDocCount + (to - from) > MAX_DOCUMENTS) {
+            clear();
+        }
+        List<String> tokens = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            String mediaId = store.getMediaId(i);
+            if (mediaId == null || mDocByMediaId.containsKey(mediaId)) {
+                continue;
+            }
+            int doc = newDocument(mediaId);
+            for (int f = 0; f < FIELD_COLUMNS.length; f++) {
+                tokens.clear();
+                tokenize(store.getString(FIELD_COLUMNS[f], i), tokens);
+                for (String token : tokens) {
+                    Postings postings = mPostings.get(token);
+                    if (postings == null) {
+                        postings = new Postings();
+                        mPostings.put(token, postings);
+                    }
+                    postings.add(doc, 1 << f);
+                }
+            }
+        }
+    }
+
+    private int newDocument(String mediaId) {
+        if (mDocCount == mMediaIds.length) {
+            String[] mediaIds = new String[mDocCount * 2];
+            System.arraycopy(mMediaIds, 0, mediaIds, 0, mDocCount);
+            mMediaIds = mediaIds;
+        }
+        int doc = mDocCount++;
+        mMediaIds[doc] = mediaId;
+        mDocByMediaId.put(mediaId, doc);
+        return doc;
+    }
+
+    /**
+     * 清空
+     */
+    public void clear() {
+        mPostings.clear();
+        mDocByMediaId.clear();
+        mMediaIds = new String[256];
+        mDocCount = 0;
+        mScores = new int[0];
+        mMatches = new int[0];
+        mStamps = new int[0];
+    }
+
+    /**
+     * 索引中的音频数量
+     */
+    public int size() {
+        return mDocCount;
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 搜索
+     *
+     * @param query
+     * @param limit  最多返回的数量
+     * @param filter 过滤条件，为null时不过滤
+     * @return 按匹配程度排序的mediaId
+     */
+    public List<String> search(String query, int limit, Filter filter) {
+        List<String> tokens = new ArrayList<>();
+        tokenize(query, tokens);
+        List<String> result = new ArrayList<>();
+        if (tokens.isEmpty() || limit <= 0 || mDocCount == 0) {
+            return result;
+        }
+        if (mStamps.length < mDocCount) {
+            mScores = new int[mDocCount];
+            mMatches = new int[mDocCount];
+            mStamps = new int[mDocCount];
+            mStamp = 0;
+        }
+        // 去重后的token对应的posting列表
+        int queryTokens = 0;
+        List<Postings> lists = new ArrayList<>();
+        for (int t = 0; t < tokens.size(); t++) {
+            String token = tokens.get(t);
+            if (tokens.indexOf(token) != t) {
+                continue;
+            }
+            queryTokens++;
+            Postings postings = mPostings.get(token);
+            if (postings != null) {
+                lists.add(postings);
+            }
+        }
+        if (queryTokens > 1 && lists.size() == queryTokens
+                && searchFullMatches(lists, limit, filter, result)) {
+            return result;
+        }
+        int stamp = ++mStamp;
+        // 累加每个音频匹配的token数量和字段权重
+        int[] touched = new int[16];
+        int touchedCount = 0;
+        for (Postings postings : lists) {
+            for (int p = 0; p < postings.mSize; p++) {
+                int entry = postings.mEntries[p];
+                int doc = entry >>> FIELD_BITS;
+                if (mStamps[doc] != stamp) {
+                    mStamps[doc] = stamp;
+                    mScores[doc] = 0;
+                    mMatches[doc] = 0;
+                    if (touchedCount == touched.length) {
+                        int[] grown = new int[touchedCount * 2];
+                        System.arraycopy(touched, 0, grown, 0, touchedCount);
+                        touched = grown;
+                    }
+                    touched[touchedCount++] = doc;
+                }
+                mMatches[doc]++;
+                mScores[doc] += fieldWeight(entry & ((1 << FIELD_BITS) - 1));
+            }
+        }
+        // 取前limit个：匹配的token数量优先，其次是字段权重
+        int[] top = new int[Math.min(limit, touchedCount)];
+        long[] topKeys = new long[top.length];
+        int topCount = 0;
+        for (int i = 0; i < touchedCount; i++) {
+            int doc = touched[i];
+            topCount = insertTop(top, topKeys, topCount, doc,
+                    ((long) mMatches[doc] << 32) | mScores[doc], filter);
+        }
+        // 部分匹配的结果只在没有完全匹配时返回
+        boolean hasFullMatch = topCount > 0 && mMatches[top[0]] == queryTokens;
+        for (int i = 0; i < topCount; i++) {
+            if (hasFullMatch && mMatches[top[i]] < queryTokens) {
+                break;
+            }
+            result.add(mMediaIds[top[i]]);
+        }
+        return result;
+    }
+
+    /**
+     * 只在最短的posting列表中查找包含所有token的音频，其余列表二分查找
+     *
+     * @return 是否有通过filter的完全匹配，没有时result不变
+     */
+    private boolean searchFullMatches(List<Postings> lists, int limit, Filter filter,
+                                      List<String> result) {
+        Postings shortest = lists.get(0);
+        for (Postings postings : lists) {
+            if (postings.mSize < shortest.mSize) {
+                shortest = postings;
+            }
+        }
+        int[] top = new int[Math.min(limit, shortest.mSize)];
+        long[] topKeys = new long[top.length];
+        int topCount = 0;
+        for (int p = 0; p < shortest.mSize; p++) {
+            int doc = shortest.mEntries[p] >>> FIELD_BITS;
+            int score = 0;
+            for (Postings postings : lists) {
+                int mask = postings.fieldMask(doc);
+                if (mask == 0) {
+                    score = -1;
+                    break;
+                }
+                score += fieldWeight(mask);
+            }
+            if (score >= 0) {
+                topCount = insertTop(top, topKeys, topCount, doc, score, filter);
+            }
+        }
+        for (int i = 0; i < topCount; i++) {
+            result.add(mMediaIds[top[i]]);
+        }
+        return topCount > 0;
+    }
+
+    /**
+     * 按key从大到小插入top，key相同时先加入的在前，不通过filter的不插入
+     *
+     * @return top中的数量
+     */
+    private int insertTop(int[] top, long[] topKeys, int topCount, int doc, long key,
+                          Filter filter) {
+        if (topCount == top.length && key <= topKeys[topCount - 1]) {
+            return topCount;
+        }
+        // 只检查能进入top的音频
+        if (filter != null && !filter.accept(mMediaIds[doc])) {
+            return topCount;
+        }
+        int pos = topCount == top.length ? topCount - 1 : topCount++;
+        while (pos > 0 && topKeys[pos - 1] < key) {
+            topKeys[pos] = topKeys[pos - 1];
+            top[pos] = top[pos - 1];
+            pos--;
+        }
+        topKeys[pos] = key;
+        top[pos] = doc;
+        return topCount;
+    }
+
+    private static int fieldWeight(int mask) {
+        int weight = 0;
+        for (int f = 0; f < FIELD_WEIGHTS.length; f++) {
+            if ((mask & (1 << f)) != 0) {
+                weight += FIELD_WEIGHTS[f];
+            }
+        }
+        return weight;
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 分词：拉丁字母和数字按单词切分并转为小写，中日韩文字每个字一个token
+     *
+     * @param text
+     * @param out
+     */
+    static void tokenize(String text, List<String> out) {
+        if (text == null) {
+            return;
+        }
+        int length = text.length();
+        int wordStart = -1;
+        for (int i = 0; i < length; ) {
+            int cp = text.codePointAt(i);
+            int next = i + Character.charCount(cp);
+            if (isCjk(cp)) {
+                if (wordStart >= 0) {
+                    out.add(text.substring(wordStart, i).toLowerCase(Locale.ROOT));
+                    wordStart = -1;
+                }
+                out.add(text.substring(i, next));
+            } else if (Character.isLetterOrDigit(cp)) {
+                if (wordStart < 0) {
+                    wordStart = i;
+                }
+            } else if (wordStart >= 0) {
+                out.add(text.substring(wordStart, i).toLowerCase(Locale.ROOT));
+                wordStart = -1;
+            }
+            i = next;
+        }
+        if (wordStart >= 0) {
+            out.add(text.substring(wordStart).toLowerCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * 是否是中日韩文字
+     */
+    static boolean isCjk(int cp) {
+        return (cp >= 0x4E00 && cp <= 0x9FFF)     // CJK统一汉字
+                || (cp >= 0x3400 && cp <= 0x4DBF)  // CJK扩展A
+                || (cp >= 0xF900 && cp <= 0xFAFF)  // CJK兼容汉字
+                || (cp >= 0x3040 && cp <= 0x30FF)  // 平假名、片假名
+                || (cp >= 0xAC00 && cp <= 0xD7AF); // 韩文
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * posting列表
+     */
+    private static final class Postings {
+        private int[] mEntries = new int[2];
+        private int mSize;
+
+        /**
+         * doc按递增顺序加入，同一个doc的多个字段合并为一项
+         */
+        private void add(int doc, int fieldMask) {
+            if (mSize > 0 && (mEntries[mSize - 1] >>> FIELD_BITS) == doc) {
+                mEntries[mSize - 1] |= fieldMask;
+                return;
+            }
+            if (mSize == mEntries.length) {
+                int[] entries = new int[mSize * 2];
+                System.arraycopy(mEntries, 0, entries, 0, mSize);
+                mEntries = entries;
+            }
+            mEntries[mSize++] = (doc << FIELD_BITS) | fieldMask;
+        }
+
+        /**
+         * doc对应的字段掩码
+         *
+         * @return 不包含该doc时返回0
+         */
+        private int fieldMask(int doc) {
+            int low = 0;
+            int high = mSize - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int midDoc = mEntries[mid] >>> FIELD_BITS;
+                if (midDoc < doc) {
+                    low = mid + 1;
+                } else if (midDoc > doc) {
+                    high = mid - 1;
+                } else {
+                    return mEntries[mid] & ((1 << FIELD_BITS) - 1);
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.mediabrowser.xiaxl.service;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+
+import java.util.List;
+
+/**
+ * 合并对 MediaSessionCompat 的更新
+ * <p>
+ * Every setQueue/setMetadata/setPlaybackState on the session is a binder broadcast to each
+ * connected controller. One command usually changes the same field several times (a new
+ * queue publishes the queue, the metadata and two or three playback states), so updates are
+ * only recorded here and flushed once when the current main-thread message is done: queue
+ * first, then metadata, then playback state, the latest value of each.
+ * <p>
+ * Must be used on the main thread, like the session callbacks.
+ */
+public class SessionPublisher {
+
+    private final MediaSessionCompat mSession;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * 等待发布的数据
+     */
+    private boolean mQueuePending;
+    private String mQueueTitle;
+    private List<MediaSessionCompat.QueueItem> mQueue;
+    private boolean mMetadataPending;
+    private MediaMetadataCompat mMetadata;
+    private boolean mPlaybackStatePending;
+    private PlaybackStateCompat mPlaybackState;
+    // 是否已经post了flush
+    private boolean mFlushScheduled;
+    // setPlaybackState 不可用时不再发布播放状态
+    private boolean mPlaybackStateUnsupported;
+
+    /**
+     * 计数：请求次数 / 实际发布次数
+     */
+    private int mQueueRequests;
+    private int mQueuePublishes;
+    private int mMetadataRequests;
+    private int mMetadataPublishes;
+    private int mPlaybackStateRequests;
+    private int mPlaybackStatePublishes;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+
+    public SessionPublisher(MediaSessionCompat session) {
+        this.mSession = session;
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 播放队列
+     */
+    public void setQueue(String title, List<MediaSessionCompat.QueueItem> queue) {
+        mQueueRequests++;
+        mQueueTitle = title;
+        mQueue = queue;
+        mQueuePending = true;
+        scheduleFlush();
+    }
+
+    /**
+     * 当前播放数据
+     */
+    public void setMetadata(MediaMetadataCompat metadata) {
+        mMetadataRequests++;
+        mMetadata = metadata;
+        mMetadataPending = true;
+        scheduleFlush();
+    }
+
+    /**
+     * 播放状态
+     */
+    public void setPlaybackState(PlaybackStateCompat state) {
+        mPlaybackStateRequests++;
+        mPlaybackState = state;
+        mPlaybackStatePending = true;
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.post(mFlushRunnable);
+        }
+    }
+
+    /**
+     * 立即发布所有等待中的数据，需要马上从 MediaControllerCompat 读取最新数据时调用
+     */
+    public void flush() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        mFlushScheduled = false;
+        if (mQueuePending) {
+            mQueuePending = false;
+            mQueuePublishes++;
+            mSession.setQueue(mQueue);
+            mSession.setQueueTitle(mQueueTitle);
+            mQueue = null;
+        }
+        if (mMetadataPending) {
+            mMetadataPending = false;
+            mMetadataPublishes++;
+            mSession.setMetadata(mMetadata);
+            mMetadata = null;
+        }
+        if (mPlaybackStatePending) {
+            mPlaybackStatePending = false;
+            if (!mPlaybackStateUnsupported) {
+                mPlaybackStatePublishes++;
+                try {
+                    mSession.setPlaybackState(mPlaybackState);
+                } catch (NoSuchMethodError e) {
+                    mPlaybackStateUnsupported = true;
+                }
+            }
+            mPlaybackState = null;
+        }
+    }
+
+    /**
+     * 移除等待中的数据
+     */
+    public void release() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        mFlushScheduled = false;
+        mQueuePending = false;
+        mMetadataPending = false;
+        mPlaybackStatePending = false;
+        mQueue = null;
+        mMetadata = null;
+        mPlaybackState = null;
+    }
+
+    @Override
+    public String toString() {
+        return "SessionPublisher{queue=" + mQueuePublishes + "/" + mQueueRequests
+                + ", metadata=" + mMetadataPublishes + "/" + mMetadataRequests
+                + ", playbackState=" + mPlaybackStatePublishes + "/" + mPlaybackStateRequests + "}";
+    }
+}
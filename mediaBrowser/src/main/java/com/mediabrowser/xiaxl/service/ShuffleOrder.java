@@ -0,0 +1,217 @@
+package com.mediabrowser.xiaxl.service;
+
+import java.util.Random;
+
+/**
+ * 随机播放顺序
+ * <p>
+ * The order holds queueIds rather than indexes, so inserting, removing or moving items does
+ * not renumber it. New items are dealt into random slots after the current position. Removed
+ * items stay where they are and are skipped, until they make up half of the order and are
+ * dropped in one pass. Moves need no change at all. Each edit costs O(changed items),
+ * amortized, and the part already played is never reordered, so "previous" walks back through
+ * the same tracks and played tracks do not come round again.
+ * <p>
+ * The queueIds of one queue count up from 0, so the position of each queueId is kept in an
+ * int[] indexed by queueId.
+ * <p>
+ * Not thread safe; used on the session callback thread together with {@link MusicQueue}.
+ */
+final class ShuffleOrder {
+
+    // 按播放顺序排列的queueId，包括已移出队列、尚未清理的
+    private long[] mOrder = new long[16];
+    // mOrder中有效的长度
+    private int mSize;
+    // 其中已移出队列的数量
+    private int mStale;
+    // queueId -> 在mOrder中的位置
+    private int[] mPositions = new int[16];
+    // 当前音频在mOrder中的位置，当前音频已清理时指向它之前的一项
+    private int mPosition;
+    // 随机数
+    private final Random mRandom;
+
+
+    ShuffleOrder(Random random) {
+        this.mRandom = random;
+    }
+
+    /**
+     * Fisher–Yates 重新生成整个随机顺序，当前音频排在第一位
+     *
+     * @param store
+     * @param currentIndex
+     */
+    void reset(QueueStore store, int currentIndex) {
+        int size = store.size();
+        mSize = 0;
+        mStale = 0;
+        mPosition = 0;
+        ensureOrderCapacity(size);
+        for (int i = 0; i < size; i++) {
+            mOrder[i] = store.getQueueId(i);
+        }
+        for (int i = size - 1; i > 0; i--) {
+            int j = mRandom.nextInt(i + 1);
+            long tmp = mOrder[i];
+            mOrder[i] = mOrder[j];
+            mOrder[j] = tmp;
+        }
+        mSize = size;
+        for (int i = 0; i < size; i++) {
+            place(mOrder[i], i);
+        }
+        // 当前音频放到随机顺序的第一位
+        if (currentIndex >= 0 && currentIndex < size) {
+            swap(0, positionOf(store.getQueueId(currentIndex)));
+        }
+    }
+
+    /**
+     * 队列中 [from, to) 为新插入的音频，逐个放到当前位置之后的随机位置
+     *
+     * @param store
+     * @param from
+     * @param to
+     */
+    void insert(QueueStore store, int from, int to) {
+        ensureOrderCapacity(mSize + to - from);
+        for (int i = from; i < to; i++) {
+            int position = mSize++;
+            place(store.getQueueId(i), position);
+            // 在 (mPosition, position] 中随机选一项交换，已播放的部分不变
+            int first = Math.min(mPosition + 1, position);
+            swap(position, first + mRandom.nextInt(position - first + 1));
+        }
+    }
+
+    /**
+     * count首音频已移出队列
+     *
+     * @param store 移除之后的队列
+     * @param count
+     */
+    void remove(QueueStore store, int count) {
+        mStale += count;
+        if (mStale * 2 > mSize) {
+            compact(store);
+        }
+    }
+
+    /**
+     * 当前音频变化后同步位置，不在随机顺序中时不变
+     *
+     * @param queueId
+     */
+    void setCurrent(long queueId) {
+        int position = positionOf(queueId);
+        if (position >= 0) {
+            mPosition = position;
+        }
+    }
+
+    /**
+     * 从当前位置跳过amount首后的index，已移出队列的音频不计入
+     *
+     * @param store
+     * @param amount
+     * @param repeatAll 越过两端后是否回绕
+     * @return 无法跳过时返回-1
+     */
+    int skip(QueueStore store, int amount, boolean repeatAll) {
+        if (mSize - mStale <= 0) {
+            return -1;
+        }
+        // 没有已移出的音频时直接计算位置
+        if (mStale == 0) {
+            int position = mPosition + amount;
+            if (repeatAll) {
+                position = ((position % mSize) + mSize) % mSize;
+            }
+            if (position < 0 || position >= mSize) {
+                return -1;
+            }
+            return store.indexOfQueueId(mOrder[position]);
+        }
+        int step = amount < 0 ? -1 : 1;
+        int remaining = Math.abs(amount);
+        int position = mPosition;
+        int index = remaining == 0 && position >= 0 ? store.indexOfQueueId(mOrder[position]) : -1;
+        while (remaining > 0) {
+            position += step;
+            if (position < 0 || position >= mSize) {
+                if (!repeatAll) {
+                    return -1;
+                }
+                position = position < 0 ? mSize - 1 : 0;
+            }
+            index = store.indexOfQueueId(mOrder[position]);
+            if (index >= 0) {
+                remaining--;
+            }
+        }
+        return index;
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 清理已移出队列的音频，保持其余音频的顺序
+     */
+    private void compact(QueueStore store) {
+        int kept = 0;
+        int current = -1;
+        for (int i = 0; i < mSize; i++) {
+            long queueId = mOrder[i];
+            boolean live = store.indexOfQueueId(queueId) >= 0;
+            if (i == mPosition) {
+                current = live ? kept : kept - 1;
+            }
+            if (live) {
+                mOrder[kept] = queueId;
+                mPositions[(int) queueId] = kept;
+                kept++;
+            }
+        }
+        mSize = kept;
+        mStale = 0;
+        mPosition = current;
+    }
+
+    private int positionOf(long queueId) {
+        if (queueId < 0 || queueId >= mPositions.length) {
+            return -1;
+        }
+        int position = mPositions[(int) queueId];
+        return position < mSize && mOrder[position] == queueId ? position : -1;
+    }
+
+    private void place(long queueId, int position) {
+        if (queueId >= mPositions.length) {
+            int[] positions = new int[(int) Math.max(queueId + 1, mPositions.length * 2L)];
+            System.arraycopy(mPositions, 0, positions, 0, mPositions.length);
+            mPositions = positions;
+        }
+        mOrder[position] = queueId;
+        mPositions[(int) queueId] = position;
+    }
+
+    private void swap(int i, int j) {
+        long a = mOrder[i];
+        long b = mOrder[j];
+        mOrder[i] = b;
+        mOrder[j] = a;
+        mPositions[(int) b] = i;
+        mPositions[(int) a] = j;
+    }
+
+    private void ensureOrderCapacity(int capacity) {
+        if (capacity > mOrder.length) {
+            long[] order = new long[Math.max(capacity, mOrder.length * 2)];
+            System.arraycopy(mOrder, 0, order, 0, mSize);
+            mOrder = order;
+        }
+    }
+}
@@ -0,0 +1,510 @@
+package com.mediabrowser.xiaxl.service.cache;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * 音频的磁盘缓存
+ * <p>
+ * Complete tracks keyed by their source url, bounded by {@link #MAX_SIZE} with least recently
+ * used eviction. The index lives in memory, so {@link #get(String)} does no disk I/O beyond a
+ * stat; it is rebuilt from an append-only journal on start:
+ * <pre>
+ *     CLEAN key length crc32
+ *     READ key
+ *     REMOVE key
+ * </pre>
+ * A complete file is renamed to key.audio and only then recorded CLEAN, so after a crash a
+ * file without a CLEAN line, or a torn last line, is simply dropped. Once
+ * loaded, every entry is re-read in the background and removed if its length or CRC32 no
+ * longer match. The journal is compacted through a temp file and a rename when it has
+ * grown well past the number of entries.
+ * <p>
+ * Files are filled by {@link CacheProxyServer} while they stream. Thread safe: the index is
+ * guarded by this object, journal writes and verification run on one background thread.
+ * A delete queued on that thread may run after the same key was put again, so it checks
+ * under the lock that the key is neither indexed nor being put, and deletes while still
+ * holding it; put only renames after registering the key under the same lock. Removals
+ * triggered by a failed check only drop the entry they checked, not one put since.
+ */
+public class AudioDiskCache {
+
+    private static final String TAG = "AudioDiskCache";
+
+    // 缓存目录
+    private static final String CACHE_DIR = "audio_cache";
+    private static final String JOURNAL_FILE = "journal";
+    private static final String AUDIO_SUFFIX = ".audio";
+    private static final String TMP_SUFFIX = ".tmp";
+    // 日志中的操作
+    private static final String CLEAN = "CLEAN";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+    // 缓存的最大字节数
+    private static final long MAX_SIZE = 200L * 1024 * 1024;
+    // 日志行数超过 条目数 + 该值 时压缩日志
+    private static final int JOURNAL_COMPACT_SLACK = 2000;
+
+    // 缓存目录
+    private final File mDir;
+    // 写日志、校验文件的线程
+    private final ExecutorService mJournalExecutor = Executors.newSingleThreadExecutor();
+    // key -> 条目，按访问顺序排列
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    // 正在移入缓存目录、尚未加入 mEntries 的 key，读取日志和删除文件时不能删除它们的文件
+    private final Set<String> mPutting = new HashSet<>();
+    // 所有条目的总字节数
+    private long mSize;
+    // 日志是否已读取
+    private boolean mLoaded;
+    // 日志
+    private Writer mJournalWriter;
+    private int mJournalLines;
+
+
+    /**
+     * 构造方法
+     *
+     * @param context
+     */
+    public AudioDiskCache(Context context) {
+        this.mDir = new File(context.getCacheDir(), CACHE_DIR);
+        // 读取日志，之后在后台校验已缓存的文件
+        mJournalExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+                verify();
+            }
+        });
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 已缓存的完整音频文件
+     *
+     * @param source 音频的网络地址
+     * @return 未缓存或日志尚未读取完成时返回null
+     */
+    public File get(String source) {
+        if (source == null) {
+            return null;
+        }
+        String key = TrackHeadPrefetcher.fileName(source);
+        File file;
+        Entry entry;
+        synchronized (this) {
+            entry = mEntries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            file = audioFile(key);
+        }
+        // 文件被系统清理
+        if (!file.exists()) {
+            if (remove(key, entry)) {
+                deleteFile(key);
+            }
+            return null;
+        }
+        appendJournal(READ + ' ' + key);
+        return file;
+    }
+
+    /**
+     * 将下载完成的文件加入缓存，文件被移动到缓存目录
+     *
+     * @param source 音频的网络地址
+     * @param file   完整的音频文件，需要与缓存目录在同一个分区
+     * @param length 文件长度
+     * @param crc    文件的CRC32
+     * @return 缓存中的文件，失败时返回null
+     */
+    public File put(String source, File file, long length, long crc) {
+        if (length > MAX_SIZE || (!mDir.exists() && !mDir.mkdirs())) {
+            return null;
+        }
+        String key = TrackHeadPrefetcher.fileName(source);
+        File cached = audioFile(key);
+        synchronized (this) {
+            mPutting.add(key);
+        }
+        if (!file.renameTo(cached)) {
+            Log.w(TAG, "put: rename failed");
+            synchronized (this) {
+                mPutting.remove(key);
+            }
+            return null;
+        }
+        synchronized (this) {
+            mPutting.remove(key);
+            Entry old = mEntries.put(key, new Entry(length, crc));
+            if (old != null) {
+                mSize -= old.mLength;
+            }
+            mSize += length;
+        }
+        appendJournal(CLEAN + ' ' + key + ' ' + length + ' ' + crc);
+        trimToSize();
+        return cached;
+    }
+
+    /**
+     * 已缓存的字节数
+     */
+    public synchronized long size() {
+        return mSize;
+    }
+
+    /**
+     * 停止后台线程
+     */
+    public void release() {
+        mJournalExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                TrackHeadPrefetcher.closeQuietly(mJournalWriter);
+                mJournalWriter = null;
+            }
+        });
+        mJournalExecutor.shutdown();
+    }
+
+    /**
+     * 停止后台线程并等待已提交的任务完成，测试用
+     *
+     * @param timeoutMs
+     * @return 是否在超时前完成
+     * @throws InterruptedException
+     */
+    boolean releaseAndWait(long timeoutMs) throws InterruptedException {
+        release();
+        return mJournalExecutor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return TAG + "{entries=" + mEntries.size() + ", size=" + mSize + "}";
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 超出最大字节数时删除最久未使用的音频
+     */
+    private void trimToSize() {
+        List<String> removed = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+            while (mSize > MAX_SIZE && iterator.hasNext()) {
+                Map.Entry<String, Entry> eldest = iterator.next();
+                mSize -= eldest.getValue().mLength;
+                iterator.remove();
+                removed.add(eldest.getKey());
+            }
+        }
+        for (String key : removed) {
+            deleteFile(key);
+        }
+    }
+
+    /**
+     * 从索引中移除条目，期间key已被重新put时不变
+     *
+     * @param key
+     * @param entry 检查过的条目
+     * @return 是否已移除，需要再删除文件
+     */
+    private synchronized boolean remove(String key, Entry entry) {
+        if (mEntries.get(key) != entry) {
+            return false;
+        }
+        mEntries.remove(key);
+        mSize -= entry.mLength;
+        return true;
+    }
+
+    /**
+     * 在日志线程中删除文件并写入日志
+     */
+    private void deleteFile(final String key) {
+        mJournalExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                deleteFileNow(key);
+            }
+        });
+    }
+
+    /**
+     * 删除文件并写入日志，只在日志线程中调用
+     */
+    private void deleteFileNow(String key) {
+        synchronized (this) {
+            // 删除排队期间key又被put，文件已是新的
+            if (mEntries.containsKey(key) || mPutting.contains(key)) {
+                return;
+            }
+            audioFile(key).delete();
+        }
+        writeJournal(REMOVE + ' ' + key);
+    }
+
+    private File audioFile(String key) {
+        return new File(mDir, key + AUDIO_SUFFIX);
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 读取日志，删除没有记录的文件
+     */
+    private void load() {
+        File journal = new File(mDir, JOURNAL_FILE);
+        LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        int lines = 0;
+        if (journal.exists()) {
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new FileReader(journal));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines++;
+                    readJournalLine(line, entries);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "load: " + e.getMessage());
+            } finally {
+                TrackHeadPrefetcher.closeQuietly(reader);
+            }
+        }
+        synchronized (this) {
+            // 读取日志期间下载完成的条目
+            entries.putAll(mEntries);
+            mEntries.clear();
+            mEntries.putAll(entries);
+            mSize = 0;
+            for (Entry entry : mEntries.values()) {
+                mSize += entry.mLength;
+            }
+            mLoaded = true;
+        }
+        // 删除没有记录的文件和临时文件
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (JOURNAL_FILE.equals(name)) {
+                    continue;
+                }
+                int dot = name.lastIndexOf('.');
+                String key = dot < 0 ? name : name.substring(0, dot);
+                synchronized (this) {
+                    boolean keep = name.endsWith(AUDIO_SUFFIX)
+                            && (mEntries.containsKey(key) || mPutting.contains(key));
+                    if (!keep) {
+                        file.delete();
+                    }
+                }
+            }
+        }
+        mJournalLines = lines;
+        // 日志可能以写了一半的行结束，重写一次
+        compactJournal();
+        trimToSize();
+    }
+
+    /**
+     * 日志的一行，格式不对的行（例如写了一半）被忽略
+     */
+    private static void readJournalLine(String line, Map<String, Entry> entries) {
+        String[] parts = line.split(" ");
+        try {
+            if (CLEAN.equals(parts[0]) && parts.length == 4) {
+                entries.put(parts[1], new Entry(Long.parseLong(parts[2]), Long.parseLong(parts[3])));
+            } else if (READ.equals(parts[0]) && parts.length == 2) {
+                // 移到最近使用
+                entries.get(parts[1]);
+            } else if (REMOVE.equals(parts[0]) && parts.length == 2) {
+                entries.remove(parts[1]);
+            }
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "readJournalLine: " + line);
+        }
+    }
+
+    /**
+     * 在后台逐个校验已缓存的文件，长度或CRC32不一致时移除
+     */
+    private void verify() {
+        List<String> keys;
+        synchronized (this) {
+            keys = new ArrayList<>(mEntries.keySet());
+        }
+        byte[] buffer = new byte[32 * 1024];
+        for (String key : keys) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            Entry entry;
+            synchronized (this) {
+                entry = mEntries.get(key);
+            }
+            if (entry == null) {
+                continue;
+            }
+            if (!isValid(audioFile(key), entry, buffer)) {
+                Log.w(TAG, "verify: corrupt " + key);
+                // 校验期间被重新put的条目不移除
+                if (remove(key, entry)) {
+                    deleteFileNow(key);
+                }
+            }
+        }
+    }
+
+    private static boolean isValid(File file, Entry entry, byte[] buffer) {
+        if (file.length() != entry.mLength) {
+            return false;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            CRC32 crc = new CRC32();
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                crc.update(buffer, 0, read);
+            }
+            return crc.getValue() == entry.mCrc;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            TrackHeadPrefetcher.closeQuietly(in);
+        }
+    }
+
+    /**
+     * 在日志线程中追加一行
+     */
+    private void appendJournal(final String line) {
+        mJournalExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeJournal(line);
+            }
+        });
+    }
+
+    /**
+     * 追加一行日志，只在日志线程中调用
+     */
+    private void writeJournal(String line) {
+        // 日志尚未读取
+        synchronized (this) {
+            if (!mLoaded) {
+                return;
+            }
+        }
+        try {
+            if (mJournalWriter == null) {
+                mJournalWriter = new BufferedWriter(new FileWriter(new File(mDir, JOURNAL_FILE), true));
+            }
+            mJournalWriter.write(line);
+            mJournalWriter.write('\n');
+            mJournalWriter.flush();
+            mJournalLines++;
+        } catch (IOException e) {
+            Log.w(TAG, "writeJournal: " + e.getMessage());
+            TrackHeadPrefetcher.closeQuietly(mJournalWriter);
+            mJournalWriter = null;
+        }
+        int entries;
+        synchronized (this) {
+            entries = mEntries.size();
+        }
+        if (mJournalLines > entries + JOURNAL_COMPACT_SLACK) {
+            compactJournal();
+        }
+    }
+
+    /**
+     * 按当前条目重写日志，只在日志线程中调用
+     */
+    private void compactJournal() {
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            return;
+        }
+        TrackHeadPrefetcher.closeQuietly(mJournalWriter);
+        mJournalWriter = null;
+        File journal = new File(mDir, JOURNAL_FILE);
+        File tmp = new File(mDir, JOURNAL_FILE + TMP_SUFFIX);
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(tmp));
+            int lines = 0;
+            synchronized (this) {
+                // 按访问顺序写入，读取时顺序不变
+                for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                    writer.write(CLEAN + ' ' + entry.getKey() + ' ' + entry.getValue().mLength
+                            + ' ' + entry.getValue().mCrc + '\n');
+                    lines++;
+                }
+            }
+            writer.close();
+            writer = null;
+            // 写完后再替换，进程被杀时保留旧的日志
+            if (!tmp.renameTo(journal)) {
+                throw new IOException("rename failed");
+            }
+            mJournalLines = lines;
+        } catch (IOException e) {
+            Log.w(TAG, "compactJournal: " + e.getMessage());
+            tmp.delete();
+        } finally {
+            TrackHeadPrefetcher.closeQuietly(writer);
+        }
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 缓存条目
+     */
+    private static final class Entry {
+        // 文件长度
+        final long mLength;
+        // 文件的CRC32
+        final long mCrc;
+
+        Entry(long length, long crc) {
+            this.mLength = length;
+            this.mCrc = crc;
+        }
+    }
+}
@@ -0,0 +1,739 @@
+package com.mediabrowser.xiaxl.service.cache;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * 本地缓存代理：边播边缓存
+ * <p>
+ * A small HTTP server on 127.0.0.1 that MediaPlayer is pointed at instead of the remote url
+ * ({@link #getProxyUrl(String)}). Each track being streamed has one partial file that is
+ * filled front to back by a single upstream connection; every request for that track, and
+ * every Range request after a seek back, reads from the file and waits for the filler when
+ * it gets ahead of it. When the file is complete it moves into {@link AudioDiskCache}, so
+ * later plays are served from there. A seek far past the filled part is forwarded upstream
+ * as is and not cached. A head downloaded by {@link TrackHeadPrefetcher} seeds the partial
+ * file, so a skip starts from disk.
+ * <p>
+ * Upstream is any http(s) url, so the proxy can be exercised against a local stand-in
+ * server. The filler stops shortly after the last reader of a track goes away.
+ * <p>
+ * Any app on the device can connect to the port, so only urls from {@link #getProxyUrl}
+ * are served: their path starts with a random token chosen at each {@link #start()}, and
+ * every other request is rejected with 403 instead of being fetched.
+ */
+public class CacheProxyServer {
+
+    private static final String TAG = "CacheProxyServer";
+
+    private static final String HOST = "127.0.0.1";
+    // 超出已缓存部分这么多字节的请求直接转发，不写入缓存
+    private static final long CACHE_SEEK_SLACK = 512 * 1024;
+    // 等待数据的超时时间
+    private static final long WAIT_TIMEOUT = 15 * 1000;
+    // 没有读取者后，继续下载的时间
+    private static final long FILL_IDLE_TIMEOUT = 5 * 1000;
+    // 最多保留的未完成文件数量
+    private static final int MAX_PARTIALS = 8;
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final String DEFAULT_CONTENT_TYPE = "audio/mpeg";
+
+    // 未完成文件的目录
+    private final File mDir;
+    // 完整文件的缓存
+    private final AudioDiskCache mDiskCache;
+    // 预加载的音频开头部分，可以为null
+    private final TrackHeadPrefetcher mPrefetcher;
+    // 接收请求、处理请求和下载的线程
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    // 音频地址 -> 未完成的文件
+    private final Map<String, Partial> mPartials = new HashMap<>();
+    private ServerSocket mServerSocket;
+    private volatile boolean mRunning;
+    // 本次启动的随机路径前缀 "/token/"，只处理 getProxyUrl 生成的地址
+    private volatile String mPathPrefix;
+
+    /**
+     * 统计
+     */
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicLong mBytesFromCache = new AtomicLong();
+    private final AtomicLong mBytesFromNetwork = new AtomicLong();
+
+
+    /**
+     * 构造方法
+     *
+     * @param dir        未完成文件的目录，启动时清空
+     * @param diskCache  完整文件的缓存
+     * @param prefetcher 预加载的音频开头部分，可以为null
+     */
+    public CacheProxyServer(File dir, AudioDiskCache diskCache, TrackHeadPrefetcher prefetcher) {
+        this.mDir = dir;
+        this.mDiskCache = diskCache;
+        this.mPrefetcher = prefetcher;
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 启动代理
+     *
+     * @return 启动失败时返回false，此时 {@link #getProxyUrl(String)} 返回原地址
+     */
+    public synchronized boolean start() {
+        if (mRunning) {
+            return true;
+        }
+        try {
+            mServerSocket = new ServerSocket(0, 8, InetAddress.getByName(HOST));
+        } catch (IOException e) {
+            Log.e(TAG, "start: " + e.getMessage());
+            return false;
+        }
+        // 上次遗留的未完成文件
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        byte[] token = new byte[16];
+        new SecureRandom().nextBytes(token);
+        StringBuilder prefix = new StringBuilder(2 * token.length + 2).append('/');
+        for (byte b : token) {
+            prefix.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        mPathPrefix = prefix.append('/').toString();
+        mRunning = true;
+        final ServerSocket serverSocket = mServerSocket;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (mRunning) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        mExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                handle(socket);
+                            }
+                        });
+                    } catch (IOException e) {
+                        if (mRunning) {
+                            Log.w(TAG, "accept: " + e.getMessage());
+                        }
+                    }
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * 经过代理的播放地址
+     *
+     * @param source 音频地址
+     * @return 代理未启动或不是网络地址时返回原地址
+     */
+    public String getProxyUrl(String source) {
+        ServerSocket serverSocket = mServerSocket;
+        if (!mRunning || serverSocket == null || source == null
+                || !(source.startsWith("http://") || source.startsWith("https://"))) {
+            return source;
+        }
+        try {
+            return "http://" + HOST + ':' + serverSocket.getLocalPort() + mPathPrefix
+                    + URLEncoder.encode(source, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return source;
+        }
+    }
+
+    /**
+     * 停止代理
+     */
+    public synchronized void release() {
+        mRunning = false;
+        TrackHeadPrefetcher.closeQuietly(mServerSocket);
+        mServerSocket = null;
+        mExecutor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return TAG + "{requests=" + mRequestCount.get()
+                + ", fromCache=" + mBytesFromCache.get()
+                + ", fromNetwork=" + mBytesFromNetwork.get() + "}";
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 处理一个请求，只支持GET和Range，路径必须是 getProxyUrl 生成的
+     */
+    private void handle(Socket socket) {
+        try {
+            socket.setSoTimeout((int) WAIT_TIMEOUT);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+            String requestLine = readLine(in);
+            if (requestLine == null) {
+                return;
+            }
+            mRequestCount.incrementAndGet();
+            // Range: bytes=start-end
+            long start = 0;
+            long end = -1;
+            boolean range = false;
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                if (line.regionMatches(true, 0, "Range:", 0, 6)) {
+                    int eq = line.indexOf('=');
+                    int dash = line.indexOf('-', eq);
+                    if (eq > 0 && dash > eq) {
+                        try {
+                            start = Long.parseLong(line.substring(eq + 1, dash).trim());
+                            String last = line.substring(dash + 1).trim();
+                            end = last.isEmpty() ? -1 : Long.parseLong(last);
+                            range = true;
+                        } catch (NumberFormatException e) {
+                            start = 0;
+                            end = -1;
+                        }
+                    }
+                }
+            }
+            String[] parts = requestLine.split(" ");
+            if (parts.length < 2 || !"GET".equals(parts[0])) {
+                writeStatus(out, "405 Method Not Allowed");
+                return;
+            }
+            String prefix = mPathPrefix;
+            String source = prefix != null && parts[1].startsWith(prefix)
+                    ? URLDecoder.decode(parts[1].substring(prefix.length()), "UTF-8") : null;
+            if (source == null
+                    || !(source.startsWith("http://") || source.startsWith("https://"))) {
+                writeStatus(out, "403 Forbidden");
+                return;
+            }
+            serve(source, start, end, range, out);
+            out.flush();
+        } catch (IOException e) {
+            // 播放器seek或停止时会关闭连接
+            Log.d(TAG, "handle: " + e.getMessage());
+        } finally {
+            TrackHeadPrefetcher.closeQuietly(socket);
+        }
+    }
+
+    private void serve(String source, long start, long end, boolean range, OutputStream out) throws IOException {
+        // 已完整缓存
+        File cached = mDiskCache == null ? null : mDiskCache.get(source);
+        if (cached != null) {
+            serveFile(cached, start, end, range, out);
+            return;
+        }
+        RandomAccessFile file = null;
+        Partial partial;
+        synchronized (this) {
+            partial = getPartial(source);
+            partial.addReader();
+        }
+        try {
+            // 复制预加载的开头部分，不占用服务器的锁
+            partial.seed(mPrefetcher);
+            synchronized (this) {
+                file = new RandomAccessFile(partial.mFile, "r");
+            }
+            // 远超已缓存部分的seek：直接转发
+            if (start > partial.getAvailable() + CACHE_SEEK_SLACK) {
+                forward(source, start, end, out);
+                return;
+            }
+            partial.awaitInfo();
+            long total = partial.mTotalLength;
+            if (total >= 0 && start >= total) {
+                writeStatus(out, "416 Range Not Satisfiable");
+                return;
+            }
+            long last = total < 0 ? Long.MAX_VALUE : (end < 0 || end >= total ? total - 1 : end);
+            writeHeaders(out, range, start, last, total, partial.mContentType);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = start;
+            while (position <= last) {
+                long available = partial.awaitAvailable(position);
+                // 未知长度的音频已结束
+                if (available < 0) {
+                    break;
+                }
+                file.seek(position);
+                int read = file.read(buffer, 0, (int) Math.min(buffer.length, Math.min(available, last + 1) - position));
+                if (read < 0) {
+                    throw new IOException("partial file truncated");
+                }
+                out.write(buffer, 0, read);
+                position += read;
+                mBytesFromCache.addAndGet(read);
+            }
+        } finally {
+            partial.removeReader();
+            TrackHeadPrefetcher.closeQuietly(file);
+        }
+    }
+
+    /**
+     * 返回完整的缓存文件
+     */
+    private void serveFile(File cached, long start, long end, boolean range, OutputStream out) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(cached, "r");
+        try {
+            long total = file.length();
+            if (start >= total) {
+                writeStatus(out, "416 Range Not Satisfiable");
+                return;
+            }
+            long last = end < 0 || end >= total ? total - 1 : end;
+            writeHeaders(out, range, start, last, total, DEFAULT_CONTENT_TYPE);
+            file.seek(start);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = last - start + 1;
+            while (remaining > 0) {
+                int read = file.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    break;
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+                mBytesFromCache.addAndGet(read);
+            }
+        } finally {
+            TrackHeadPrefetcher.closeQuietly(file);
+        }
+    }
+
+    /**
+     * 直接转发，不写入缓存
+     */
+    private void forward(String source, long start, long end, OutputStream out) throws IOException {
+        HttpURLConnection connection = TrackHeadPrefetcher.openConnection(source, start,
+                end < 0 ? -1 : end - start + 1);
+        InputStream in = null;
+        try {
+            int code = connection.getResponseCode();
+            if (code != HttpURLConnection.HTTP_PARTIAL) {
+                writeStatus(out, "502 Bad Gateway");
+                return;
+            }
+            long total = TrackHeadPrefetcher.totalLength(connection);
+            long length = connection.getContentLength();
+            String contentType = connection.getContentType();
+            writeHeaders(out, true, start, length < 0 ? Long.MAX_VALUE : start + length - 1, total,
+                    contentType == null ? DEFAULT_CONTENT_TYPE : contentType);
+            in = connection.getInputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+                mBytesFromNetwork.addAndGet(read);
+            }
+        } finally {
+            TrackHeadPrefetcher.closeQuietly(in);
+            connection.disconnect();
+        }
+    }
+
+    private static void writeHeaders(OutputStream out, boolean range, long start, long last,
+                                     long total, String contentType) throws IOException {
+        StringBuilder headers = new StringBuilder(256);
+        headers.append(range ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+        headers.append("Content-Type: ").append(contentType).append("\r\n");
+        headers.append("Accept-Ranges: bytes\r\n");
+        if (last != Long.MAX_VALUE) {
+            headers.append("Content-Length: ").append(last - start + 1).append("\r\n");
+        }
+        if (range) {
+            headers.append("Content-Range: bytes ").append(start).append('-')
+                    .append(last == Long.MAX_VALUE ? "" : String.valueOf(last))
+                    .append('/').append(total < 0 ? "*" : String.valueOf(total)).append("\r\n");
+        }
+        headers.append("Connection: close\r\n\r\n");
+        out.write(headers.toString().getBytes("US-ASCII"));
+    }
+
+    private static void writeStatus(OutputStream out, String status) throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+                .getBytes("US-ASCII"));
+        out.flush();
+    }
+
+    /**
+     * 读取一行请求头
+     *
+     * @return 连接关闭时返回null
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            if (line.length() > 8192) {
+                throw new IOException("header too long");
+            }
+            line.append((char) c);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 获取或创建未完成的文件，在锁内调用，返回的文件还需要 {@link Partial#seed}
+     */
+    private Partial getPartial(String source) throws IOException {
+        Partial partial = mPartials.get(source);
+        if (partial != null) {
+            return partial;
+        }
+        trimPartials();
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            throw new IOException("mkdirs failed");
+        }
+        partial = new Partial(source, new File(mDir, TrackHeadPrefetcher.fileName(source) + ".part"));
+        mPartials.put(source, partial);
+        return partial;
+    }
+
+    /**
+     * 超出数量时删除没有在使用的未完成文件
+     */
+    private void trimPartials() {
+        Iterator<Partial> iterator = mPartials.values().iterator();
+        while (mPartials.size() >= MAX_PARTIALS && iterator.hasNext()) {
+            Partial partial = iterator.next();
+            if (partial.isIdle()) {
+                iterator.remove();
+                partial.mFile.delete();
+            }
+        }
+    }
+
+    /**
+     * 下载完成，移入完整文件的缓存
+     */
+    private void onPartialComplete(Partial partial, long length, long crc) {
+        if (mDiskCache == null) {
+            return;
+        }
+        synchronized (this) {
+            // 改名和替换在锁内完成，新的读取者打开的总是存在的文件
+            File cached = mDiskCache.put(partial.mSource, partial.mFile, length, crc);
+            if (cached != null) {
+                partial.mFile = cached;
+                mPartials.remove(partial.mSource);
+            }
+        }
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 从头开始顺序下载的未完成文件
+     * <p>
+     * The filler appends upstream bytes and wakes readers waiting on this object. Fields
+     * other than mFile are guarded by this object; mFile by the server.
+     */
+    private final class Partial implements Runnable {
+        private final String mSource;
+        private volatile File mFile;
+        // 已下载的字节数
+        private long mAvailable;
+        // 总长度，未知时为-1
+        private long mTotalLength = -1;
+        private String mContentType = DEFAULT_CONTENT_TYPE;
+        // 长度和类型是否已知
+        private boolean mInfoReady;
+        // 是否正在下载
+        private boolean mFilling;
+        private boolean mComplete;
+        private String mError;
+        // 文件是否已初始化、是否正在初始化
+        private boolean mSeeded;
+        private boolean mSeeding;
+        // 读取者数量
+        private int mReaders;
+        private long mLastReadTime;
+        // 已下载部分的CRC32，文件从头顺序写入
+        private final CRC32 mCrc = new CRC32();
+
+        private Partial(String source, File file) {
+            this.mSource = source;
+            this.mFile = file;
+        }
+
+        /**
+         * 创建文件并用预加载的开头部分初始化，只执行一次，其他读取者等待完成
+         * <p>
+         * The copy of up to {@link TrackHeadPrefetcher#HEAD_BYTES} runs without holding this
+         * object or the server. Until it is done no reader gets past this method, so nothing
+         * else touches the fields it sets; a failed seed is retried by the next reader.
+         */
+        private void seed(TrackHeadPrefetcher prefetcher) throws IOException {
+            synchronized (this) {
+                while (mSeeding) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new IOException("interrupted");
+                    }
+                }
+                if (mSeeded) {
+                    return;
+                }
+                mSeeding = true;
+            }
+            boolean seeded = false;
+            try {
+                copyHead(prefetcher == null ? null : prefetcher.getHead(mSource));
+                seeded = true;
+            } finally {
+                synchronized (this) {
+                    mSeeding = false;
+                    mSeeded = seeded;
+                    notifyAll();
+                }
+            }
+        }
+
+        private void copyHead(TrackHeadPrefetcher.Head head) throws IOException {
+            RandomAccessFile out = new RandomAccessFile(mFile, "rw");
+            try {
+                out.setLength(0);
+                if (head == null || head.mTotalLength < 0) {
+                    return;
+                }
+                RandomAccessFile in = new RandomAccessFile(head.mFile, "r");
+                try {
+                    in.seek(head.mDataOffset);
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    long remaining = head.mLength;
+                    while (remaining > 0) {
+                        int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (read < 0) {
+                            break;
+                        }
+                        out.write(buffer, 0, read);
+                        mCrc.update(buffer, 0, read);
+                        mAvailable += read;
+                        remaining -= read;
+                    }
+                } finally {
+                    TrackHeadPrefetcher.closeQuietly(in);
+                }
+                mTotalLength = head.mTotalLength;
+                mInfoReady = true;
+                mComplete = mAvailable == mTotalLength;
+            } catch (IOException e) {
+                // 开头部分不可用时从网络下载
+                Log.w(TAG, "seed: " + e.getMessage());
+                out.setLength(0);
+                mCrc.reset();
+                mAvailable = 0;
+            } finally {
+                TrackHeadPrefetcher.closeQuietly(out);
+            }
+        }
+
+        private synchronized void addReader() {
+            mReaders++;
+            mError = null;
+        }
+
+        private synchronized void removeReader() {
+            mReaders--;
+            mLastReadTime = System.currentTimeMillis();
+        }
+
+        private synchronized boolean isIdle() {
+            return mReaders == 0 && !mFilling;
+        }
+
+        private synchronized long getAvailable() {
+            return mAvailable;
+        }
+
+        /**
+         * 等待长度和类型已知
+         */
+        private synchronized void awaitInfo() throws IOException {
+            while (!mInfoReady) {
+                waitForFiller();
+            }
+        }
+
+        /**
+         * 等待position处的数据下载完成
+         *
+         * @return 已下载的字节数；未知长度的音频在position处结束时返回-1
+         */
+        private synchronized long awaitAvailable(long position) throws IOException {
+            while (mAvailable <= position) {
+                if (mComplete) {
+                    return -1;
+                }
+                waitForFiller();
+            }
+            return mAvailable;
+        }
+
+        /**
+         * 需要时启动下载，并等待下载的进度
+         */
+        private void waitForFiller() throws IOException {
+            if (!mFilling) {
+                if (mError != null) {
+                    throw new IOException(mError);
+                }
+                mFilling = true;
+                mExecutor.execute(this);
+            }
+            long available = mAvailable;
+            boolean infoReady = mInfoReady;
+            try {
+                wait(WAIT_TIMEOUT);
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted");
+            }
+            if (mFilling && available == mAvailable && infoReady == mInfoReady) {
+                throw new IOException("upstream timeout");
+            }
+        }
+
+        /**
+         * 从已下载的位置继续下载
+         */
+        @Override
+        public void run() {
+            HttpURLConnection connection = null;
+            InputStream in = null;
+            RandomAccessFile out = null;
+            try {
+                long from;
+                synchronized (this) {
+                    from = mAvailable;
+                }
+                connection = TrackHeadPrefetcher.openConnection(mSource, from, -1);
+                int code = connection.getResponseCode();
+                if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL) {
+                    throw new IOException("http " + code);
+                }
+                in = connection.getInputStream();
+                // 服务器不支持Range时从头返回，跳过已下载的部分
+                if (code == HttpURLConnection.HTTP_OK) {
+                    long skipped = 0;
+                    while (skipped < from) {
+                        long n = in.skip(from - skipped);
+                        if (n <= 0) {
+                            throw new IOException("skip failed");
+                        }
+                        skipped += n;
+                    }
+                }
+                long total = TrackHeadPrefetcher.totalLength(connection);
+                String contentType = connection.getContentType();
+                synchronized (this) {
+                    if (mTotalLength < 0) {
+                        mTotalLength = total;
+                    }
+                    if (contentType != null && !mInfoReady) {
+                        mContentType = contentType;
+                    }
+                    mInfoReady = true;
+                    notifyAll();
+                }
+                out = new RandomAccessFile(mFile, "rw");
+                out.seek(from);
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, read);
+                    mBytesFromNetwork.addAndGet(read);
+                    synchronized (this) {
+                        mCrc.update(buffer, 0, read);
+                        mAvailable += read;
+                        notifyAll();
+                        // 没有读取者了，例如已切换到其他音频
+                        if (mReaders == 0
+                                && System.currentTimeMillis() - mLastReadTime > FILL_IDLE_TIMEOUT) {
+                            return;
+                        }
+                    }
+                }
+                long length;
+                long crc;
+                synchronized (this) {
+                    if (mTotalLength < 0) {
+                        mTotalLength = mAvailable;
+                    }
+                    if (mAvailable != mTotalLength) {
+                        throw new IOException("truncated " + mAvailable + "/" + mTotalLength);
+                    }
+                    mComplete = true;
+                    length = mAvailable;
+                    crc = mCrc.getValue();
+                }
+                TrackHeadPrefetcher.closeQuietly(out);
+                out = null;
+                onPartialComplete(this, length, crc);
+            } catch (IOException e) {
+                Log.w(TAG, "fill: " + e.getMessage());
+                synchronized (this) {
+                    mError = e.getMessage() == null ? "fill failed" : e.getMessage();
+                }
+            } finally {
+                TrackHeadPrefetcher.closeQuietly(out);
+                TrackHeadPrefetcher.closeQuietly(in);
+                if (connection != null) {
+                    connection.disconnect();
+                }
+                synchronized (this) {
+                    mFilling = false;
+                    notifyAll();
+                }
+            }
+        }
+    }
+}
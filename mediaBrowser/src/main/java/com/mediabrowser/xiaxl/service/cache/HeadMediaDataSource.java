@@ -0,0 +1,118 @@
+package com.mediabrowser.xiaxl.service.cache;
+
+import android.annotation.TargetApi;
+import android.media.MediaDataSource;
+import android.os.Build;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+
+/**
+ * 开头部分从本地文件读取、其余部分从网络读取的 MediaDataSource
+ * <p>
+ * MediaPlayer calls {@link #readAt} on its own thread. Reads inside the head never touch the
+ * network; past it, one Range connection is kept open and reused while reads stay sequential,
+ * and reopened at the new offset after a seek.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+class HeadMediaDataSource extends MediaDataSource {
+
+    // 音频地址
+    private final String mSource;
+    // 已下载的开头部分
+    private final TrackHeadPrefetcher.Head mHead;
+    // 开头部分的文件
+    private RandomAccessFile mFile;
+    // 网络连接
+    private HttpURLConnection mConnection;
+    private InputStream mStream;
+    // 网络流当前的位置
+    private long mStreamPosition = -1;
+
+
+    HeadMediaDataSource(String source, TrackHeadPrefetcher.Head head) {
+        this.mSource = source;
+        this.mHead = head;
+    }
+
+    @Override
+    public synchronized int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        if (size == 0) {
+            return 0;
+        }
+        long totalLength = getSize();
+        if (totalLength >= 0 && position >= totalLength) {
+            return -1;
+        }
+        // 开头部分
+        if (position < mHead.mLength) {
+            if (mFile == null) {
+                mFile = new RandomAccessFile(mHead.mFile, "r");
+            }
+            mFile.seek(mHead.mDataOffset + position);
+            return mFile.read(buffer, offset, (int) Math.min(size, mHead.mLength - position));
+        }
+        // 整个音频都已下载
+        if (totalLength >= 0 && mHead.mLength >= totalLength) {
+            return -1;
+        }
+        // 其余部分
+        if (mStream == null || mStreamPosition != position) {
+            openStream(position);
+        }
+        int read = mStream.read(buffer, offset, size);
+        if (read > 0) {
+            mStreamPosition += read;
+        }
+        return read;
+    }
+
+    /**
+     * 从position处打开网络流
+     */
+    private void openStream(long position) throws IOException {
+        closeStream();
+        mConnection = TrackHeadPrefetcher.openConnection(mSource, position, -1);
+        int code = mConnection.getResponseCode();
+        if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL) {
+            throw new IOException("http " + code);
+        }
+        mStream = mConnection.getInputStream();
+        // 服务器不支持Range时从头返回，跳过前面的部分
+        if (code == HttpURLConnection.HTTP_OK) {
+            long skipped = 0;
+            while (skipped < position) {
+                long n = mStream.skip(position - skipped);
+                if (n <= 0) {
+                    throw new IOException("skip failed");
+                }
+                skipped += n;
+            }
+        }
+        mStreamPosition = position;
+    }
+
+    private void closeStream() {
+        TrackHeadPrefetcher.closeQuietly(mStream);
+        mStream = null;
+        if (mConnection != null) {
+            mConnection.disconnect();
+            mConnection = null;
+        }
+        mStreamPosition = -1;
+    }
+
+    @Override
+    public long getSize() {
+        return mHead.mTotalLength;
+    }
+
+    @Override
+    public synchronized void close() {
+        TrackHeadPrefetcher.closeQuietly(mFile);
+        mFile = null;
+        closeStream();
+    }
+}
@@ -0,0 +1,375 @@
+package com.mediabrowser.xiaxl.service.cache;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.MediaDataSource;
+import android.os.Build;
+import android.util.Log;
+
+import com.mediabrowser.xiaxl.client.MusicManager;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 预加载队列中后面几首音频的开头部分
+ * <p>
+ * Downloads the first {@link #HEAD_BYTES} of the next tracks on a single background thread,
+ * only while {@link MusicManager#isNetWorkAllow()} allows it, so a skip can start playing
+ * from disk instead of waiting on a fresh connection. {@link #openDataSource(String)} hands
+ * MediaPlayer a {@link HeadMediaDataSource} that serves the head from the file and streams
+ * the rest with a Range request.
+ * <p>
+ * A head file is written through a temp file and a rename, so one that exists is complete.
+ * Layout: magic, total length of the track (-1 when unknown), then the head bytes.
+ * The directory keeps at most {@link #MAX_HEAD_FILES} heads, least recently used go first.
+ */
+public class TrackHeadPrefetcher {
+
+    private static final String TAG = "TrackHeadPrefetcher";
+
+    // 缓存目录
+    private static final String HEAD_DIR = "audio_head";
+    // 文件头
+    private static final int MAGIC = 0x4d484431;
+    private static final int HEADER_SIZE = 12;
+    // 每首音频预加载的字节数，128kbps 约16秒
+    public static final int HEAD_BYTES = 256 * 1024;
+    // 预加载后面几首音频
+    public static final int PREFETCH_COUNT = 3;
+    // 最多保存的文件数量
+    private static final int MAX_HEAD_FILES = 48;
+    // 网络超时
+    static final int CONNECT_TIMEOUT = 10 * 1000;
+    static final int READ_TIMEOUT = 15 * 1000;
+
+    // 缓存目录
+    private final File mDir;
+    // 下载线程
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    // 音频地址 -> 已下载完成的开头部分
+    private final Map<String, Head> mHeads = new ConcurrentHashMap<>();
+    // 每次 prefetch 加一，过期的任务不再执行
+    private volatile int mGeneration;
+
+
+    /**
+     * 构造方法
+     *
+     * @param context
+     */
+    public TrackHeadPrefetcher(Context context) {
+        this.mDir = new File(context.getCacheDir(), HEAD_DIR);
+        // 读取上次下载的文件
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadHeads();
+            }
+        });
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 预加载音频的开头部分，之前未开始的预加载会被取消
+     *
+     * @param sources 按播放顺序排列的音频地址
+     */
+    public void prefetch(List<String> sources) {
+        final int generation = ++mGeneration;
+        for (final String source : sources) {
+            if (source == null || mHeads.containsKey(source) || !isRemote(source)) {
+                continue;
+            }
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (generation != mGeneration || mHeads.containsKey(source)) {
+                        return;
+                    }
+                    // 遵守 wifi / 2g3g4g 网络下的播放设置
+                    if (!isNetworkAllowed()) {
+                        return;
+                    }
+                    download(source);
+                }
+            });
+        }
+    }
+
+    /**
+     * 已下载的开头部分
+     *
+     * @param source
+     * @return 没有时返回null
+     */
+    public Head getHead(String source) {
+        return source == null ? null : mHeads.get(source);
+    }
+
+    /**
+     * 从已下载的开头部分播放，其余部分从网络读取
+     *
+     * @param source
+     * @return 没有下载开头部分时返回null
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    public MediaDataSource openDataSource(String source) {
+        Head head = getHead(source);
+        if (head == null) {
+            return null;
+        }
+        head.mFile.setLastModified(System.currentTimeMillis());
+        return new HeadMediaDataSource(source, head);
+    }
+
+    /**
+     * 停止下载线程
+     */
+    public void release() {
+        mGeneration++;
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * 当前网络是否允许下载
+     */
+    boolean isNetworkAllowed() {
+        return MusicManager.getInstance().isNetWorkAllow();
+    }
+
+    private static boolean isRemote(String source) {
+        return source.startsWith("http://") || source.startsWith("https://");
+    }
+
+
+    // ##########################################################################################
+
+    private void loadHeads() {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            // 写了一半的临时文件
+            if (name.endsWith(".tmp")) {
+                file.delete();
+                continue;
+            }
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new FileInputStream(file));
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("bad head");
+                }
+                long totalLength = in.readLong();
+                String source = in.readUTF();
+                long dataOffset = HEADER_SIZE + 2 + source.getBytes("UTF-8").length;
+                mHeads.put(source, new Head(file, dataOffset, file.length() - dataOffset, totalLength));
+            } catch (IOException e) {
+                Log.w(TAG, "loadHeads: " + name + " " + e.getMessage());
+                file.delete();
+            } finally {
+                closeQuietly(in);
+            }
+        }
+    }
+
+    /**
+     * 下载音频的开头部分
+     */
+    private void download(String source) {
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            return;
+        }
+        File file = new File(mDir, fileName(source));
+        File tmp = new File(file.getPath() + ".tmp");
+        HttpURLConnection connection = null;
+        InputStream in = null;
+        DataOutputStream out = null;
+        try {
+            connection = openConnection(source, 0, HEAD_BYTES);
+            int code = connection.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("http " + code);
+            }
+            long totalLength = totalLength(connection);
+            in = connection.getInputStream();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeLong(totalLength);
+            out.writeUTF(source);
+            byte[] buffer = new byte[16 * 1024];
+            int length = 0;
+            while (length < HEAD_BYTES) {
+                int read = in.read(buffer, 0, Math.min(buffer.length, HEAD_BYTES - length));
+                if (read < 0) {
+                    break;
+                }
+                out.write(buffer, 0, read);
+                length += read;
+            }
+            out.close();
+            out = null;
+            // 写完后再替换，进程被杀时不会留下不完整的文件
+            if (!tmp.renameTo(file)) {
+                throw new IOException("rename failed");
+            }
+            long dataOffset = file.length() - length;
+            mHeads.put(source, new Head(file, dataOffset, length, totalLength));
+            trim();
+        } catch (IOException e) {
+            Log.w(TAG, "download: " + e.getMessage());
+            tmp.delete();
+        } finally {
+            closeQuietly(out);
+            closeQuietly(in);
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * 超出数量时删除最久未使用的文件
+     */
+    private void trim() {
+        File[] files = mDir.listFiles();
+        if (files == null || files.length <= MAX_HEAD_FILES) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        List<String> removed = new ArrayList<>();
+        for (int i = 0; i < files.length - MAX_HEAD_FILES; i++) {
+            removed.add(files[i].getPath());
+            files[i].delete();
+        }
+        for (Map.Entry<String, Head> entry : mHeads.entrySet()) {
+            if (removed.contains(entry.getValue().mFile.getPath())) {
+                mHeads.remove(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * 文件名：音频地址的MD5
+     */
+    static String fileName(String source) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(source.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16));
+                name.append(Character.forDigit(b & 0xf, 16));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            return Integer.toHexString(source.hashCode());
+        }
+    }
+
+    /**
+     * 请求音频的[from, from + length)范围，length小于0表示到结尾
+     */
+    static HttpURLConnection openConnection(String source, long from, long length) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(source).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        connection.setRequestProperty("Range",
+                "bytes=" + from + "-" + (length < 0 ? "" : String.valueOf(from + length - 1)));
+        return connection;
+    }
+
+    /**
+     * 从响应头中获取音频的总长度
+     *
+     * @return 未知时返回-1
+     */
+    static long totalLength(HttpURLConnection connection) {
+        // Content-Range: bytes 0-262143/5234567
+        String range = connection.getHeaderField("Content-Range");
+        if (range != null) {
+            int slash = range.lastIndexOf('/');
+            if (slash >= 0) {
+                try {
+                    return Long.parseLong(range.substring(slash + 1).trim());
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        // 服务器不支持Range时返回整个文件
+        try {
+            if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
+                String length = connection.getHeaderField("Content-Length");
+                return length == null ? -1 : Long.parseLong(length);
+            }
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+        return -1;
+    }
+
+    static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 已下载的开头部分
+     */
+    public static final class Head {
+        // 文件
+        final File mFile;
+        // 音频数据在文件中的偏移
+        final long mDataOffset;
+        // 开头部分的长度
+        final long mLength;
+        // 音频总长度，未知时为-1
+        final long mTotalLength;
+
+        Head(File file, long dataOffset, long length, long totalLength) {
+            this.mFile = file;
+            this.mDataOffset = dataOffset;
+            this.mLength = length;
+            this.mTotalLength = totalLength;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.mediabrowser.xiaxl.service.playback;
+
+import android.os.Bundle;
+
+/**
+ * 固定分桶的耗时直方图，单位ms
+ * <p>
+ * Buckets are fixed so histograms from different runs and devices can be added up, and
+ * recording is a short scan without allocation.
+ */
+public class LatencyHistogram {
+
+    // 各个桶的上限（含），最后一个桶存放超过 BOUNDS 最大值的部分
+    public static final long[] BOUNDS = {5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+    /**
+     * Bundle key
+     */
+    // 各个桶的数量 long[]，长度为 BOUNDS.length + 1
+    public static final String KEY_COUNTS = "counts";
+    // 总数
+    public static final String KEY_COUNT = "count";
+    // 耗时总和
+    public static final String KEY_SUM = "sum";
+    // 最大耗时
+    public static final String KEY_MAX = "max";
+
+    private final long[] mCounts = new long[BOUNDS.length + 1];
+    private long mCount;
+    private long mSum;
+    private long mMax;
+
+
+    /**
+     * 记录一次耗时
+     *
+     * @param millis
+     */
+    public void record(long millis) {
+        if (millis < 0) {
+            return;
+        }
+        int i = 0;
+        while (i < BOUNDS.length && millis > BOUNDS[i]) {
+            i++;
+        }
+        mCounts[i]++;
+        mCount++;
+        mSum += millis;
+        mMax = Math.max(mMax, millis);
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    /**
+     * 估算的百分位耗时，返回所在桶的上限
+     *
+     * @param percent 0~100
+     * @return 没有数据时返回 -1
+     */
+    public long getPercentile(int percent) {
+        if (mCount == 0) {
+            return -1;
+        }
+        long rank = (mCount * percent + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return BOUNDS[i];
+            }
+        }
+        return mMax;
+    }
+
+    public Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putLongArray(KEY_COUNTS, mCounts.clone());
+        bundle.putLong(KEY_COUNT, mCount);
+        bundle.putLong(KEY_SUM, mSum);
+        bundle.putLong(KEY_MAX, mMax);
+        return bundle;
+    }
+
+    @Override
+    public String toString() {
+        return "{n=" + mCount + ", avg=" + (mCount == 0 ? 0 : mSum / mCount)
+                + ", p50<=" + getPercentile(50) + ", p90<=" + getPercentile(90)
+                + ", max=" + mMax + "}";
+    }
+}
@@ -0,0 +1,190 @@
+package com.mediabrowser.xiaxl.service.playback;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.media.MediaPlayer;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+
+/**
+ * 复用 MediaPlayer
+ * <p>
+ * Creating a MediaPlayer initialises a native player, which costs hundreds of ms on low-end
+ * devices. Players given back with {@link #recycle(MediaPlayer)} are reset and parked, up to
+ * {@link #MAX_IDLE_PLAYERS}, and handed out again by {@link #acquire()}. One player is warmed
+ * when the main thread is idle. Parked players are released after {@link #IDLE_TIMEOUT}
+ * without use, and right away on memory pressure.
+ * <p>
+ * Main thread only; players created here post their events to the main looper.
+ */
+public class MediaPlayerPool implements ComponentCallbacks2 {
+
+    private static final String TAG = "MediaPlayerPool";
+
+    // 最多保留的空闲播放器
+    private static final int MAX_IDLE_PLAYERS = 2;
+    // 预热的播放器数量
+    private static final int WARM_PLAYERS = 1;
+    // 空闲播放器的保留时间
+    private static final long IDLE_TIMEOUT = 60 * 1000;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // 空闲的播放器，都已reset
+    private final ArrayDeque<MediaPlayer> mIdlePlayers = new ArrayDeque<>();
+    private boolean mReleased;
+
+    /**
+     * 统计
+     */
+    // 新创建的数量
+    private int mCreateCount;
+    // 复用的数量
+    private int mReuseCount;
+    // 因超时或内存不足释放的数量
+    private int mEvictCount;
+
+
+    /**
+     * 构造方法
+     *
+     * @param context
+     */
+    public MediaPlayerPool(Context context) {
+        this.mContext = context.getApplicationContext();
+        mContext.registerComponentCallbacks(this);
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 获取一个处于Idle状态的播放器
+     *
+     * @return
+     */
+    public MediaPlayer acquire() {
+        MediaPlayer player = mIdlePlayers.pollFirst();
+        if (player != null) {
+            mReuseCount++;
+            scheduleIdleTimeout();
+            return player;
+        }
+        mCreateCount++;
+        return new MediaPlayer();
+    }
+
+    /**
+     * 归还播放器，超出数量时释放
+     *
+     * @param player
+     */
+    public void recycle(MediaPlayer player) {
+        if (player == null) {
+            return;
+        }
+        try {
+            player.reset();
+        } catch (Exception e) {
+            // 状态异常的播放器不再复用
+            Log.w(TAG, "recycle: " + e.getMessage());
+            player.release();
+            return;
+        }
+        if (mReleased || mIdlePlayers.size() >= MAX_IDLE_PLAYERS) {
+            player.release();
+            return;
+        }
+        // 清除监听，避免空闲时持有播放器的回调对象
+        player.setOnPreparedListener(null);
+        player.setOnCompletionListener(null);
+        player.setOnErrorListener(null);
+        player.setOnSeekCompleteListener(null);
+        mIdlePlayers.addLast(player);
+        scheduleIdleTimeout();
+    }
+
+    /**
+     * 主线程空闲时预热播放器，在主线程调用
+     */
+    public void prewarm() {
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                if (!mReleased && mIdlePlayers.size() < WARM_PLAYERS) {
+                    mCreateCount++;
+                    mIdlePlayers.addLast(new MediaPlayer());
+                    scheduleIdleTimeout();
+                }
+                return false;
+            }
+        });
+    }
+
+    /**
+     * 释放所有空闲的播放器，之后归还的播放器直接释放
+     */
+    public void release() {
+        mReleased = true;
+        evictAll();
+        mContext.unregisterComponentCallbacks(this);
+    }
+
+    private void evictAll() {
+        mHandler.removeCallbacks(mIdleTimeout);
+        MediaPlayer player;
+        while ((player = mIdlePlayers.pollFirst()) != null) {
+            player.release();
+            mEvictCount++;
+        }
+    }
+
+    private void scheduleIdleTimeout() {
+        mHandler.removeCallbacks(mIdleTimeout);
+        if (!mIdlePlayers.isEmpty()) {
+            mHandler.postDelayed(mIdleTimeout, IDLE_TIMEOUT);
+        }
+    }
+
+    private final Runnable mIdleTimeout = new Runnable() {
+        @Override
+        public void run() {
+            evictAll();
+        }
+    };
+
+    @Override
+    public String toString() {
+        return TAG + "{idle=" + mIdlePlayers.size() + ", created=" + mCreateCount
+                + ", reused=" + mReuseCount + ", evicted=" + mEvictCount + "}";
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 内存不足时释放空闲的播放器
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        // TRIM_MEMORY_UI_HIDDEN 只表示界面不可见，播放时很常见
+        if (level >= TRIM_MEMORY_BACKGROUND
+                || (level >= TRIM_MEMORY_RUNNING_LOW && level < TRIM_MEMORY_UI_HIDDEN)) {
+            evictAll();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        evictAll();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
@@ -5,12 +5,19 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.media.AudioManager;
+import android.media.MediaDataSource;
 import android.media.MediaPlayer;
 import android.net.wifi.WifiManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.util.Log;
 
 import com.mediabrowser.xiaxl.service.MusicService;
+import com.mediabrowser.xiaxl.service.cache.CacheProxyServer;
+import com.mediabrowser.xiaxl.service.cache.TrackHeadPrefetcher;
 
 import java.io.IOException;
 
@@ -29,6 +36,15 @@ public class MusicPlayback implements Playback, AudioManager.OnAudioFocusChangeL
     // 默认的音量 0~1之间
     // The volume we set the media player when we have audio focus.
     public static final float VOLUME_NORMAL = 1.0f;
+    // 交叉淡入淡出的时长范围
+    public static final long CROSSFADE_MIN = 2000;
+    public static final long CROSSFADE_MAX = 8000;
+    // 淡入淡出时调整音量的间隔
+    private static final long CROSSFADE_STEP = 25;
+    // 离开始淡入淡出较远时，提前多久重新检查播放位置
+    private static final long CROSSFADE_LEAD = 500;
+    // 剩余时间少于该值时不再淡入淡出，改为无缝切换
+    private static final long CROSSFADE_MIN_REMAINING = 300;
 
 
     /**
@@ -38,10 +54,38 @@ public class MusicPlayback implements Playback, AudioManager.OnAudioFocusChangeL
     private final Context mContext;
     // 音频播放器
     private MediaPlayer mMediaPlayer;
+    // mMediaPlayer 正在播放的音频地址
+    private String mCurrentSource;
+    // 复用的播放器
+    private final MediaPlayerPool mPlayerPool;
+    // mMediaPlayer 是否已准备完成
+    private boolean mMediaPlayerPrepared;
+    // 无缝播放：预加载下一首音频的播放器，通过 setNextMediaPlayer 接在 mMediaPlayer 后面
+    private MediaPlayer mNextMediaPlayer;
+    // 预加载的音频地址
+    private String mNextSource;
+    // 预加载是否完成
+    private boolean mNextPrepared;
+    // 是否已通过 setNextMediaPlayer 接在 mMediaPlayer 后面
+    private boolean mNextChained;
+    // 交叉淡入淡出的时长，0表示不使用
+    private long mCrossfadeDuration;
+    // 交叉淡入淡出：正在淡出的上一首的播放器
+    private MediaPlayer mFadingMediaPlayer;
+    // 淡入淡出开始的时间 SystemClock.uptimeMillis() 及时长
+    private long mCrossfadeStart;
+    private long mCrossfadeLength;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
     // AudioManager
     private AudioManager mAudioManager;
     // 保持wifi连接状态的WifiLock
     private WifiManager.WifiLock mWifiLock;
+    // 预加载的音频开头部分
+    private TrackHeadPrefetcher mTrackHeadPrefetcher;
+    // 本地缓存代理，边播边缓存
+    private CacheProxyServer mCacheProxyServer;
+    // 开始播放的耗时统计
+    private PlayLatencyTracker mPlayLatencyTracker;
     /**
      *
      */
@@ -63,6 +107,12 @@ public class MusicPlayback implements Playback, AudioManager.OnAudioFocusChangeL
     private volatile long mCurrentPosition;
     // 当前播放速度
     private float mCurrentSpeed = 1f;
+    // 是否有尚未完成的seek
+    private boolean mSeekInFlight;
+    // 等待发出的seek位置，-1表示没有
+    private long mPendingSeek = -1;
+    // 等待发出的seek是否为快速seek
+    private boolean mPendingSeekFast;
 
     /**
      * 构造方法
@@ -80,6 +130,9 @@ public class MusicPlayback implements Playback, AudioManager.OnAudioFocusChangeL
         } catch (Exception e) {
             e.printStackTrace();
         }
+        // 复用的播放器，空闲时预热一个
+        mPlayerPool = new MediaPlayerPool(applicationContext);
+        mPlayerPool.prewarm();
         // 保持wifi连接状态的WifiLock
         try {
             mWifiLock =
@@ -199,7 +252,8 @@ public class MusicPlayback implements Playback, AudioManager.OnAudioFocusChangeL
      */
     @Override
     public long getCurrentStreamPosition() {
-        return mMediaPlayer != null ?
+        // seek过程中返回目标位置，避免进度条来回跳动
+        return mMediaPlayer != null && !mSeekInFlight ?
                 mMediaPlayer.getCurrentPosition() : mCurrentPosition;
     }
 
@@ -210,16 +264,40 @@ public class MusicPlayback implements Playback, AudioManager.OnAudioFocusChangeL
      */
     @Override
     public void play(String source) {
+        play(source, 0);
+    }
+
+    /**
+     * 从position处开始播放，准备完成后 seek 到该位置
+     *
+     * @param source
+     * @param position
+     */
+    @Override
+    public void play(String source, long position) {
+        // 切换音频时不再淡出上一首
+        mHandler.removeCallbacks(mCrossfadeCheck);
+        finishCrossfade();
         //
         mPlayOnFocusGain = false;
-        // 当前播放位置为0
-        mCurrentPosition = 0;
+        // 开始播放的位置
+        mCurrentPosition = Math.max(0, position);
         // 获取焦点
         tryToGetAudioFocus();
         // 注册耳机插拔的广播接受者
         registerAudioNoisyReceiver();
         // 释放资源
         relaxResources(false);
+        mCurrentSource = source;
+        if (mPlayLatencyTracker != null) {
+            mPlayLatencyTracker.onPlay(source);
+        }
+        // 预加载的音频：直接切换，不需要重新准备
+        if (mNextPrepared && source != null && source.equals(mNextSource)) {
+            playNextMediaPlayer();
+            return;
+        }
+        releaseNextMediaPlayer();
         //
         try {
             // 创建MediaPlayer
@@ -233,7 +311,10 @@ public class MusicPlayback implements Playback, AudioManager.OnAudioFocusChangeL
             // 设置播放状态
             mPlaybackState = PlaybackStateCompat.STATE_BUFFERING;
             // 播放路径
-            mMediaPlayer.setDataSource(source);
+            setDataSource(mMediaPlayer, source);
+            if (mPlayLatencyTracker != null) {
+                mPlayLatencyTracker.onPrepareAsync(source);
+            }
             mMediaPlayer.prepareAsync();
             // wifi锁定，保持wifi连接状态
             if (mWifiLock != null) {
@@ -258,6 +339,40 @@ public class MusicPlayback implements Playback, AudioManager.OnAudioFocusChangeL
         }
     }
 
+    /**
+     * 预加载下一首音频
+     * <p>
+     * The next track is prepared in a second MediaPlayer and chained with
+     * {@link MediaPlayer#setNextMediaPlayer(MediaPlayer)} once both players are prepared, so
+     * the platform starts it the moment the current one ends, without the gap of resetting
+     * and preparing. Calling again with the same source is a no-op.
+     *
+     * @param source 为null时取消预加载
+     */
+    @Override
+    public void setNextSource(String source) {
+        if (source == null ? mNextSource == null : source.equals(mNextSource)) {
+            return;
+        }
+        releaseNextMediaPlayer();
+        // 当前没有播放的音频
+        if (source == null || mMediaPlayer == null) {
+            return;
+        }
+        mNextSource = source;
+        try {
+            mNextMediaPlayer = newMediaPlayer();
+            setDataSource(mNextMediaPlayer, source);
+            mNextMediaPlayer.prepareAsync();
+        } catch (Exception e) {
+            // 预加载失败时，播放完成后按原来的方式切换
+            Log.w(TAG, "setNextSource: " + e.getMessage());
+            releaseNextMediaPlayer();
+            // 记录该地址，避免重复预加载
+            mNextSource = source;
+        }
+    }
+
     /**
      * 暂停
      */
@@ -275,6 +390,9 @@ public class MusicPlayback implements Playback, AudioManager.OnAudioFocusChangeL
             // 记录当前播放状态
             mCurrentPosition = mMediaPlayer.getCurrentPosition();
         }
+        // 暂停时不再淡出上一首，继续播放后重新计算开始淡入淡出的时间
+        mHandler.removeCallbacks(mCrossfadeCheck);
+        finishCrossfade();
         // 释放wifiLock
         relaxResources(false);
         // 暂停
@@ -287,28 +405,64 @@ public class MusicPlayback implements Playback, AudioManager.OnAudioFocusChangeL
     }
 
     /**
-     * seek
+     * 精确seek
      *
      * @param position
      */
     @Override
     public void seekTo(long position) {
+        seekTo(position, false);
+    }
+
+    /**
+     * 快速seek，拖动进度条时调用
+     *
+     * @param position
+     */
+    @Override
+    public void scrubTo(long position) {
+        seekTo(position, true);
+    }
+
+    /**
+     * seek
+     * <p>
+     * Dragging the seek bar can send dozens of seeks per second, and each one makes the
+     * MediaPlayer flush and refill its buffers. Only one seek is in flight at a time; targets
+     * arriving before {@link #onSeekComplete} replace each other, and only the latest one is
+     * issued next. The status is reported once when a run of seeks starts and once when it
+     * settles.
+     *
+     * @param position
+     * @param fast     定位到最近的同步帧，Android 8.0 及以上生效
+     */
+    private void seekTo(long position, boolean fast) {
         // 播放错误
         if (mMediaPlayer == null) {
             mCurrentPosition = position;
             mPlaybackState = PlaybackStateCompat.STATE_ERROR;
             return;
         }
+        // 当前播放位置
+        mCurrentPosition = position;
+        // 准备中的 MediaPlayer 不能seek，onPrepared 会seek到 mCurrentPosition
+        if (!mMediaPlayerPrepared) {
+            return;
+        }
+        // 上一次seek尚未完成，只记录最新的位置
+        if (mSeekInFlight) {
+            mPendingSeek = position;
+            mPendingSeekFast = fast;
+            return;
+        }
         // buffer
         if (mMediaPlayer.isPlaying()) {
             mPlaybackState = PlaybackStateCompat.STATE_BUFFERING;
         }
-        // 当前播放位置
-        mCurrentPosition = position;
         // 注册耳机插拔的广播接受者
         registerAudioNoisyReceiver();
         // seek 到对应位置
-        mMediaPlayer.seekTo((int) position);
+        issueSeek(position, fast);
         // 播放状态回调
         if (mPlaybackCallback != null) {
             mPlaybackCallback.onPlaybackStatusChanged(mPlaybackState);
@@ -316,6 +470,32 @@ public class MusicPlayback implements Playback, AudioManager.OnAudioFocusChangeL
 
     }
 
+    /**
+     * 向 mMediaPlayer 发出seek，完成前不再发出新的seek
+     *
+     * @param position
+     * @param fast
+     */
+    private void issueSeek(long position, boolean fast) {
+        mSeekInFlight = true;
+        // seekTo(int) 在 Android 8.0 及以上等同于 SEEK_PREVIOUS_SYNC，精确seek需要指定 SEEK_CLOSEST
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            mMediaPlayer.seekTo(position,
+                    fast ? MediaPlayer.SEEK_CLOSEST_SYNC : MediaPlayer.SEEK_CLOSEST);
+        } else {
+            mMediaPlayer.seekTo((int) position);
+        }
+    }
+
+    /**
+     * 清除seek状态，mMediaPlayer 更换或重置时调用
+     */
+    private void resetSeekState() {
+        mSeekInFlight = false;
+        mPendingSeek = -1;
+        mPendingSeekFast = false;
+    }
+
     /**
      * 播放速度
      *
@@ -336,15 +516,135 @@ public class MusicPlayback implements Playback, AudioManager.OnAudioFocusChangeL
      */
     private void createMediaPlayerIfNeeded() {
         if (mMediaPlayer == null) {
-            mMediaPlayer = new MediaPlayer();
-            // 设置播放监听
-            mMediaPlayer.setOnPreparedListener(this);
-            mMediaPlayer.setOnCompletionListener(this);
-            mMediaPlayer.setOnErrorListener(this);
-            mMediaPlayer.setOnSeekCompleteListener(this);
+            mMediaPlayer = newMediaPlayer();
         } else {
             mMediaPlayer.reset();
         }
+        mMediaPlayerPrepared = false;
+        resetSeekState();
+    }
+
+    /**
+     * 设置音频地址：网络音频经过本地缓存代理；代理不可用时，已预加载开头部分的从本地文件开始播放
+     */
+    private void setDataSource(MediaPlayer player, String source) throws IOException {
+        if (mCacheProxyServer != null) {
+            String proxyUrl = mCacheProxyServer.getProxyUrl(source);
+            if (!proxyUrl.equals(source)) {
+                player.setDataSource(proxyUrl);
+                return;
+            }
+        }
+        if (mTrackHeadPrefetcher != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            MediaDataSource dataSource = mTrackHeadPrefetcher.openDataSource(source);
+            if (dataSource != null) {
+                player.setDataSource(dataSource);
+                return;
+            }
+        }
+        player.setDataSource(source);
+    }
+
+    /**
+     * 创建MediaPlayer并设置播放监听
+     */
+    private MediaPlayer newMediaPlayer() {
+        MediaPlayer player = mPlayerPool.acquire();
+        player.setVolume(getFocusVolume(), getFocusVolume());
+        // 设置播放监听
+        player.setOnPreparedListener(this);
+        player.setOnCompletionListener(this);
+        player.setOnErrorListener(this);
+        player.setOnSeekCompleteListener(this);
+        return player;
+    }
+
+    /**
+     * 两个播放器都准备完成后，将预加载的播放器接在当前播放器后面；
+     * 使用交叉淡入淡出时，改为安排提前开始下一首
+     */
+    private void chainNextMediaPlayer() {
+        if (mNextChained || !mNextPrepared || !mMediaPlayerPrepared || mMediaPlayer == null) {
+            return;
+        }
+        // 时长未知的音频无法提前开始，仍然无缝切换
+        if (mCrossfadeDuration > 0 && mMediaPlayer.getDuration() > 0) {
+            scheduleCrossfade();
+            return;
+        }
+        chainNextMediaPlayerGapless();
+    }
+
+    /**
+     * 通过 setNextMediaPlayer 无缝切换
+     */
+    private void chainNextMediaPlayerGapless() {
+        try {
+            mNextMediaPlayer.setVolume(getFocusVolume(), getFocusVolume());
+            mMediaPlayer.setNextMediaPlayer(mNextMediaPlayer);
+            mNextChained = true;
+        } catch (Exception e) {
+            Log.w(TAG, "chainNextMediaPlayer: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 切换到预加载的播放器
+     *
+     * @return 原来的播放器，由调用方归还或继续淡出
+     */
+    private MediaPlayer swapToNextMediaPlayer() {
+        MediaPlayer player = mMediaPlayer;
+        mMediaPlayer = mNextMediaPlayer;
+        mCurrentSource = mNextSource;
+        mMediaPlayerPrepared = true;
+        mNextMediaPlayer = null;
+        mNextSource = null;
+        mNextPrepared = false;
+        mNextChained = false;
+        resetSeekState();
+        return player;
+    }
+
+    /**
+     * 直接播放预加载的音频，例如用户点了下一曲
+     */
+    private void playNextMediaPlayer() {
+        // 取消自动切换
+        if (mNextChained) {
+            try {
+                mMediaPlayer.setNextMediaPlayer(null);
+            } catch (Exception e) {
+                Log.w(TAG, "playNextMediaPlayer: " + e.getMessage());
+            }
+        }
+        mPlayerPool.recycle(swapToNextMediaPlayer());
+        // wifi锁定，保持wifi连接状态
+        if (mWifiLock != null) {
+            mWifiLock.acquire();
+        }
+        // 已准备完成，seek 到开始播放的位置并播放
+        onPrepared(mMediaPlayer);
+    }
+
+    /**
+     * 释放预加载的播放器
+     */
+    private void releaseNextMediaPlayer() {
+        if (mNextMediaPlayer != null) {
+            if (mNextChained && mMediaPlayer != null) {
+                try {
+                    mMediaPlayer.setNextMediaPlayer(null);
+                } catch (Exception e) {
+                    Log.w(TAG, "releaseNextMediaPlayer: " + e.getMessage());
+                }
+            }
+            mPlayerPool.recycle(mNextMediaPlayer);
+            mNextMediaPlayer = null;
+        }
+        mNextSource = null;
+        mNextPrepared = false;
+        mNextChained = false;
     }
 
     /**
@@ -360,9 +660,14 @@ public class MusicPlayback implements Playback, AudioManager.OnAudioFocusChangeL
         // 释放MediaPlayer
         // stop and release the Media Player, if it's available
         if (releaseMediaPlayer && mMediaPlayer != null) {
-            mMediaPlayer.reset();
-            mMediaPlayer.release();
+            mHandler.removeCallbacks(mCrossfadeCheck);
+            finishCrossfade();
+            releaseNextMediaPlayer();
+            // 归还给复用池，下次播放不需要重新创建
+            mPlayerPool.recycle(mMediaPlayer);
             mMediaPlayer = null;
+            mMediaPlayerPrepared = false;
+            resetSeekState();
         }
         // 释放WifiLock
         // we can also release the Wifi lock, if we're holding it
@@ -383,8 +688,12 @@ public class MusicPlayback implements Playback, AudioManager.OnAudioFocusChangeL
                 mPlaybackState = PlaybackStateCompat.STATE_PLAYING;
             }
             // seek到对应位置
+            else if (!mSeekInFlight) {
+                issueSeek(mCurrentPosition, false);
+                mPlaybackState = PlaybackStateCompat.STATE_BUFFERING;
+            }
+            // seek尚未完成，完成后再播放
             else {
-                mMediaPlayer.seekTo((int) mCurrentPosition);
                 mPlaybackState = PlaybackStateCompat.STATE_BUFFERING;
             }
         } else {
@@ -395,6 +704,175 @@ public class MusicPlayback implements Playback, AudioManager.OnAudioFocusChangeL
 
     // ##########################################################################################
 
+    /**
+     * 设置交叉淡入淡出的时长
+     * <p>
+     * With a duration set, the preloaded next player is not chained with setNextMediaPlayer.
+     * It is started {@code millis} before the end of the current one, and both volumes ramp
+     * on an equal-power curve every {@link #CROSSFADE_STEP} ms. The ramp is scaled by the
+     * focus volume, so ducking still applies. The start is re-checked against the player
+     * position shortly before it is due, and after every seek.
+     *
+     * @param millis 0表示不使用，否则限制在 CROSSFADE_MIN ~ CROSSFADE_MAX 之间
+     */
+    @Override
+    public void setCrossfadeDuration(long millis) {
+        long duration = millis <= 0 ? 0 : Math.max(CROSSFADE_MIN, Math.min(CROSSFADE_MAX, millis));
+        if (duration == mCrossfadeDuration) {
+            return;
+        }
+        mCrossfadeDuration = duration;
+        mHandler.removeCallbacks(mCrossfadeCheck);
+        // 重新决定切换到下一首的方式
+        if (mNextChained && duration > 0) {
+            try {
+                mMediaPlayer.setNextMediaPlayer(null);
+            } catch (Exception e) {
+                Log.w(TAG, "setCrossfadeDuration: " + e.getMessage());
+            }
+            mNextChained = false;
+        }
+        chainNextMediaPlayer();
+    }
+
+    /**
+     * 安排开始交叉淡入淡出的时间，离开始较远时先提前一点重新检查
+     */
+    private void scheduleCrossfade() {
+        mHandler.removeCallbacks(mCrossfadeCheck);
+        if (mFadingMediaPlayer != null || mNextChained || !mNextPrepared || !mMediaPlayerPrepared
+                || mMediaPlayer == null || mCrossfadeDuration <= 0
+                || mPlaybackState != PlaybackStateCompat.STATE_PLAYING) {
+            return;
+        }
+        long remaining = mMediaPlayer.getDuration() - mMediaPlayer.getCurrentPosition();
+        long delay = remaining - mCrossfadeDuration;
+        if (delay > CROSSFADE_LEAD * 2) {
+            mHandler.postDelayed(mCrossfadeCheck, delay - CROSSFADE_LEAD);
+        } else if (delay > CROSSFADE_STEP) {
+            mHandler.postDelayed(mCrossfadeCheck, delay);
+        }
+        // 已到时间，剩余部分不足时缩短淡入淡出
+        else if (remaining > CROSSFADE_MIN_REMAINING) {
+            startCrossfade(Math.min(remaining, mCrossfadeDuration));
+        }
+        // 来不及淡入淡出
+        else {
+            chainNextMediaPlayerGapless();
+        }
+    }
+
+    private final Runnable mCrossfadeCheck = new Runnable() {
+        @Override
+        public void run() {
+            scheduleCrossfade();
+        }
+    };
+
+    /**
+     * 开始播放下一首，上一首在 length 内淡出
+     *
+     * @param length
+     */
+    private void startCrossfade(long length) {
+        mFadingMediaPlayer = swapToNextMediaPlayer();
+        mCrossfadeStart = SystemClock.uptimeMillis();
+        mCrossfadeLength = length;
+        mCurrentPosition = 0;
+        applyCrossfadeVolume();
+        mMediaPlayer.start();
+        mPlaybackState = PlaybackStateCompat.STATE_PLAYING;
+        mHandler.postDelayed(mCrossfadeTick, CROSSFADE_STEP);
+        if (mPlaybackCallback != null) {
+            mPlaybackCallback.onNextStarted();
+        }
+    }
+
+    private final Runnable mCrossfadeTick = new Runnable() {
+        @Override
+        public void run() {
+            if (mFadingMediaPlayer == null) {
+                return;
+            }
+            if (applyCrossfadeVolume()) {
+                mHandler.postDelayed(this, CROSSFADE_STEP);
+            } else {
+                finishCrossfade();
+            }
+        }
+    };
+
+    /**
+     * 按进度设置两个播放器的音量
+     *
+     * @return 淡入淡出是否尚未结束
+     */
+    private boolean applyCrossfadeVolume() {
+        float progress = Math.min(1f,
+                (float) (SystemClock.uptimeMillis() - mCrossfadeStart) / mCrossfadeLength);
+        // 等功率曲线，两者叠加后响度不变
+        float fadeIn = (float) Math.sin(progress * Math.PI / 2);
+        float fadeOut = (float) Math.cos(progress * Math.PI / 2);
+        float volume = getFocusVolume();
+        mMediaPlayer.setVolume(volume * fadeIn, volume * fadeIn);
+        mFadingMediaPlayer.setVolume(volume * fadeOut, volume * fadeOut);
+        return progress < 1f;
+    }
+
+    /**
+     * 结束交叉淡入淡出，归还上一首的播放器
+     */
+    private void finishCrossfade() {
+        mHandler.removeCallbacks(mCrossfadeTick);
+        if (mFadingMediaPlayer == null) {
+            return;
+        }
+        mPlayerPool.recycle(mFadingMediaPlayer);
+        mFadingMediaPlayer = null;
+        if (mMediaPlayer != null) {
+            mMediaPlayer.setVolume(getFocusVolume(), getFocusVolume());
+        }
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 设置预加载的音频开头部分，Android 6.0 及以上生效
+     *
+     * @param prefetcher
+     */
+    public void setTrackHeadPrefetcher(TrackHeadPrefetcher prefetcher) {
+        this.mTrackHeadPrefetcher = prefetcher;
+    }
+
+    /**
+     * 设置本地缓存代理
+     *
+     * @param server
+     */
+    public void setCacheProxyServer(CacheProxyServer server) {
+        this.mCacheProxyServer = server;
+    }
+
+    /**
+     * 设置开始播放的耗时统计
+     *
+     * @param tracker
+     */
+    public void setPlayLatencyTracker(PlayLatencyTracker tracker) {
+        this.mPlayLatencyTracker = tracker;
+    }
+
+    /**
+     * 释放所有播放器，service销毁时调用
+     */
+    public void release() {
+        relaxResources(true);
+        Log.d(TAG, mPlayerPool.toString());
+        mPlayerPool.release();
+    }
+
     /**
      * 设置{@link Playback.PlaybackCallback}回调
      *
@@ -437,12 +915,29 @@ public class MusicPlayback implements Playback, AudioManager.OnAudioFocusChangeL
             mPlaybackState = PlaybackStateCompat.STATE_ERROR;
             return;
         }
+        if (mp != mMediaPlayer) {
+            return;
+        }
+        mSeekInFlight = false;
+        // seek过程中又有新的位置，继续seek，状态等全部完成后再回调
+        if (mPendingSeek >= 0) {
+            long position = mPendingSeek;
+            boolean fast = mPendingSeekFast;
+            mPendingSeek = -1;
+            mPendingSeekFast = false;
+            issueSeek(position, fast);
+            return;
+        }
         mCurrentPosition = mp.getCurrentPosition();
         if (mPlaybackState == PlaybackStateCompat.STATE_BUFFERING) {
             registerAudioNoisyReceiver();
             mMediaPlayer.start();
             mPlaybackState = PlaybackStateCompat.STATE_PLAYING;
         }
+        // 播放位置变化，重新计算开始淡入淡出的时间
+        if (mCrossfadeDuration > 0) {
+            chainNextMediaPlayer();
+        }
         if (mPlaybackCallback != null) {
             mPlaybackCallback.onPlaybackStatusChanged(mPlaybackState);
         }
@@ -459,12 +954,28 @@ public class MusicPlayback implements Playback, AudioManager.OnAudioFocusChangeL
      */
     @Override
     public void onPrepared(MediaPlayer player) {
+        // 预加载的下一首准备完成
+        if (player == mNextMediaPlayer) {
+            mNextPrepared = true;
+            chainNextMediaPlayer();
+            return;
+        }
         // The media player is done preparing. That means we can start playing if we
         // have audio focus.
+        mMediaPlayerPrepared = true;
+        if (mPlayLatencyTracker != null) {
+            mPlayLatencyTracker.onPrepared(mCurrentSource);
+        }
         mPlaybackState = PlaybackStateCompat.STATE_PLAYING;
         mCurrentPosition = Math.min(player.getDuration(), mCurrentPosition);
-        mMediaPlayer.seekTo((int) mCurrentPosition);
+        if (mCurrentPosition > 0) {
+            issueSeek(mCurrentPosition, false);
+        }
         mMediaPlayer.start();
+        if (mPlayLatencyTracker != null) {
+            mPlayLatencyTracker.onStart(mCurrentSource);
+        }
+        chainNextMediaPlayer();
         if (mPlaybackCallback != null) {
             mPlaybackCallback.onPlaybackStatusChanged(mPlaybackState);
         }
@@ -485,8 +996,23 @@ public class MusicPlayback implements Playback, AudioManager.OnAudioFocusChangeL
      */
     @Override
     public boolean onError(MediaPlayer mp, int what, int extra) {
+        // 淡出的上一首出错，直接结束淡出
+        if (mp == mFadingMediaPlayer) {
+            Log.w(TAG, "fading MediaPlayer error " + what + " (" + extra + ")");
+            finishCrossfade();
+            return true;
+        }
+        // 预加载失败不影响当前播放，播放完成后按原来的方式切换
+        if (mp == mNextMediaPlayer) {
+            Log.w(TAG, "next MediaPlayer error " + what + " (" + extra + ")");
+            String source = mNextSource;
+            releaseNextMediaPlayer();
+            mNextSource = source;
+            return true;
+        }
         mPlaybackState = PlaybackStateCompat.STATE_ERROR;
         mCurrentPosition = getCurrentStreamPosition();
+        resetSeekState();
         if (mPlaybackCallback != null) {
             mPlaybackCallback.onError("MediaPlayer error " + what + " (" + extra + ")");
         }
@@ -506,6 +1032,21 @@ public class MusicPlayback implements Playback, AudioManager.OnAudioFocusChangeL
      */
     @Override
     public void onCompletion(MediaPlayer player) {
+        // 淡出的上一首播放完成
+        if (player == mFadingMediaPlayer) {
+            finishCrossfade();
+            return;
+        }
+        // 已无缝切换到预加载的音频
+        if (player == mMediaPlayer && mNextChained) {
+            mPlayerPool.recycle(swapToNextMediaPlayer());
+            mCurrentPosition = 0;
+            mPlaybackState = PlaybackStateCompat.STATE_PLAYING;
+            if (mPlaybackCallback != null) {
+                mPlaybackCallback.onNextStarted();
+            }
+            return;
+        }
         // 播放完成的回调
         if (mPlaybackCallback != null) {
             mPlaybackCallback.onCompletion();
@@ -595,6 +1136,13 @@ public class MusicPlayback implements Playback, AudioManager.OnAudioFocusChangeL
     }
 
 
+    /**
+     * 当前音频焦点对应的音量
+     */
+    private float getFocusVolume() {
+        return mAudioFocus == AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK ? VOLUME_DUCK : VOLUME_NORMAL;
+    }
+
     /**
      * 根据音频降焦点情况：暂停播放、正常播放、降低音量播放
      */
@@ -614,6 +1162,12 @@ public class MusicPlayback implements Playback, AudioManager.OnAudioFocusChangeL
                 registerAudioNoisyReceiver();
                 // 设置音量为正常音量
                 mMediaPlayer.setVolume(VOLUME_NORMAL, VOLUME_NORMAL);
+                if (mNextMediaPlayer != null) {
+                    mNextMediaPlayer.setVolume(VOLUME_NORMAL, VOLUME_NORMAL);
+                }
+                if (mFadingMediaPlayer != null) {
+                    applyCrossfadeVolume();
+                }
                 //
                 if (mPlayOnFocusGain) {
                     playGain();
@@ -628,6 +1182,12 @@ public class MusicPlayback implements Playback, AudioManager.OnAudioFocusChangeL
                 //暂时失去焦点，降低音量
                 if (mPlaybackState == PlaybackStateCompat.STATE_PLAYING) {
                     mMediaPlayer.setVolume(VOLUME_DUCK, VOLUME_DUCK);
+                    if (mNextMediaPlayer != null) {
+                        mNextMediaPlayer.setVolume(VOLUME_DUCK, VOLUME_DUCK);
+                    }
+                    if (mFadingMediaPlayer != null) {
+                        applyCrossfadeVolume();
+                    }
                 }
                 break;
             case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
@@ -638,6 +1198,8 @@ public class MusicPlayback implements Playback, AudioManager.OnAudioFocusChangeL
                 pause();
                 break;
         }
+        // 继续播放后重新安排交叉淡入淡出
+        chainNextMediaPlayer();
         // 回调播放状态
         if (mPlaybackCallback != null) {
             mPlaybackCallback.onPlaybackStatusChanged(mPlaybackState);
@@ -0,0 +1,182 @@
+package com.mediabrowser.xiaxl.service.playback;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 统计从点击播放到开始出声的各阶段耗时
+ * <p>
+ * Each stage is stamped with {@link SystemClock#elapsedRealtime()}, which is monotonic and
+ * shared by all processes, so the client can stamp the request before the binder call.
+ * Stamps are kept per track source. When a track starts, the gap between each pair of
+ * neighbouring stamps goes into that stage's {@link LatencyHistogram}:
+ * <pre>
+ * request ─binder─ dispatch ─queue─ play ─source─ prepareAsync ─prepare─ prepared ─start─ start
+ * </pre>
+ * Missing stamps skip their stages. For example, a preloaded next track has no prepareAsync.
+ * <p>
+ * Main thread only.
+ */
+public class PlayLatencyTracker {
+
+    /**
+     * 阶段，同时也是 {@link #toBundle()} 中的 key
+     */
+    // 客户端发出请求 到 Service 收到
+    public static final String STAGE_BINDER = "binder";
+    // Service 收到请求 到 MusicPlayback.play，包括播放队列的转换
+    public static final String STAGE_QUEUE = "queue";
+    // MusicPlayback.play 到 prepareAsync，包括创建播放器和设置数据源
+    public static final String STAGE_SOURCE = "source";
+    // prepareAsync 到 onPrepared，主要是网络
+    public static final String STAGE_PREPARE = "prepare";
+    // onPrepared 到 start
+    public static final String STAGE_START = "start";
+    // 第一个时间点 到 start
+    public static final String STAGE_TOTAL = "total";
+
+    // 最多同时记录的音频数量，未开始播放的音频不会一直保留
+    private static final int MAX_TRACES = 8;
+
+    // 各阶段的耗时
+    private final LatencyHistogram mBinder = new LatencyHistogram();
+    private final LatencyHistogram mQueue = new LatencyHistogram();
+    private final LatencyHistogram mSource = new LatencyHistogram();
+    private final LatencyHistogram mPrepare = new LatencyHistogram();
+    private final LatencyHistogram mStart = new LatencyHistogram();
+    private final LatencyHistogram mTotal = new LatencyHistogram();
+
+    // 正在处理、尚未对应到音频的请求
+    private Trace mPendingRequest;
+    // 音频地址 -> 各阶段的时间点
+    private final Map<String, Trace> mTraces = new LinkedHashMap<String, Trace>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Trace> eldest) {
+            return size() > MAX_TRACES;
+        }
+    };
+
+
+    /**
+     * 当前时间，客户端打点也使用该时间
+     *
+     * @return
+     */
+    public static long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    // ##########################################################################################
+
+    /**
+     * Service 收到播放请求，之后的 {@link #onPlay(String)} 属于该请求
+     *
+     * @param requestTime 客户端发出请求的时间，未知时传0
+     */
+    public void onRequest(long requestTime) {
+        Trace trace = new Trace();
+        trace.mRequest = requestTime;
+        trace.mDispatch = now();
+        mPendingRequest = trace;
+    }
+
+    /**
+     * 播放请求处理完毕，没有播放音频时丢弃
+     */
+    public void endRequest() {
+        mPendingRequest = null;
+    }
+
+    public void onPlay(String source) {
+        if (source == null) {
+            return;
+        }
+        Trace trace = mPendingRequest != null ? mPendingRequest : new Trace();
+        mPendingRequest = null;
+        trace.mPlay = now();
+        mTraces.put(source, trace);
+    }
+
+    public void onPrepareAsync(String source) {
+        Trace trace = source != null ? mTraces.get(source) : null;
+        if (trace != null) {
+            trace.mPrepareAsync = now();
+        }
+    }
+
+    public void onPrepared(String source) {
+        Trace trace = source != null ? mTraces.get(source) : null;
+        if (trace != null) {
+            trace.mPrepared = now();
+        }
+    }
+
+    /**
+     * 开始出声，计入直方图
+     *
+     * @param source
+     */
+    public void onStart(String source) {
+        Trace trace = source != null ? mTraces.remove(source) : null;
+        if (trace == null) {
+            return;
+        }
+        long start = now();
+        record(mBinder, trace.mRequest, trace.mDispatch);
+        record(mQueue, trace.mDispatch, trace.mPlay);
+        record(mSource, trace.mPlay, trace.mPrepareAsync);
+        record(mPrepare, trace.mPrepareAsync, trace.mPrepared);
+        record(mStart, trace.mPrepared, start);
+        long first = trace.mRequest > 0 ? trace.mRequest
+                : trace.mDispatch > 0 ? trace.mDispatch : trace.mPlay;
+        record(mTotal, first, start);
+    }
+
+    private static void record(LatencyHistogram histogram, long from, long to) {
+        if (from > 0 && to > 0) {
+            histogram.record(to - from);
+        }
+    }
+
+    // ##########################################################################################
+
+    /**
+     * 各阶段的直方图，key 为 STAGE_*，value 为 {@link LatencyHistogram#toBundle()}
+     *
+     * @return
+     */
+    public Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putBundle(STAGE_BINDER, mBinder.toBundle());
+        bundle.putBundle(STAGE_QUEUE, mQueue.toBundle());
+        bundle.putBundle(STAGE_SOURCE, mSource.toBundle());
+        bundle.putBundle(STAGE_PREPARE, mPrepare.toBundle());
+        bundle.putBundle(STAGE_START, mStart.toBundle());
+        bundle.putBundle(STAGE_TOTAL, mTotal.toBundle());
+        return bundle;
+    }
+
+    @Override
+    public String toString() {
+        return "PlayLatencyTracker{" + STAGE_BINDER + "=" + mBinder
+                + ", " + STAGE_QUEUE + "=" + mQueue
+                + ", " + STAGE_SOURCE + "=" + mSource
+                + ", " + STAGE_PREPARE + "=" + mPrepare
+                + ", " + STAGE_START + "=" + mStart
+                + ", " + STAGE_TOTAL + "=" + mTotal + "}";
+    }
+
+    /**
+     * 一次播放各阶段的时间点，0表示没有经过该阶段
+     */
+    private static class Trace {
+        long mRequest;
+        long mDispatch;
+        long mPlay;
+        long mPrepareAsync;
+        long mPrepared;
+    }
+}
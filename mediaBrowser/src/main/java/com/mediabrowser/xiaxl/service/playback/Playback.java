@@ -67,10 +67,46 @@ public interface Playback {
 
     void play(String url);
 
+    /**
+     * 从position处开始播放
+     *
+     * @param url
+     * @param position 开始播放的位置(ms)
+     */
+    void play(String url, long position);
+
+    /**
+     * 预加载下一首音频，当前音频播放完成后无缝切换，
+     * 切换后回调{@link PlaybackCallback#onNextStarted()}而不是{@link PlaybackCallback#onCompletion()}
+     *
+     * @param url 为null时取消预加载
+     */
+    void setNextSource(String url);
+
+    /**
+     * 交叉淡入淡出：在当前音频结束前 millis 开始播放预加载的下一首，
+     * 开始时回调{@link PlaybackCallback#onNextStarted()}
+     *
+     * @param millis 0表示不使用
+     */
+    void setCrossfadeDuration(long millis);
+
     void pause();
 
+    /**
+     * 精确seek，拖动结束时调用
+     *
+     * @param position
+     */
     void seekTo(long position);
 
+    /**
+     * 拖动过程中的快速seek，定位到最近的同步帧，不保证精确
+     *
+     * @param position
+     */
+    void scrubTo(long position);
+
     float getSpeed();
 
 
@@ -85,6 +121,11 @@ public interface Playback {
          */
         void onCompletion();
 
+        /**
+         * 当前音频播放完成，已无缝切换到{@link Playback#setNextSource(String)}预加载的音频
+         */
+        void onNextStarted();
+
         /**
          * on Playback status changed
          * Implementations can use this callback to update
@@ -0,0 +1,538 @@
+package com.mediabrowser.xiaxl.service.playback;
+
+import android.support.v4.media.session.PlaybackStateCompat;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * 模拟的播放器，由虚拟时钟驱动
+ * <p>
+ * This {@link Playback} uses no MediaPlayer, audio focus or WifiLock, so
+ * {@link com.mediabrowser.xiaxl.service.MusicPlaybackManager} and
+ * {@link com.mediabrowser.xiaxl.service.MusicQueue} can be driven on the JVM. Nothing happens
+ * on its own: prepare, seek and completion are scheduled on a virtual clock. They run, in
+ * time order, when the caller advances the clock with {@link #advanceBy(long)}. The calls and
+ * callbacks mirror {@link MusicPlayback}, including coalesced seeks and gapless switching to
+ * {@link #setNextSource(String)}. Errors are injected from a seeded {@link Random}, so a run is
+ * repeatable.
+ * <p>
+ * Not thread safe; drive it from one thread.
+ */
+public class SimulatedPlayback implements Playback {
+
+    // 事件类型
+    private static final int EVENT_PREPARED = 1;
+    private static final int EVENT_NEXT_PREPARED = 2;
+    private static final int EVENT_SEEK_COMPLETE = 3;
+    private static final int EVENT_COMPLETION = 4;
+
+    /**
+     * 配置
+     */
+    // 准备耗时
+    private long mPrepareLatency = 200;
+    // seek耗时
+    private long mSeekLatency = 20;
+    // 每个音频的时长
+    private long mTrackDuration = 3 * 60 * 1000;
+    // 交叉淡入淡出的时长，0表示不使用
+    private long mCrossfadeDuration;
+    // 准备失败的概率 0~1
+    private float mErrorRate;
+    private final Random mRandom;
+
+    /**
+     * 虚拟时钟
+     */
+    // 当前时间
+    private long mNow;
+    // 待执行的事件，按时间、添加顺序排列
+    private final PriorityQueue<Event> mEvents = new PriorityQueue<>(16, new Comparator<Event>() {
+        @Override
+        public int compare(Event a, Event b) {
+            if (a.mTime != b.mTime) {
+                return a.mTime < b.mTime ? -1 : 1;
+            }
+            return a.mSeq < b.mSeq ? -1 : (a.mSeq == b.mSeq ? 0 : 1);
+        }
+    });
+    private long mEventSeq;
+    // 已执行的事件数量
+    private long mEventCount;
+
+    /**
+     * 播放器状态
+     */
+    private PlaybackCallback mPlaybackCallback;
+    private int mPlaybackState = PlaybackStateCompat.STATE_NONE;
+    // 当前音频，null表示没有
+    private String mSource;
+    // 当前音频是否已准备完成
+    private boolean mPrepared;
+    // 播放位置：mPositionTime 时的位置，播放中随时钟增长
+    private long mPosition;
+    private long mPositionTime;
+    // 当前播放器的版本，播放、暂停、停止时增加，旧版本的事件被忽略
+    private int mToken;
+    // seek
+    private boolean mSeekInFlight;
+    private long mSeekTarget;
+    private long mPendingSeek = -1;
+    // 预加载的下一首
+    private String mNextSource;
+    private boolean mNextPrepared;
+    private int mNextToken;
+
+
+    /**
+     * 构造方法
+     *
+     * @param seed 错误注入的随机种子
+     */
+    public SimulatedPlayback(long seed) {
+        this.mRandom = new Random(seed);
+    }
+
+    public void setPrepareLatency(long millis) {
+        this.mPrepareLatency = millis;
+    }
+
+    public void setSeekLatency(long millis) {
+        this.mSeekLatency = millis;
+    }
+
+    public void setTrackDuration(long millis) {
+        this.mTrackDuration = millis;
+    }
+
+    public void setErrorRate(float rate) {
+        this.mErrorRate = rate;
+    }
+
+
+    // ####################################虚拟时钟######################################
+
+    /**
+     * 当前虚拟时间
+     *
+     * @return
+     */
+    public long now() {
+        return mNow;
+    }
+
+    /**
+     * 时钟前进 millis，期间到期的事件按顺序执行，包括执行过程中新加入的事件
+     *
+     * @param millis
+     */
+    public void advanceBy(long millis) {
+        long end = mNow + millis;
+        Event event;
+        while ((event = mEvents.peek()) != null && event.mTime <= end) {
+            mEvents.poll();
+            mNow = event.mTime;
+            mEventCount++;
+            dispatch(event);
+        }
+        mNow = end;
+    }
+
+    /**
+     * 时钟前进到下一个事件并执行
+     *
+     * @return 没有待执行的事件时返回false
+     */
+    public boolean advanceToNextEvent() {
+        Event event = mEvents.peek();
+        if (event == null) {
+            return false;
+        }
+        advanceBy(event.mTime - mNow);
+        return true;
+    }
+
+    /**
+     * 已执行的事件数量
+     *
+     * @return
+     */
+    public long getEventCount() {
+        return mEventCount;
+    }
+
+    /**
+     * 当前音频，没有时返回null
+     *
+     * @return
+     */
+    public String getSource() {
+        return mSource;
+    }
+
+    private void schedule(int type, long delay, int token) {
+        mEvents.add(new Event(mNow + Math.max(0, delay), mEventSeq++, type, token));
+    }
+
+    private void dispatch(Event event) {
+        switch (event.mType) {
+            case EVENT_PREPARED:
+                if (event.mToken == mToken) {
+                    onPrepared();
+                }
+                break;
+            case EVENT_NEXT_PREPARED:
+                if (event.mToken == mNextToken) {
+                    onNextPrepared();
+                }
+                break;
+            case EVENT_SEEK_COMPLETE:
+                if (event.mToken == mToken) {
+                    onSeekComplete();
+                }
+                break;
+            case EVENT_COMPLETION:
+                if (event.mToken == mToken) {
+                    onCompletion();
+                }
+                break;
+        }
+    }
+
+
+    // ####################################Playback######################################
+
+    @Override
+    public void start() {
+        if (mSource == null) {
+            mPlaybackState = PlaybackStateCompat.STATE_ERROR;
+            notifyStatus();
+            return;
+        }
+        // 暂停后继续播放
+        if (mPrepared && mPlaybackState != PlaybackStateCompat.STATE_PLAYING) {
+            startPlaying();
+        }
+        // 准备过程中暂停过，重新准备
+        if (!mPrepared && mPlaybackState != PlaybackStateCompat.STATE_BUFFERING) {
+            mToken++;
+            mPlaybackState = PlaybackStateCompat.STATE_BUFFERING;
+            schedule(EVENT_PREPARED, mPrepareLatency, mToken);
+        }
+        notifyStatus();
+    }
+
+    @Override
+    public void stop(boolean notifyListeners) {
+        mPosition = getCurrentStreamPosition();
+        mPlaybackState = PlaybackStateCompat.STATE_STOPPED;
+        mToken++;
+        mSource = null;
+        mPrepared = false;
+        resetSeekState();
+        releaseNext();
+        if (notifyListeners) {
+            notifyStatus();
+        }
+    }
+
+    @Override
+    public void setState(int state) {
+        this.mPlaybackState = state;
+    }
+
+    @Override
+    public int getState() {
+        return mPlaybackState;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return mPlaybackState == PlaybackStateCompat.STATE_PLAYING;
+    }
+
+    @Override
+    public long getCurrentStreamPosition() {
+        if (mSeekInFlight) {
+            return mPendingSeek >= 0 ? mPendingSeek : mSeekTarget;
+        }
+        if (mPlaybackState == PlaybackStateCompat.STATE_PLAYING) {
+            return Math.min(mTrackDuration, mPosition + mNow - mPositionTime);
+        }
+        return mPosition;
+    }
+
+    @Override
+    public void play(String url) {
+        play(url, 0);
+    }
+
+    @Override
+    public void play(String url, long position) {
+        mToken++;
+        mPosition = Math.max(0, position);
+        resetSeekState();
+        // 预加载的音频：直接切换
+        if (mNextPrepared && url != null && url.equals(mNextSource)) {
+            mSource = url;
+            mPrepared = true;
+            releaseNext();
+            startPlaying();
+            notifyStatus();
+            return;
+        }
+        releaseNext();
+        mSource = url;
+        mPrepared = false;
+        if (url == null) {
+            mPlaybackState = PlaybackStateCompat.STATE_ERROR;
+            if (mPlaybackCallback != null) {
+                mPlaybackCallback.onError("null source");
+            }
+            return;
+        }
+        mPlaybackState = PlaybackStateCompat.STATE_BUFFERING;
+        schedule(EVENT_PREPARED, mPrepareLatency, mToken);
+        notifyStatus();
+    }
+
+    @Override
+    public void setNextSource(String url) {
+        if (url == null ? mNextSource == null : url.equals(mNextSource)) {
+            return;
+        }
+        releaseNext();
+        mNextSource = url;
+        if (url != null) {
+            schedule(EVENT_NEXT_PREPARED, mPrepareLatency, mNextToken);
+        }
+    }
+
+    @Override
+    public void setCrossfadeDuration(long millis) {
+        mCrossfadeDuration = millis <= 0 ? 0
+                : Math.max(MusicPlayback.CROSSFADE_MIN, Math.min(MusicPlayback.CROSSFADE_MAX, millis));
+        // 按新的时长重新安排完成事件
+        if (mPlaybackState == PlaybackStateCompat.STATE_PLAYING && !mSeekInFlight) {
+            mPosition = getCurrentStreamPosition();
+            mToken++;
+            startPlaying();
+        }
+    }
+
+    @Override
+    public void pause() {
+        if (mSource == null) {
+            mPlaybackState = PlaybackStateCompat.STATE_NONE;
+            notifyStatus();
+            return;
+        }
+        mPosition = getCurrentStreamPosition();
+        mPositionTime = mNow;
+        // 准备中：取消准备完成事件，start 时重新准备
+        if (!mPrepared) {
+            mToken++;
+            mPlaybackState = PlaybackStateCompat.STATE_PAUSED;
+            notifyStatus();
+            return;
+        }
+        // 取消完成事件，未完成的seek继续
+        if (mPlaybackState == PlaybackStateCompat.STATE_PLAYING) {
+            mToken++;
+            if (mSeekInFlight) {
+                schedule(EVENT_SEEK_COMPLETE, mSeekLatency, mToken);
+            }
+        }
+        mPlaybackState = PlaybackStateCompat.STATE_PAUSED;
+        notifyStatus();
+    }
+
+    @Override
+    public void seekTo(long position) {
+        seekTo(position, mSeekLatency);
+    }
+
+    @Override
+    public void scrubTo(long position) {
+        // 快速seek只定位到同步帧，耗时按一半计算
+        seekTo(position, mSeekLatency / 2);
+    }
+
+    /**
+     * 与 MusicPlayback 一样，同一时间只有一个seek，之间到达的位置只保留最新的一个
+     */
+    private void seekTo(long position, long latency) {
+        position = Math.max(0, Math.min(mTrackDuration, position));
+        if (mSource == null) {
+            mPosition = position;
+            mPlaybackState = PlaybackStateCompat.STATE_ERROR;
+            return;
+        }
+        // 与 MusicPlayback 一样，准备中只记录位置，准备完成后从该位置开始
+        if (!mPrepared) {
+            mPosition = position;
+            return;
+        }
+        if (mSeekInFlight) {
+            mPendingSeek = position;
+            return;
+        }
+        if (mPlaybackState == PlaybackStateCompat.STATE_PLAYING) {
+            mPosition = getCurrentStreamPosition();
+            mPositionTime = mNow;
+            // 取消完成事件，seek完成后重新计算
+            mToken++;
+            mPlaybackState = PlaybackStateCompat.STATE_BUFFERING;
+        }
+        issueSeek(position, latency);
+        notifyStatus();
+    }
+
+    private void issueSeek(long position, long latency) {
+        mSeekInFlight = true;
+        mSeekTarget = position;
+        schedule(EVENT_SEEK_COMPLETE, latency, mToken);
+    }
+
+    private void resetSeekState() {
+        mSeekInFlight = false;
+        mPendingSeek = -1;
+    }
+
+    @Override
+    public float getSpeed() {
+        return 1f;
+    }
+
+    @Override
+    public void setCallback(PlaybackCallback callback) {
+        this.mPlaybackCallback = callback;
+    }
+
+
+    // ####################################事件######################################
+
+    private void onPrepared() {
+        // 注入的错误
+        if (mRandom.nextFloat() < mErrorRate) {
+            mPrepared = false;
+            mPlaybackState = PlaybackStateCompat.STATE_ERROR;
+            if (mPlaybackCallback != null) {
+                mPlaybackCallback.onError("simulated prepare error");
+            }
+            return;
+        }
+        mPrepared = true;
+        mPosition = Math.min(mTrackDuration, mPosition);
+        startPlaying();
+        notifyStatus();
+    }
+
+    private void onNextPrepared() {
+        // 预加载失败不影响当前播放
+        if (mRandom.nextFloat() < mErrorRate) {
+            mNextToken++;
+            mNextPrepared = false;
+            return;
+        }
+        mNextPrepared = true;
+    }
+
+    private void onSeekComplete() {
+        mSeekInFlight = false;
+        mPosition = mSeekTarget;
+        mPositionTime = mNow;
+        // seek过程中又有新的位置
+        if (mPendingSeek >= 0) {
+            long position = mPendingSeek;
+            mPendingSeek = -1;
+            issueSeek(position, mSeekLatency);
+            return;
+        }
+        // 从新位置重新安排完成事件，准备中的 EVENT_PREPARED 不受影响
+        if (mPrepared && (mPlaybackState == PlaybackStateCompat.STATE_BUFFERING
+                || mPlaybackState == PlaybackStateCompat.STATE_PLAYING)) {
+            mToken++;
+            startPlaying();
+        }
+        notifyStatus();
+    }
+
+    private void onCompletion() {
+        mPosition = getCurrentStreamPosition();
+        mPositionTime = mNow;
+        // 交叉淡入淡出的时间点，下一首尚未准备好时等到播放结束
+        if (mPosition < mTrackDuration && !mNextPrepared) {
+            schedule(EVENT_COMPLETION, mTrackDuration - mPosition, mToken);
+            return;
+        }
+        // 无缝切换（或交叉淡入淡出）到预加载的音频，上一首的淡出不影响状态
+        if (mNextPrepared) {
+            mSource = mNextSource;
+            releaseNext();
+            resetSeekState();
+            mToken++;
+            mPosition = 0;
+            startPlaying();
+            if (mPlaybackCallback != null) {
+                mPlaybackCallback.onNextStarted();
+            }
+            return;
+        }
+        if (mPlaybackCallback != null) {
+            mPlaybackCallback.onCompletion();
+        }
+    }
+
+    /**
+     * 从 mPosition 开始播放，并安排完成事件，使用交叉淡入淡出时提前到淡入淡出开始的时间
+     */
+    private void startPlaying() {
+        mPlaybackState = PlaybackStateCompat.STATE_PLAYING;
+        mPositionTime = mNow;
+        long end = Math.max(mPosition, mTrackDuration - mCrossfadeDuration);
+        schedule(EVENT_COMPLETION, end - mPosition, mToken);
+    }
+
+    private void releaseNext() {
+        mNextToken++;
+        mNextSource = null;
+        mNextPrepared = false;
+    }
+
+    private void notifyStatus() {
+        if (mPlaybackCallback != null) {
+            mPlaybackCallback.onPlaybackStatusChanged(mPlaybackState);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SimulatedPlayback{now=" + mNow + ", events=" + mEventCount
+                + ", pending=" + mEvents.size() + ", state=" + mPlaybackState + "}";
+    }
+
+    /**
+     * 虚拟时钟上的事件
+     */
+    private static class Event {
+        final long mTime;
+        final long mSeq;
+        final int mType;
+        final int mToken;
+
+        Event(long time, long seq, int type, int token) {
+            this.mTime = time;
+            this.mSeq = seq;
+            this.mType = type;
+            this.mToken = token;
+        }
+    }
+}
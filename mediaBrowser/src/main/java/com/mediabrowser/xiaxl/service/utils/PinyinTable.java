@@ -0,0 +1,118 @@
+package com.mediabrowser.xiaxl.service.utils;
+
+import android.content.res.Resources;
+import android.util.Log;
+
+import com.mediabrowser.xiaxl.R;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 汉字 -> 拼音（不带声调）
+ * <p>
+ * Backed by res/raw/pinyin_table.dat: the syllable list, then one short syllable index per
+ * code point from U+4E00 to U+9FFF (-1 when there is no reading). Polyphonic characters keep
+ * their most common reading only. The table is about 44KB and is read on first use; it is
+ * generated by mediaBrowser/tools/GeneratePinyinTable.java.
+ */
+public final class PinyinTable {
+
+    private static final String TAG = "PinyinTable";
+
+    private static final int MAGIC = 0x50595431;
+    private static final int VERSION = 1;
+
+    private static volatile PinyinTable sInstance;
+
+    // 拼音音节
+    private final String[] mSyllables;
+    // 第一个汉字
+    private final int mFirstCodePoint;
+    // 汉字对应的音节index
+    private final short[] mTable;
+
+
+    private PinyinTable(String[] syllables, int firstCodePoint, short[] table) {
+        this.mSyllables = syllables;
+        this.mFirstCodePoint = firstCodePoint;
+        this.mTable = table;
+    }
+
+    /**
+     * 获取拼音表，第一次调用时从资源文件读取
+     *
+     * @param resources
+     * @return
+     */
+    public static PinyinTable getInstance(Resources resources) {
+        if (sInstance == null) {
+            synchronized (PinyinTable.class) {
+                if (sInstance == null) {
+                    sInstance = load(resources);
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    private static PinyinTable load(Resources resources) {
+        InputStream in = null;
+        try {
+            in = resources.openRawResource(R.raw.pinyin_table);
+            return read(in);
+        } catch (Exception e) {
+            Log.e(TAG, "load: " + e.getMessage());
+            return new PinyinTable(new String[0], 0, new short[0]);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 从 pinyin_table.dat 格式的数据读取拼音表，不关闭输入流
+     *
+     * @param input
+     * @return
+     * @throws IOException 格式不对或数据不完整
+     */
+    public static PinyinTable read(InputStream input) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("bad pinyin table");
+        }
+        String[] syllables = new String[in.readShort()];
+        for (int i = 0; i < syllables.length; i++) {
+            syllables[i] = in.readUTF();
+        }
+        int firstCodePoint = in.readInt();
+        short[] table = new short[in.readInt()];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = in.readShort();
+        }
+        return new PinyinTable(syllables, firstCodePoint, table);
+    }
+
+    /**
+     * 汉字的拼音
+     *
+     * @param codePoint
+     * @return 不是汉字或没有读音时返回null
+     */
+    public String toPinyin(int codePoint) {
+        int offset = codePoint - mFirstCodePoint;
+        if (offset < 0 || offset >= mTable.length) {
+            return null;
+        }
+        int index = mTable[offset];
+        return index < 0 ? null : mSyllables[index];
+    }
+}
@@ -16,10 +16,8 @@
 
 package com.mediabrowser.xiaxl.service.utils;
 
-import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -68,27 +66,6 @@ public class QueueUtil {
     }
 
 
-    /**
-     * MediaMetadataCompat 转化为 MediaSessionCompat.QueueItem
-     *
-     * @param tracks
-     * @return
-     */
-    public static List<MediaSessionCompat.QueueItem> convertToQueue(Iterable<MediaMetadataCompat> tracks) {
-        List<MediaSessionCompat.QueueItem> queue = new ArrayList<>();
-        int count = 0;
-        for (MediaMetadataCompat track : tracks) {
-            // We don't expect queues to change after created, so we use the item index as the
-            // queueId. Any other number unique in the queue would work.
-            MediaSessionCompat.QueueItem item = new MediaSessionCompat.QueueItem(
-                    track.getDescription(), count++);
-            queue.add(item);
-        }
-        return queue;
-
-    }
-
-
     /**
      * 判断对应index是否存在
      *
@@ -0,0 +1,223 @@
+package com.mediabrowser.xiaxl.service;
+
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+
+import com.mediabrowser.xiaxl.client.model.IMusicInfo;
+import com.mediabrowser.xiaxl.client.utils.MusicConvertUtil;
+import com.mediabrowser.xiaxl.client.utils.MusicMetadataConstant;
+import com.mediabrowser.xiaxl.client.utils.StringPool;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 5万首音频的曲库：重复的歌手、专辑、流派、封面地址在播放队列中只保留一份
+ * <p>
+ * Every synthetic track returns freshly built strings, the way beans parsed from JSON do.
+ * The deterministic check counts distinct string instances in the pooled columns of the
+ * {@link QueueStore}; the heap figures printed alongside come from {@link Runtime} and are
+ * only a rough guide.
+ * <p>
+ * The queue heap comparison measures, at {@link #QUEUE_TRACKS}, what each representation
+ * retains: one MediaMetadataCompat (with its cached MediaDescriptionCompat) and one QueueItem
+ * per track, as the queue held before QueueStore, against the QueueStore alone once the
+ * metadata it was built from is dropped. The store still keeps the per-track strings (mediaId,
+ * title, description, source) and its two lookup tries, so the saving comes from the Bundles,
+ * descriptions and repeated strings. Figures are JVM heap under Robolectric, not ART, and
+ * vary between runs, so only the direction is asserted.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class CatalogMemoryBenchmarkTest {
+
+    private static final int TRACKS = 50000;
+    private static final int ARTISTS = 500;
+    private static final int ALBUMS = 2000;
+    private static final int GENRES = 20;
+    private static final int QUEUE_TRACKS = 10000;
+
+    // 去重的列
+    private static final List<String> POOLED_KEYS = Arrays.asList(
+            MediaMetadataCompat.METADATA_KEY_ARTIST,
+            MediaMetadataCompat.METADATA_KEY_ALBUM,
+            MediaMetadataCompat.METADATA_KEY_GENRE,
+            MediaMetadataCompat.METADATA_KEY_ART_URI,
+            MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI,
+            MusicMetadataConstant.CUSTOM_METADATA_PAY_TYPE);
+
+    @Test
+    public void repeatedStringsAreKeptOnce() {
+        List<IMusicInfo> catalog = new ArrayList<>(TRACKS);
+        for (int i = 0; i < TRACKS; i++) {
+            catalog.add(new SyntheticTrack(i));
+        }
+        StringPool pool = new StringPool(false);
+        List<MediaMetadataCompat> list = new ArrayList<>(TRACKS);
+        for (IMusicInfo info : catalog) {
+            list.add(MusicConvertUtil.convertToMediaMetadata(info, pool));
+        }
+
+        long before = usedHeap();
+        QueueStore store = QueueStore.of(list, 1);
+        long after = usedHeap();
+        assertEquals(TRACKS, store.size());
+
+        Set<String> values = new HashSet<>();
+        IdentityHashMap<String, Boolean> instances = new IdentityHashMap<>();
+        long pooledBytes = 0;
+        long copiedBytes = 0;
+        for (int k = 0; k < QueueStore.STRING_KEYS.length; k++) {
+            if (!POOLED_KEYS.contains(QueueStore.STRING_KEYS[k])) {
+                continue;
+            }
+            for (int i = 0; i < TRACKS; i++) {
+                String value = store.getString(k, i);
+                values.add(value);
+                if (instances.put(value, Boolean.TRUE) == null) {
+                    pooledBytes += stringBytes(value);
+                }
+                copiedBytes += stringBytes(value);
+            }
+        }
+        System.out.println("tracks=" + TRACKS + " pooled values=" + values.size()
+                + " instances=" + instances.size() + " strings ~" + pooledBytes / 1024
+                + "KB (one copy per track ~" + copiedBytes / 1024 + "KB), store heap ~"
+                + (after - before) / 1024 + "KB, " + pool);
+
+        assertEquals(values.size(), instances.size());
+        // 去重后的字符串不到每首一份时的 5%
+        assertTrue(pooledBytes * 20 < copiedBytes);
+    }
+
+    @Test
+    public void queueStoreRetainsLessHeapThanMetadataAndQueueItems() {
+        List<IMusicInfo> catalog = new ArrayList<>(QUEUE_TRACKS);
+        for (int i = 0; i < QUEUE_TRACKS; i++) {
+            catalog.add(new SyntheticTrack(i));
+        }
+
+        // 每首一个MediaMetadataCompat和一个QueueItem
+        long before = usedHeap();
+        List<MediaMetadataCompat> metadatas = MusicConvertUtil.convertToMediaMetadataList(catalog);
+        List<MediaSessionCompat.QueueItem> items = new ArrayList<>(QUEUE_TRACKS);
+        for (int i = 0; i < QUEUE_TRACKS; i++) {
+            items.add(new MediaSessionCompat.QueueItem(metadatas.get(i).getDescription(), i));
+        }
+        long objectBytes = usedHeap() - before;
+        assertEquals(metadatas.size(), items.size());
+        metadatas = null;
+        items = null;
+
+        // 只保留QueueStore
+        before = usedHeap();
+        List<MediaMetadataCompat> input = MusicConvertUtil.convertToMediaMetadataList(catalog);
+        QueueStore store = QueueStore.of(input, 0);
+        input = null;
+        long storeBytes = usedHeap() - before;
+        assertEquals(QUEUE_TRACKS, store.size());
+
+        System.out.println(String.format("tracks=%d metadata+queueItems ~%dKB, queueStore ~%dKB,"
+                        + " saved ~%dKB (%.1fx)", QUEUE_TRACKS, objectBytes / 1024,
+                storeBytes / 1024, (objectBytes - storeBytes) / 1024,
+                (double) objectBytes / Math.max(1, storeBytes)));
+        assertTrue(storeBytes < objectBytes);
+    }
+
+    /**
+     * 字符串占用的大致字节数：对象头、字段和 char 数组
+     */
+    private static long stringBytes(String value) {
+        return 40 + 2L * value.length();
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * 每次调用都返回新建的字符串
+     */
+    private static final class SyntheticTrack implements IMusicInfo {
+        private final int mIndex;
+
+        SyntheticTrack(int index) {
+            this.mIndex = index;
+        }
+
+        private int album() {
+            return mIndex % ALBUMS;
+        }
+
+        @Override
+        public String getMediaId() {
+            return "music_" + mIndex;
+        }
+
+        @Override
+        public String getSource() {
+            return "http://music.example.com/track/" + mIndex + ".mp3";
+        }
+
+        @Override
+        public String getArtUrl() {
+            return "http://img.example.com/album/" + album() + "/cover.jpg";
+        }
+
+        @Override
+        public String getTitle() {
+            return "title " + mIndex;
+        }
+
+        @Override
+        public String getDescription() {
+            return "description " + mIndex;
+        }
+
+        @Override
+        public String getArtist() {
+            return "artist " + album() % ARTISTS;
+        }
+
+        @Override
+        public String getAlbum() {
+            return "album " + album();
+        }
+
+        @Override
+        public String getAlbumArtUrl() {
+            return "http://img.example.com/album/" + album() + "/large.jpg";
+        }
+
+        @Override
+        public String getGenre() {
+            return "genre " + album() % GENRES;
+        }
+
+        @Override
+        public String freeType() {
+            return mIndex % 10 == 0 ? "pay" : "free";
+        }
+
+        @Override
+        public long getDuration() {
+            return 180000 + mIndex % 60000;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.mediabrowser.xiaxl.service;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * HashTrie 与 HashMap 的结果对比
+ */
+public class HashTrieTest {
+
+    /**
+     * hashCode 全部相同的key，覆盖冲突节点
+     */
+    private static final class CollidingKey {
+        final int mValue;
+
+        CollidingKey(int value) {
+            this.mValue = value;
+        }
+
+        @Override
+        public int hashCode() {
+            return 42;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof CollidingKey && ((CollidingKey) o).mValue == mValue;
+        }
+    }
+
+    @Test
+    public void putAndRemoveMatchHashMap() {
+        Random random = new Random(1);
+        Map<Integer, Integer> expected = new HashMap<>();
+        HashTrie<Integer, Integer> trie = HashTrie.empty();
+        for (int i = 0; i < 50000; i++) {
+            // key范围较小，put和remove经常命中已有的key
+            Integer key = random.nextInt(5000);
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                trie = trie.remove(key);
+            } else {
+                expected.put(key, i);
+                trie = trie.put(key, i);
+            }
+        }
+        assertMatches(expected, trie, 5000);
+    }
+
+    @Test
+    public void oldVersionsAreUnchanged() {
+        HashTrie<String, Integer> trie = HashTrie.empty();
+        for (int i = 0; i < 1000; i++) {
+            trie = trie.put("k" + i, i);
+        }
+        HashTrie<String, Integer> old = trie;
+        HashTrie.Builder<String, Integer> builder = trie.toBuilder();
+        for (int i = 0; i < 1000; i += 2) {
+            builder.remove("k" + i);
+            builder.put("n" + i, -i);
+        }
+        HashTrie<String, Integer> built = builder.build();
+        // 发布之后继续修改，不影响已发布的版本
+        builder.put("k1", 7);
+        builder.remove("k3");
+
+        assertEquals(1000, old.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(Integer.valueOf(i), old.get("k" + i));
+            assertNull(old.get("n" + i));
+        }
+        assertEquals(1000, built.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i % 2 == 0 ? null : Integer.valueOf(i), built.get("k" + i));
+        }
+        assertEquals(Integer.valueOf(7), builder.build().get("k1"));
+        assertNull(builder.build().get("k3"));
+    }
+
+    @Test
+    public void builderMatchesHashMap() {
+        Random random = new Random(2);
+        Map<Long, Long> expected = new HashMap<>();
+        HashTrie<Long, Long> trie = HashTrie.empty();
+        for (int round = 0; round < 50; round++) {
+            HashTrie.Builder<Long, Long> builder = trie.toBuilder();
+            for (int i = 0; i < 500; i++) {
+                Long key = (long) random.nextInt(3000);
+                if (random.nextBoolean()) {
+                    expected.remove(key);
+                    builder.remove(key);
+                } else {
+                    expected.put(key, (long) i);
+                    builder.put(key, (long) i);
+                }
+            }
+            trie = builder.build();
+            assertEquals(expected.size(), trie.size());
+        }
+        for (long key = 0; key < 3000; key++) {
+            assertEquals(expected.get(key), trie.get(key));
+        }
+    }
+
+    @Test
+    public void collidingKeys() {
+        List<CollidingKey> keys = new ArrayList<>();
+        HashTrie<CollidingKey, Integer> trie = HashTrie.empty();
+        for (int i = 0; i < 20; i++) {
+            keys.add(new CollidingKey(i));
+            trie = trie.put(keys.get(i), i);
+        }
+        assertEquals(20, trie.size());
+        for (int i = 0; i < 20; i += 2) {
+            trie = trie.remove(keys.get(i));
+        }
+        assertEquals(10, trie.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i % 2 == 0 ? null : Integer.valueOf(i), trie.get(keys.get(i)));
+        }
+        for (int i = 1; i < 20; i += 2) {
+            trie = trie.remove(keys.get(i));
+        }
+        assertEquals(0, trie.size());
+        assertNull(trie.get(keys.get(1)));
+    }
+
+    @Test
+    public void unchangedReturnsSameInstance() {
+        HashTrie<String, String> trie = HashTrie.<String, String>empty().put("a", "1");
+        assertSame(trie, trie.put("a", "1"));
+        assertSame(trie, trie.remove("b"));
+    }
+
+    private static void assertMatches(Map<Integer, Integer> expected,
+                                      HashTrie<Integer, Integer> trie, int range) {
+        assertEquals(expected.size(), trie.size());
+        for (int key = 0; key < range; key++) {
+            assertEquals(expected.get(key), trie.get(key));
+        }
+    }
+}
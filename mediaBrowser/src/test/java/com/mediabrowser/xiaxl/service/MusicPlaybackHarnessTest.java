@@ -0,0 +1,253 @@
+package com.mediabrowser.xiaxl.service;
+
+import android.os.Bundle;
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+
+import com.mediabrowser.xiaxl.client.utils.MusicMetadataConstant;
+import com.mediabrowser.xiaxl.service.playback.SimulatedPlayback;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 在JVM上用 SimulatedPlayback 驱动 MusicPlaybackManager 和 MusicQueue
+ * <p>
+ * Random play, skip, seek, pause and queue edits, sent through the session callback as a
+ * client would, are interleaved with steps of the virtual clock. After each step the player must hold the track the queue says is current whenever
+ * it is playing or buffering, and its position must stay inside the track.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class MusicPlaybackHarnessTest {
+
+    private static final int TRACKS = 200;
+    private static final long TRACK_DURATION = 60 * 1000;
+    private static final int STEPS = 5000;
+
+    private MusicQueue mMusicQueue;
+    private SimulatedPlayback mPlayback;
+    private MusicPlaybackManager mManager;
+    private MediaSessionCompat.Callback mSession;
+    // 最近一次发布的播放状态
+    private PlaybackStateCompat mLastState;
+    // 没有音频时seek，与 MusicPlayback 一样会进入错误状态
+    private boolean mSeekWithoutTrack;
+    private int mNextMusicId;
+
+    @Before
+    public void setUp() {
+        mMusicQueue = new MusicQueue(RuntimeEnvironment.application.getResources(),
+                new MusicQueue.MetadataUpdateListener() {
+                    @Override
+                    public void onBeforeMetadataChanged(MediaMetadataCompat metadata) {
+                    }
+
+                    @Override
+                    public void onMetadataChanged(MediaMetadataCompat metadata) {
+                    }
+
+                    @Override
+                    public void onMetadataRetrieveError() {
+                    }
+
+                    @Override
+                    public void onQueueUpdated(String title,
+                                               List<MediaSessionCompat.QueueItem> newQueue) {
+                    }
+                });
+        mMusicQueue.setQueueWindow(20, 20);
+        mMusicQueue.setNewMediaMetadatas("harness", newMetadatas(TRACKS), 0);
+        mPlayback = new SimulatedPlayback(1);
+        mPlayback.setTrackDuration(TRACK_DURATION);
+        mManager = new MusicPlaybackManager(RuntimeEnvironment.application,
+                new MusicPlaybackManager.PlaybackServiceCallback() {
+                    @Override
+                    public void onPlaybackStart() {
+                    }
+
+                    @Override
+                    public void onNotificationRequired() {
+                    }
+
+                    @Override
+                    public void onPlaybackPause() {
+                    }
+
+                    @Override
+                    public void onPlaybackStop() {
+                    }
+
+                    @Override
+                    public void onPlaybackStateUpdated(PlaybackStateCompat newState) {
+                        mLastState = newState;
+                    }
+
+                    @Override
+                    public void onShuffleModeChanged(int shuffleMode) {
+                    }
+
+                    @Override
+                    public void onRepeatModeChanged(int repeatMode) {
+                    }
+                }, mMusicQueue, mPlayback);
+        mManager.setGaplessEnabled(true);
+        mSession = mManager.getMediaSessionCallback();
+    }
+
+    @Test
+    public void randomEventsKeepPlayerOnCurrentTrack() {
+        Random random = new Random(3);
+        mSession.onPlay();
+        for (int step = 0; step < STEPS; step++) {
+            act(random);
+            mPlayback.advanceBy(random.nextInt(4) == 0 ? random.nextInt(90 * 1000) : random.nextInt(300));
+            checkInvariants();
+        }
+        assertTrue(mPlayback.getEventCount() > STEPS);
+    }
+
+    @Test
+    public void randomEventsWithErrors() {
+        mPlayback.setErrorRate(0.05f);
+        Random random = new Random(4);
+        mSession.onPlay();
+        for (int step = 0; step < STEPS; step++) {
+            act(random);
+            mPlayback.advanceBy(random.nextInt(2000));
+            int state = mPlayback.getState();
+            // 出错后重新播放，注入的错误会发布出去
+            if (state == PlaybackStateCompat.STATE_ERROR) {
+                if (!mSeekWithoutTrack) {
+                    assertEquals(PlaybackStateCompat.STATE_ERROR, mLastState.getState());
+                }
+                mSession.onPlay();
+            } else {
+                checkInvariants();
+            }
+        }
+    }
+
+    @Test
+    public void playsQueueToTheEnd() {
+        mSession.onPlay();
+        int starts = 0;
+        String source = null;
+        while (mPlayback.advanceToNextEvent()) {
+            if (mPlayback.getSource() != null && !mPlayback.getSource().equals(source)) {
+                source = mPlayback.getSource();
+                starts++;
+            }
+            checkInvariants();
+        }
+        // 无缝切换播放了每一首，最后停止在队列末尾
+        assertEquals(TRACKS, starts);
+        assertEquals(PlaybackStateCompat.STATE_STOPPED, mPlayback.getState());
+        assertEquals(TRACKS - 1, mMusicQueue.getState().getCurrentIndex());
+        assertEquals(TRACKS * TRACK_DURATION, mPlayback.now(), 1000);
+    }
+
+    // ##########################################################################################
+
+    /**
+     * 一个随机操作
+     */
+    private void act(Random random) {
+        int size = mMusicQueue.getState().size();
+        if (mPlayback.getState() != PlaybackStateCompat.STATE_ERROR) {
+            mSeekWithoutTrack = false;
+        }
+        switch (random.nextInt(12)) {
+            case 0:
+            case 1:
+                mSession.onSkipToNext();
+                break;
+            case 2:
+                mSession.onSkipToPrevious();
+                break;
+            case 3:
+            case 4:
+                mSeekWithoutTrack |= mPlayback.getSource() == null;
+                mSession.onSeekTo(random.nextInt((int) TRACK_DURATION));
+                break;
+            case 5:
+                mSession.onPause();
+                break;
+            case 6:
+                mSession.onPlay();
+                break;
+            case 7:
+                String mediaId = mMusicQueue.getState().getStore().getMediaId(random.nextInt(size));
+                mSession.onPlayFromMediaId(mediaId, null);
+                break;
+            case 8:
+                mSession.onSetShuffleMode(random.nextBoolean()
+                        ? PlaybackStateCompat.SHUFFLE_MODE_ALL : PlaybackStateCompat.SHUFFLE_MODE_NONE);
+                break;
+            case 9:
+                // 可能移除正在播放的音频
+                if (size > 20) {
+                    Bundle remove = new Bundle();
+                    int current = mMusicQueue.getState().getCurrentIndex();
+                    remove.putInt(MusicPlaybackManager.KEY_MUSIC_QUEUE_POSITION, Math.max(0, current - random.nextInt(2)));
+                    remove.putInt(MusicPlaybackManager.KEY_MUSIC_QUEUE_COUNT, 1 + random.nextInt(2));
+                    mSession.onCustomAction(MusicPlaybackManager.CUSTOM_ACTION_MUSIC_QUEUE_REMOVE, remove);
+                }
+                break;
+            case 10:
+                Bundle insert = new Bundle();
+                insert.putInt(MusicPlaybackManager.KEY_MUSIC_QUEUE_POSITION, random.nextInt(size + 1));
+                insert.putParcelableArrayList(MusicPlaybackManager.KEY_MUSIC_QUEUE, newMetadatas(1 + random.nextInt(3)));
+                mSession.onCustomAction(MusicPlaybackManager.CUSTOM_ACTION_MUSIC_QUEUE_INSERT, insert);
+                break;
+            default:
+                Bundle move = new Bundle();
+                move.putInt(MusicPlaybackManager.KEY_MUSIC_QUEUE_POSITION, random.nextInt(size));
+                move.putInt(MusicPlaybackManager.KEY_MUSIC_QUEUE_TO_POSITION, random.nextInt(size));
+                mSession.onCustomAction(MusicPlaybackManager.CUSTOM_ACTION_MUSIC_QUEUE_MOVE, move);
+                break;
+        }
+    }
+
+    private void checkInvariants() {
+        int state = mPlayback.getState();
+        if (state == PlaybackStateCompat.STATE_ERROR) {
+            assertTrue(mSeekWithoutTrack);
+            return;
+        }
+        long position = mPlayback.getCurrentStreamPosition();
+        assertTrue("position " + position, position >= 0 && position <= TRACK_DURATION);
+        if (state == PlaybackStateCompat.STATE_PLAYING || state == PlaybackStateCompat.STATE_BUFFERING) {
+            MusicQueue.State queue = mMusicQueue.getState();
+            String current = queue.getCurrentMediaId();
+            assertEquals(mMusicQueue.getMusicSource(current), mPlayback.getSource());
+        }
+    }
+
+    private ArrayList<MediaMetadataCompat> newMetadatas(int count) {
+        ArrayList<MediaMetadataCompat> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String mediaId = "music_" + mNextMusicId++;
+            list.add(new MediaMetadataCompat.Builder()
+                    .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, mediaId)
+                    .putString(MediaMetadataCompat.METADATA_KEY_TITLE, "title " + mediaId)
+                    .putString(MusicMetadataConstant.CUSTOM_METADATA_TRACK_SOURCE,
+                            "http://example.com/" + mediaId + ".mp3")
+                    .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, TRACK_DURATION)
+                    .build());
+        }
+        return list;
+    }
+}
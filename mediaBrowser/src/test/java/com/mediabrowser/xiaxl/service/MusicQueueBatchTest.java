@@ -0,0 +1,104 @@
+package com.mediabrowser.xiaxl.service;
+
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 分段发送的播放列表：批量插入期间不发布队列，结束时发布一次
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class MusicQueueBatchTest {
+
+    private static final int CHUNK_SIZE = 200;
+    private static final int CHUNKS = 50;
+
+    private MusicQueue mMusicQueue;
+    // 回调的队列
+    private final List<List<MediaSessionCompat.QueueItem>> mPublished = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mMusicQueue = new MusicQueue(RuntimeEnvironment.application.getResources(),
+                new MusicQueue.MetadataUpdateListener() {
+                    @Override
+                    public void onBeforeMetadataChanged(MediaMetadataCompat metadata) {
+                    }
+
+                    @Override
+                    public void onMetadataChanged(MediaMetadataCompat metadata) {
+                    }
+
+                    @Override
+                    public void onMetadataRetrieveError() {
+                    }
+
+                    @Override
+                    public void onQueueUpdated(String title,
+                                               List<MediaSessionCompat.QueueItem> newQueue) {
+                        mPublished.add(newQueue);
+                    }
+                });
+    }
+
+    @Test
+    public void transferPublishesOnce() {
+        mMusicQueue.setNewMediaMetadatas("batch", metadatas(0, CHUNK_SIZE), 0);
+        mMusicQueue.setShuffleMode(true);
+        mPublished.clear();
+        // 先追加尾部，再从后往前插入头部，与 MusicManager 的发送顺序相同
+        mMusicQueue.beginBatchEdit();
+        for (int c = 1; c < CHUNKS; c++) {
+            mMusicQueue.appendMediaMetadatas(metadatas(c * CHUNK_SIZE, CHUNK_SIZE));
+            mMusicQueue.insertMediaMetadatas(0, metadatas(-c * CHUNK_SIZE, CHUNK_SIZE));
+            assertEquals(0, mPublished.size());
+        }
+        mMusicQueue.endBatchEdit();
+
+        int size = (2 * CHUNKS - 1) * CHUNK_SIZE;
+        assertEquals(1, mPublished.size());
+        assertEquals(size, mPublished.get(0).size());
+        assertEquals(size, mMusicQueue.getState().size());
+        // 当前音频跟随插入后移，随机顺序覆盖整个队列
+        assertEquals("music_0", mMusicQueue.getState().getCurrentMediaId());
+        assertEquals(size - 1, mMusicQueue.peekNextMediaIds(size).size());
+    }
+
+    @Test
+    public void editEndsBatch() {
+        mMusicQueue.setNewMediaMetadatas("batch", metadatas(0, 10), 0);
+        mPublished.clear();
+        mMusicQueue.beginBatchEdit();
+        mMusicQueue.appendMediaMetadatas(metadatas(10, 10));
+        assertEquals(0, mPublished.size());
+        // 客户端没有发送最后一段时，之后的修改会先发布已插入的部分
+        mMusicQueue.moveQueueItem(0, 1);
+        assertEquals(2, mPublished.size());
+        assertEquals(20, mPublished.get(1).size());
+        mMusicQueue.appendMediaMetadatas(metadatas(20, 10));
+        assertEquals(3, mPublished.size());
+    }
+
+    private static List<MediaMetadataCompat> metadatas(int first, int count) {
+        List<MediaMetadataCompat> list = new ArrayList<>(count);
+        for (int i = first; i < first + count; i++) {
+            list.add(new MediaMetadataCompat.Builder()
+                    .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, "music_" + i)
+                    .putString(MediaMetadataCompat.METADATA_KEY_TITLE, "title " + i)
+                    .build());
+        }
+        return list;
+    }
+}
@@ -0,0 +1,101 @@
+package com.mediabrowser.xiaxl.service;
+
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 搜索结果只包含当前播放队列和缓存队列中的音频
+ * <p>
+ * The index keeps tracks that have left every queue. More than {@link #LIMIT} of them match
+ * the query and rank first, so the live matches are only returned when the stale ones are
+ * dropped during ranking rather than after it.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class MusicQueueSearchTest {
+
+    private static final int LIMIT = 20;
+
+    private MusicQueue mMusicQueue;
+
+    @Before
+    public void setUp() {
+        mMusicQueue = new MusicQueue(RuntimeEnvironment.application.getResources(),
+                new MusicQueue.MetadataUpdateListener() {
+                    @Override
+                    public void onBeforeMetadataChanged(MediaMetadataCompat metadata) {
+                    }
+
+                    @Override
+                    public void onMetadataChanged(MediaMetadataCompat metadata) {
+                    }
+
+                    @Override
+                    public void onMetadataRetrieveError() {
+                    }
+
+                    @Override
+                    public void onQueueUpdated(String title,
+                                               List<MediaSessionCompat.QueueItem> newQueue) {
+                    }
+                });
+        // 标题完全匹配 "love"，排在前面，之后被替换
+        mMusicQueue.setNewMediaMetadatas("old", tracks("old_", "Love", 40), 0);
+        // 只有专辑匹配 "love"
+        mMusicQueue.setNewMediaMetadatas("current", tracks("current_", "Other", 5), 0);
+    }
+
+    @Test
+    public void staleTracksDoNotHideCurrentMatches() {
+        assertEquals(Arrays.asList("current_0", "current_1", "current_2", "current_3",
+                "current_4"), mMusicQueue.search("love", LIMIT));
+        // 多个token时走完全匹配的查找，同样跳过不在队列中的音频
+        assertEquals(5, mMusicQueue.search("love song", LIMIT).size());
+    }
+
+    @Test
+    public void removedTracksAreNotReturned() {
+        mMusicQueue.removeQueueRange(1, 2);
+        assertEquals(Arrays.asList("current_0", "current_3", "current_4"),
+                mMusicQueue.search("love", LIMIT));
+    }
+
+    @Test
+    public void cachedQueuesAreSearched() {
+        mMusicQueue.cacheCurrentQueue(0);
+        mMusicQueue.setNewMediaMetadatas("next", tracks("next_", "Love", 1), 0);
+        List<String> result = mMusicQueue.search("love", LIMIT);
+        assertEquals(6, result.size());
+        assertEquals("next_0", result.get(0));
+    }
+
+
+    // ##########################################################################################
+
+    private static List<MediaMetadataCompat> tracks(String prefix, String title, int count) {
+        List<MediaMetadataCompat> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(new MediaMetadataCompat.Builder()
+                    .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, prefix + i)
+                    .putString(MediaMetadataCompat.METADATA_KEY_TITLE, title + " song " + i)
+                    .putString(MediaMetadataCompat.METADATA_KEY_ARTIST, "artist")
+                    .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, "love album")
+                    .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, 180000)
+                    .build());
+        }
+        return list;
+    }
+}
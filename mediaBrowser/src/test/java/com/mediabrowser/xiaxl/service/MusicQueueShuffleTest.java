@@ -0,0 +1,154 @@
+package com.mediabrowser.xiaxl.service;
+
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 随机播放时编辑队列：已播放的顺序保持不变，未播放的音频各播放一次
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class MusicQueueShuffleTest {
+
+    private MusicQueue mMusicQueue;
+
+    @Before
+    public void setUp() {
+        mMusicQueue = new MusicQueue(RuntimeEnvironment.application.getResources(),
+                new MusicQueue.MetadataUpdateListener() {
+                    @Override
+                    public void onBeforeMetadataChanged(MediaMetadataCompat metadata) {
+                    }
+
+                    @Override
+                    public void onMetadataChanged(MediaMetadataCompat metadata) {
+                    }
+
+                    @Override
+                    public void onMetadataRetrieveError() {
+                    }
+
+                    @Override
+                    public void onQueueUpdated(String title,
+                                               List<MediaSessionCompat.QueueItem> newQueue) {
+                    }
+                });
+        mMusicQueue.setNewMediaMetadatas("shuffle", metadatas(0, 50), 0);
+        mMusicQueue.setShuffleMode(true);
+    }
+
+    @Test
+    public void insertKeepsHistoryAndPlaysEveryTrackOnce() {
+        List<String> played = skipForward(10);
+        mMusicQueue.appendMediaMetadatas(metadatas(50, 10));
+        mMusicQueue.insertMediaMetadatas(3, metadatas(60, 10));
+
+        // 上一首按原来的顺序返回
+        for (int i = played.size() - 2; i >= 0; i--) {
+            assertTrue(mMusicQueue.skipQueuePosition(-1));
+            assertEquals(played.get(i), current());
+        }
+        assertFalse(mMusicQueue.skipQueuePosition(-1));
+        for (int i = 1; i < played.size(); i++) {
+            assertTrue(mMusicQueue.skipQueuePosition(1));
+            assertEquals(played.get(i), current());
+        }
+        // 之后的音频包括新插入的，每首只播放一次
+        List<String> rest = skipForward(Integer.MAX_VALUE);
+        played.addAll(rest.subList(1, rest.size()));
+        assertEquals(70, played.size());
+        assertEquals(70, new HashSet<>(played).size());
+        assertFalse(mMusicQueue.skipQueuePosition(1));
+    }
+
+    @Test
+    public void removeSkipsRemovedTracksAndReplacesCurrent() {
+        List<String> played = skipForward(5);
+        List<String> upcoming = mMusicQueue.peekNextMediaIds(10);
+        String current = current();
+        // 移除当前音频，随机顺序中的下一首顶替
+        mMusicQueue.removeQueueRange(mMusicQueue.getState().indexOf(current), 1);
+        assertEquals(upcoming.get(0), current());
+        // 移除之后第二首
+        String removed = upcoming.get(2);
+        mMusicQueue.removeQueueRange(mMusicQueue.getState().indexOf(removed), 1);
+        List<String> expected = new ArrayList<>(upcoming.subList(1, 10));
+        expected.remove(removed);
+        assertEquals(expected, mMusicQueue.peekNextMediaIds(8));
+        // 上一首跳过被移除的音频，回到之前播放的
+        assertTrue(mMusicQueue.skipQueuePosition(-1));
+        assertEquals(played.get(played.size() - 2), current());
+    }
+
+    @Test
+    public void removingMostTracksKeepsOrder() {
+        skipForward(3);
+        List<String> upcoming = mMusicQueue.peekNextMediaIds(46);
+        Set<String> kept = new HashSet<>(upcoming.subList(0, 5));
+        kept.add(current());
+        for (int i = mMusicQueue.getState().size() - 1; i >= 0; i--) {
+            String mediaId = mMusicQueue.getState().getStore().getMediaId(i);
+            if (!kept.contains(mediaId)) {
+                mMusicQueue.removeQueueRange(i, 1);
+            }
+        }
+        assertEquals(6, mMusicQueue.getState().size());
+        assertEquals(upcoming.subList(0, 5), mMusicQueue.peekNextMediaIds(10));
+    }
+
+    @Test
+    public void moveKeepsShuffleOrder() {
+        skipForward(5);
+        List<String> upcoming = mMusicQueue.peekNextMediaIds(20);
+        String current = current();
+        mMusicQueue.moveQueueItem(0, 40);
+        mMusicQueue.moveQueueItem(30, 2);
+        assertEquals(current, current());
+        assertEquals(upcoming, mMusicQueue.peekNextMediaIds(20));
+    }
+
+    /**
+     * 从当前音频开始向后跳过最多count首
+     *
+     * @return 当前音频和之后播放的音频
+     */
+    private List<String> skipForward(int count) {
+        List<String> played = new ArrayList<>();
+        played.add(current());
+        for (int i = 0; i < count && mMusicQueue.skipQueuePosition(1); i++) {
+            played.add(current());
+        }
+        return played;
+    }
+
+    private String current() {
+        return mMusicQueue.getState().getCurrentMediaId();
+    }
+
+    private static List<MediaMetadataCompat> metadatas(int first, int count) {
+        List<MediaMetadataCompat> list = new ArrayList<>(count);
+        for (int i = first; i < first + count; i++) {
+            list.add(new MediaMetadataCompat.Builder()
+                    .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, "music_" + i)
+                    .putString(MediaMetadataCompat.METADATA_KEY_TITLE, "title " + i)
+                    .build());
+        }
+        return list;
+    }
+}
@@ -0,0 +1,196 @@
+package com.mediabrowser.xiaxl.service;
+
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 播放队列的增删移动：与 ArrayList 对比结果，并在编辑的同时从其他线程读取快照
+ * <p>
+ * Readers check that every {@link MusicQueue.State} they see is self-consistent: each
+ * position's mediaId and queueId map back to that position. A reader that observed a
+ * half-updated state would fail one of those lookups.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class MusicQueueStressTest {
+
+    private static final int INITIAL_SIZE = 5000;
+    private static final int EDITS = 3000;
+    private static final int READERS = 4;
+
+    private MusicQueue mMusicQueue;
+    // 与播放队列同步修改的mediaId列表
+    private final List<String> mExpected = new ArrayList<>();
+    private int mNextMusicId;
+
+    @Before
+    public void setUp() {
+        mMusicQueue = new MusicQueue(RuntimeEnvironment.application.getResources(),
+                new MusicQueue.MetadataUpdateListener() {
+                    @Override
+                    public void onBeforeMetadataChanged(MediaMetadataCompat metadata) {
+                    }
+
+                    @Override
+                    public void onMetadataChanged(MediaMetadataCompat metadata) {
+                    }
+
+                    @Override
+                    public void onMetadataRetrieveError() {
+                    }
+
+                    @Override
+                    public void onQueueUpdated(String title,
+                                               List<MediaSessionCompat.QueueItem> newQueue) {
+                    }
+                });
+        // 只回调当前音频附近的数据，不让每次编辑都创建整个队列
+        mMusicQueue.setQueueWindow(20, 20);
+        List<MediaMetadataCompat> list = newMetadatas(INITIAL_SIZE);
+        for (MediaMetadataCompat item : list) {
+            mExpected.add(item.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID));
+        }
+        mMusicQueue.setNewMediaMetadatas("stress", list, 0);
+    }
+
+    @Test
+    public void editsMatchListWhileReadersCheckSnapshots() throws Exception {
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch finished = new CountDownLatch(READERS);
+        for (int r = 0; r < READERS; r++) {
+            final Random random = new Random(100 + r);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (!done.get()) {
+                            checkState(mMusicQueue.getState(), random);
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        Random random = new Random(7);
+        for (int i = 0; i < EDITS && failure.get() == null; i++) {
+            edit(random);
+        }
+        done.set(true);
+        assertTrue(finished.await(30, TimeUnit.SECONDS));
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        MusicQueue.State state = mMusicQueue.getState();
+        assertEquals(mExpected.size(), state.size());
+        for (int i = 0; i < mExpected.size(); i++) {
+            assertEquals(mExpected.get(i), state.getStore().getMediaId(i));
+            assertEquals(i, state.indexOf(mExpected.get(i)));
+        }
+    }
+
+    @Test
+    public void removedItemsAreNotFound() {
+        List<String> removed = new ArrayList<>(mExpected.subList(100, 400));
+        assertEquals(300, mMusicQueue.removeQueueRange(100, 300));
+        MusicQueue.State state = mMusicQueue.getState();
+        for (String mediaId : removed) {
+            assertEquals(-1, state.indexOf(mediaId));
+            assertNull(state.getMetadata(mediaId));
+        }
+        assertEquals(100, state.indexOf(mExpected.get(400)));
+        // 已移除的音频可以再次加入
+        mMusicQueue.appendMediaMetadatas(metadatasOf(removed.subList(0, 1)));
+        assertEquals(INITIAL_SIZE - 300, mMusicQueue.getState().indexOf(removed.get(0)));
+    }
+
+    // ##########################################################################################
+
+    /**
+     * 随机的插入、删除、移动，同时修改 mExpected
+     */
+    private void edit(Random random) {
+        int size = mExpected.size();
+        int op = random.nextInt(4);
+        if (op == 0 || size < 100) {
+            int position = random.nextInt(size + 1);
+            List<MediaMetadataCompat> added = newMetadatas(1 + random.nextInt(300));
+            assertEquals(added.size(), mMusicQueue.insertMediaMetadatas(position, added));
+            for (int i = 0; i < added.size(); i++) {
+                mExpected.add(position + i, added.get(i).getString(
+                        MediaMetadataCompat.METADATA_KEY_MEDIA_ID));
+            }
+        } else if (op == 1) {
+            int position = random.nextInt(size);
+            int count = 1 + random.nextInt(Math.min(300, size - position));
+            assertEquals(count, mMusicQueue.removeQueueRange(position, count));
+            mExpected.subList(position, position + count).clear();
+        } else {
+            int from = random.nextInt(size);
+            int to = random.nextInt(size);
+            assertTrue(mMusicQueue.moveQueueItem(from, to));
+            mExpected.add(to, mExpected.remove(from));
+        }
+    }
+
+    /**
+     * 抽查一个快照内部是否一致
+     */
+    private static void checkState(MusicQueue.State state, Random random) {
+        QueueStore store = state.getStore();
+        int size = state.size();
+        if (size == 0) {
+            return;
+        }
+        for (int n = 0; n < 50; n++) {
+            int index = random.nextInt(size);
+            assertEquals(index, state.indexOf(store.getMediaId(index)));
+            assertEquals(index, store.indexOfQueueId(store.getQueueId(index)));
+        }
+    }
+
+    private List<MediaMetadataCompat> newMetadatas(int count) {
+        List<String> mediaIds = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            mediaIds.add("music_" + mNextMusicId++);
+        }
+        return metadatasOf(mediaIds);
+    }
+
+    private static List<MediaMetadataCompat> metadatasOf(List<String> mediaIds) {
+        List<MediaMetadataCompat> list = new ArrayList<>(mediaIds.size());
+        for (String mediaId : mediaIds) {
+            list.add(new MediaMetadataCompat.Builder()
+                    .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, mediaId)
+                    .putString(MediaMetadataCompat.METADATA_KEY_TITLE, "title " + mediaId)
+                    .putString(MediaMetadataCompat.METADATA_KEY_ARTIST, "artist")
+                    .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, 180000)
+                    .build());
+        }
+        return list;
+    }
+}
@@ -0,0 +1,130 @@
+package com.mediabrowser.xiaxl.service;
+
+import android.support.v4.media.MediaMetadataCompat;
+
+import com.mediabrowser.xiaxl.service.utils.PinyinTable;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 拼音和首字母搜索
+ * <p>
+ * The table is read from src/main/res/raw/pinyin_table.dat (unit tests run in the module
+ * directory) and passed in directly, so the background build does not depend on resources.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class PinyinIndexTest {
+
+    private static final int LIMIT = 20;
+    private static final long BUILD_TIMEOUT_MS = 10000;
+
+    private PinyinIndex mIndex;
+
+    @Before
+    public void setUp() throws Exception {
+        InputStream in = new FileInputStream("src/main/res/raw/pinyin_table.dat");
+        PinyinTable table;
+        try {
+            table = PinyinTable.read(in);
+        } finally {
+            in.close();
+        }
+        mIndex = new PinyinIndex(RuntimeEnvironment.application.getResources(), table);
+        mIndex.add(QueueStore.of(Arrays.asList(
+                track("0", "七里香", "周杰伦"),
+                track("1", "晴天", "周杰伦"),
+                track("2", "江南", "林俊杰"),
+                track("3", "重庆森林", "王菲"),
+                track("4", "Love Story", "Taylor Swift")), 0), 0, 5);
+    }
+
+    @Test
+    public void firstSearchBuildsInBackground() throws Exception {
+        // 拼音表加载前没有结果
+        assertEquals(Collections.<String>emptyList(), mIndex.search("zjl", LIMIT, null));
+        assertTrue(mIndex.awaitBuilt(BUILD_TIMEOUT_MS));
+        assertEquals(Arrays.asList("0", "1"), sorted(mIndex.search("zjl", LIMIT, null)));
+    }
+
+    @Test
+    public void matchesInitialsAndFullPinyinFromAnySyllable() throws Exception {
+        build();
+        assertEquals(Arrays.asList("0", "1"), sorted(mIndex.search("zhoujielun", LIMIT, null)));
+        assertEquals(Arrays.asList("0", "1"), sorted(mIndex.search("zhou jie", LIMIT, null)));
+        assertEquals(Arrays.asList("0", "1", "2"), sorted(mIndex.search("jie", LIMIT, null)));
+        assertEquals(Collections.singletonList("0"), mIndex.search("qlx", LIMIT, null));
+        assertEquals(Collections.singletonList("0"), mIndex.search("lixiang", LIMIT, null));
+        assertEquals(Collections.singletonList("2"), mIndex.search("ljj", LIMIT, null));
+        // 不含汉字的字段不建索引
+        assertEquals(Collections.<String>emptyList(), mIndex.search("love", LIMIT, null));
+    }
+
+    @Test
+    public void polyphonicCharactersUseTheirMostCommonReading() throws Exception {
+        build();
+        // 重 只有 zhong 一个读音，"chongqing" 找不到重庆
+        assertEquals(Collections.singletonList("3"), mIndex.search("zhongqing", LIMIT, null));
+        assertEquals(Collections.singletonList("3"), mIndex.search("zqsl", LIMIT, null));
+        assertEquals(Collections.<String>emptyList(), mIndex.search("chongqing", LIMIT, null));
+    }
+
+    @Test
+    public void tracksAddedDuringTheBuildAreIndexed() throws Exception {
+        mIndex.search("zjl", LIMIT, null);
+        mIndex.add(QueueStore.of(Collections.singletonList(track("5", "稻香", "周杰伦")), 5),
+                0, 1);
+        assertTrue(mIndex.awaitBuilt(BUILD_TIMEOUT_MS));
+        assertEquals(Arrays.asList("0", "1", "5"), sorted(mIndex.search("zjl", LIMIT, null)));
+        assertEquals(Collections.singletonList("5"), mIndex.search("daoxiang", LIMIT, null));
+    }
+
+    @Test
+    public void filterIsAppliedBeforeTheLimit() throws Exception {
+        build();
+        SearchIndex.Filter onlyOne = new SearchIndex.Filter() {
+            @Override
+            public boolean accept(String mediaId) {
+                return "1".equals(mediaId);
+            }
+        };
+        assertEquals(Collections.singletonList("1"), mIndex.search("zjl", 1, onlyOne));
+    }
+
+
+    // ##########################################################################################
+
+    private void build() throws InterruptedException {
+        mIndex.search("a", LIMIT, null);
+        assertTrue(mIndex.awaitBuilt(BUILD_TIMEOUT_MS));
+    }
+
+    private static List<String> sorted(List<String> list) {
+        List<String> copy = new ArrayList<>(list);
+        Collections.sort(copy);
+        return copy;
+    }
+
+    private static MediaMetadataCompat track(String mediaId, String title, String artist) {
+        return new MediaMetadataCompat.Builder()
+                .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, mediaId)
+                .putString(MediaMetadataCompat.METADATA_KEY_TITLE, title)
+                .putString(MediaMetadataCompat.METADATA_KEY_ARTIST, artist)
+                .build();
+    }
+}
@@ -0,0 +1,115 @@
+package com.mediabrowser.xiaxl.service;
+
+import android.support.v4.media.MediaMetadataCompat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 播放队列按 mediaId / queueId 查找位置的耗时不随队列长度增长
+ * <p>
+ * Each size runs the same random lookups in {@link #ROUNDS} rounds after a warmup pass, and
+ * the median round is compared, so one round stretched by GC or the scheduler does not decide
+ * the result. A linear scan would be about 100 times slower at 100k than at 1k; the hashed
+ * lookups stay within a small factor, which leaves room for cache misses on the larger
+ * tables. Only the growth is asserted: absolute times depend on the machine.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class QueueLookupBenchmarkTest {
+
+    private static final int[] SIZES = {1000, 10000, 100000};
+    // 每轮查找次数
+    private static final int LOOKUPS = 50000;
+    private static final int ROUNDS = 9;
+    // 最大与最小队列每次查找耗时的上限倍数
+    private static final double MAX_GROWTH = 10;
+
+    @Test
+    public void lookupsStayConstantTime() {
+        double[] mediaIdNanos = new double[SIZES.length];
+        double[] queueIdNanos = new double[SIZES.length];
+        for (int s = 0; s < SIZES.length; s++) {
+            int size = SIZES[s];
+            QueueStore store = QueueStore.of(newMetadatas(size), 1);
+            String[] mediaIds = new String[LOOKUPS];
+            long[] queueIds = new long[LOOKUPS];
+            int[] expected = new int[LOOKUPS];
+            Random random = new Random(size);
+            for (int i = 0; i < LOOKUPS; i++) {
+                expected[i] = random.nextInt(size);
+                mediaIds[i] = "music_" + expected[i];
+                queueIds[i] = expected[i] + 1;
+            }
+            // 预热
+            lookUpMediaIds(store, mediaIds, expected);
+            lookUpQueueIds(store, queueIds, expected);
+
+            long[] mediaIdRounds = new long[ROUNDS];
+            long[] queueIdRounds = new long[ROUNDS];
+            for (int r = 0; r < ROUNDS; r++) {
+                mediaIdRounds[r] = lookUpMediaIds(store, mediaIds, expected);
+                queueIdRounds[r] = lookUpQueueIds(store, queueIds, expected);
+            }
+            mediaIdNanos[s] = median(mediaIdRounds) / (double) LOOKUPS;
+            queueIdNanos[s] = median(queueIdRounds) / (double) LOOKUPS;
+            System.out.println(String.format(
+                    "size=%d median indexOf(mediaId)=%.0fns indexOfQueueId=%.0fns",
+                    size, mediaIdNanos[s], queueIdNanos[s]));
+        }
+        int last = SIZES.length - 1;
+        assertTrue("indexOf(mediaId) grows " + mediaIdNanos[0] + " -> " + mediaIdNanos[last],
+                mediaIdNanos[last] < Math.max(mediaIdNanos[0], 100) * MAX_GROWTH);
+        assertTrue("indexOfQueueId grows " + queueIdNanos[0] + " -> " + queueIdNanos[last],
+                queueIdNanos[last] < Math.max(queueIdNanos[0], 100) * MAX_GROWTH);
+    }
+
+    private static long median(long[] rounds) {
+        long[] sorted = rounds.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static long lookUpMediaIds(QueueStore store, String[] mediaIds, int[] expected) {
+        long start = System.nanoTime();
+        for (int i = 0; i < mediaIds.length; i++) {
+            if (store.indexOf(mediaIds[i]) != expected[i]) {
+                assertEquals(mediaIds[i], expected[i], store.indexOf(mediaIds[i]));
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long lookUpQueueIds(QueueStore store, long[] queueIds, int[] expected) {
+        long start = System.nanoTime();
+        for (int i = 0; i < queueIds.length; i++) {
+            if (store.indexOfQueueId(queueIds[i]) != expected[i]) {
+                assertEquals(expected[i], store.indexOfQueueId(queueIds[i]));
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static List<MediaMetadataCompat> newMetadatas(int count) {
+        List<MediaMetadataCompat> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(new MediaMetadataCompat.Builder()
+                    .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, "music_" + i)
+                    .putString(MediaMetadataCompat.METADATA_KEY_TITLE, "title " + i)
+                    .putString(MediaMetadataCompat.METADATA_KEY_ARTIST, "artist " + i % 100)
+                    .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, 180000)
+                    .build());
+        }
+        return list;
+    }
+}
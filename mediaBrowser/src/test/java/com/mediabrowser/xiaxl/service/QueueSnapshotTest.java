@@ -0,0 +1,160 @@
+package com.mediabrowser.xiaxl.service;
+
+import android.support.v4.media.MediaMetadataCompat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 播放队列快照的写入与恢复
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class QueueSnapshotTest {
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void restoresSavedQueueAndAppends() throws Exception {
+        File file = mFolder.newFile("queue.snapshot");
+        QueueSnapshot snapshot = new QueueSnapshot(file);
+        QueueStore store = QueueStore.of(metadatas(0, 20), 0);
+        snapshot.saveQueue("title", store, 3, 1234);
+        snapshot.insertQueue("title", store.insert(20, metadatas(20, 5), 20), 20, 5);
+        snapshot.saveState(7, 5678);
+        assertTrue(snapshot.releaseAndWait(5000));
+
+        QueueSnapshot.Data data = new QueueSnapshot(file).restore();
+        assertNotNull(data);
+        assertEquals("title", data.title);
+        assertEquals(7, data.index);
+        assertEquals(5678, data.position);
+        assertMediaIds(data.queue, 25);
+    }
+
+    @Test
+    public void ignoresHalfFinishedAppend() throws Exception {
+        File file = mFolder.newFile("queue.snapshot");
+        QueueSnapshot snapshot = new QueueSnapshot(file);
+        QueueStore store = QueueStore.of(metadatas(0, 10), 0);
+        snapshot.saveQueue("title", store, 0, 0);
+        assertTrue(snapshot.releaseAndWait(5000));
+        // 追加到一半被杀：数据写了一部分，文件头没有更新
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(raf.length());
+            raf.write(new byte[]{0, 0, 0, 5, 'm', 'u'});
+        } finally {
+            raf.close();
+        }
+        assertMediaIds(new QueueSnapshot(file).restore().queue, 10);
+
+        // 下一次追加覆盖残留的数据
+        snapshot = new QueueSnapshot(file);
+        snapshot.insertQueue("title", store.insert(10, metadatas(10, 3), 10), 10, 3);
+        assertTrue(snapshot.releaseAndWait(5000));
+        assertMediaIds(new QueueSnapshot(file).restore().queue, 13);
+    }
+
+    @Test
+    public void editsWriteOnlyTheirEntries() throws Exception {
+        File file = mFolder.newFile("queue.snapshot");
+        QueueSnapshot snapshot = new QueueSnapshot(file);
+        QueueStore store = QueueStore.of(metadatas(0, 1000), 0);
+        snapshot.saveQueue("title", store, 0, 0);
+        assertTrue(snapshot.releaseAndWait(5000));
+        long length = file.length();
+
+        snapshot = new QueueSnapshot(file);
+        store = store.remove(10, 20);
+        snapshot.removeQueue("title", store, 10, 10);
+        store = store.move(5, 500);
+        snapshot.moveQueue("title", store, 5, 500);
+        assertTrue(snapshot.releaseAndWait(5000));
+        // 每条记录 1 + 4 + 4 字节
+        assertEquals(length + 18, file.length());
+        assertSameQueue(store, new QueueSnapshot(file).restore().queue);
+    }
+
+    @Test
+    public void replaysRandomEditsAcrossRewrites() throws Exception {
+        File file = mFolder.newFile("queue.snapshot");
+        QueueSnapshot snapshot = new QueueSnapshot(file);
+        QueueStore store = QueueStore.of(metadatas(0, 200), 0);
+        snapshot.saveQueue("title", store, 0, 0);
+        Random random = new Random(6);
+        int next = 200;
+        // 超过记录数量的上限，中间会重写整个文件
+        for (int i = 0; i < 3000; i++) {
+            int op = random.nextInt(3);
+            if (op == 0 || store.size() < 10) {
+                int position = random.nextInt(store.size() + 1);
+                int count = 1 + random.nextInt(3);
+                store = store.insert(position, metadatas(next, count), next);
+                next += count;
+                snapshot.insertQueue("title", store, position, count);
+            } else if (op == 1) {
+                int position = random.nextInt(store.size());
+                int count = Math.min(store.size() - position, 1 + random.nextInt(3));
+                store = store.remove(position, position + count);
+                snapshot.removeQueue("title", store, position, count);
+            } else {
+                int from = random.nextInt(store.size());
+                int to = random.nextInt(store.size());
+                store = store.move(from, to);
+                snapshot.moveQueue("title", store, from, to);
+            }
+        }
+        assertTrue(snapshot.releaseAndWait(10000));
+        QueueSnapshot.Data data = new QueueSnapshot(file).restore();
+        assertNotNull(data);
+        assertEquals("title", data.title);
+        assertSameQueue(store, data.queue);
+    }
+
+    private static void assertSameQueue(QueueStore store, List<MediaMetadataCompat> queue) {
+        assertEquals(store.size(), queue.size());
+        for (int i = 0; i < store.size(); i++) {
+            assertEquals(store.getMediaId(i),
+                    queue.get(i).getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID));
+            assertEquals(store.getDuration(i),
+                    queue.get(i).getLong(MediaMetadataCompat.METADATA_KEY_DURATION));
+        }
+    }
+
+    private static void assertMediaIds(List<MediaMetadataCompat> queue, int count) {
+        assertEquals(count, queue.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals("music_" + i,
+                    queue.get(i).getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID));
+            assertEquals("title " + i, queue.get(i).getString(MediaMetadataCompat.METADATA_KEY_TITLE));
+        }
+    }
+
+    private static List<MediaMetadataCompat> metadatas(int first, int count) {
+        List<MediaMetadataCompat> list = new ArrayList<>(count);
+        for (int i = first; i < first + count; i++) {
+            list.add(new MediaMetadataCompat.Builder()
+                    .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, "music_" + i)
+                    .putString(MediaMetadataCompat.METADATA_KEY_TITLE, "title " + i)
+                    .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, 1000 * i)
+                    .build());
+        }
+        return list;
+    }
+}
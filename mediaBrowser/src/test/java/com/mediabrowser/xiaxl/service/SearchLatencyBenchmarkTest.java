@@ -0,0 +1,131 @@
+package com.mediabrowser.xiaxl.service;
+
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 5万首音频的播放队列中按关键词、拼音搜索的耗时
+ * <p>
+ * The first pinyin query starts building the pinyin index in the background, so the test waits
+ * for it and then runs every query in warmup passes before timing. Each query is then repeated and its median must stay under
+ * {@link #MAX_MEDIAN_NANOS}; single runs can be stretched by GC or by the scheduler on a
+ * busy machine, so the overall p90 is printed but not asserted.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class SearchLatencyBenchmarkTest {
+
+    private static final int TRACKS = 50000;
+    private static final int LIMIT = 20;
+    private static final int RUNS = 50;
+    private static final int WARMUP_RUNS = 20;
+    private static final long MAX_MEDIAN_NANOS = 5000000;
+    private static final long BUILD_TIMEOUT_MS = 30000;
+
+    private static final String[] TITLES = {
+            "七里香", "晴天", "稻香", "夜曲", "青花瓷", "告白气球", "简单爱", "说好不哭",
+            "Love Story", "Yellow", "Hello", "Shape of You", "Let It Be", "Night Changes"
+    };
+    private static final String[] ARTISTS = {
+            "周杰伦", "林俊杰", "陈奕迅", "王菲", "邓紫棋", "Taylor Swift", "Coldplay", "Adele"
+    };
+    private static final String[] GENRES = {"流行", "摇滚", "Pop", "Rock", "Jazz"};
+
+    // 搜索词：关键词、多个关键词、中文、拼音、首字母
+    private static final String[] QUERIES = {
+            "love", "love story", "night 123", "周杰伦 晴天", "青花瓷", "taylor", "jazz",
+            "zjl", "qilixiang", "chenyixun", "album 42"
+    };
+
+    private MusicQueue mMusicQueue;
+
+    @Before
+    public void setUp() {
+        mMusicQueue = new MusicQueue(RuntimeEnvironment.application.getResources(),
+                new MusicQueue.MetadataUpdateListener() {
+                    @Override
+                    public void onBeforeMetadataChanged(MediaMetadataCompat metadata) {
+                    }
+
+                    @Override
+                    public void onMetadataChanged(MediaMetadataCompat metadata) {
+                    }
+
+                    @Override
+                    public void onMetadataRetrieveError() {
+                    }
+
+                    @Override
+                    public void onQueueUpdated(String title,
+                                               List<MediaSessionCompat.QueueItem> newQueue) {
+                    }
+                });
+        mMusicQueue.setQueueWindow(20, 20);
+        List<MediaMetadataCompat> list = new ArrayList<>(TRACKS);
+        for (int i = 0; i < TRACKS; i++) {
+            list.add(new MediaMetadataCompat.Builder()
+                    .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, "music_" + i)
+                    .putString(MediaMetadataCompat.METADATA_KEY_TITLE,
+                            TITLES[i % TITLES.length] + " " + i)
+                    .putString(MediaMetadataCompat.METADATA_KEY_ARTIST,
+                            ARTISTS[(i / TITLES.length) % ARTISTS.length])
+                    .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, "album " + i % 1000)
+                    .putString(MediaMetadataCompat.METADATA_KEY_GENRE, GENRES[i % GENRES.length])
+                    .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, 180000)
+                    .build());
+        }
+        mMusicQueue.setNewMediaMetadatas("search", list, 0);
+    }
+
+    @Test
+    public void rankedSearchStaysUnderFiveMillis() throws InterruptedException {
+        // 第一次拼音搜索在后台建立拼音索引，等它完成后再预热
+        mMusicQueue.search("zjl", LIMIT);
+        assertTrue(mMusicQueue.awaitSearchIndex(BUILD_TIMEOUT_MS));
+        for (int r = 0; r < WARMUP_RUNS; r++) {
+            for (String query : QUERIES) {
+                mMusicQueue.search(query, LIMIT);
+            }
+        }
+        // 标题完全匹配的排在最前
+        List<String> exact = mMusicQueue.search("night changes 13", LIMIT);
+        assertFalse(exact.isEmpty());
+        assertEquals("music_13", exact.get(0));
+
+        long[] nanos = new long[QUERIES.length * RUNS];
+        long[] runs = new long[RUNS];
+        int n = 0;
+        for (String query : QUERIES) {
+            int found = 0;
+            for (int r = 0; r < RUNS; r++) {
+                long start = System.nanoTime();
+                found = mMusicQueue.search(query, LIMIT).size();
+                runs[r] = System.nanoTime() - start;
+                nanos[n++] = runs[r];
+            }
+            Arrays.sort(runs);
+            long median = runs[RUNS / 2];
+            System.out.println(String.format("search \"%s\": %d results, median=%.2fms max=%.2fms",
+                    query, found, median / 1e6, runs[RUNS - 1] / 1e6));
+            assertTrue("\"" + query + "\" median " + median + "ns", median < MAX_MEDIAN_NANOS);
+        }
+        Arrays.sort(nanos);
+        System.out.println(String.format("tracks=%d p50=%.2fms p90=%.2fms", TRACKS,
+                nanos[nanos.length / 2] / 1e6, nanos[nanos.length * 9 / 10] / 1e6));
+    }
+}
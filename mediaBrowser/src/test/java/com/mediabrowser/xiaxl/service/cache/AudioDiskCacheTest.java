@@ -0,0 +1,120 @@
+package com.mediabrowser.xiaxl.service.cache;
+
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 音频磁盘缓存：排队的删除不能删掉之后重新put的文件
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class AudioDiskCacheTest {
+
+    private static final String SOURCE = "http://example.com/song.mp3";
+    private static final long TIMEOUT_MS = 10000;
+
+    private Context mContext;
+    private File mDir;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mDir = new File(mContext.getCacheDir(), "audio_cache");
+    }
+
+    @Test
+    public void queuedDeleteKeepsAFileThatWasPutAgain() throws Exception {
+        AudioDiskCache cache = new AudioDiskCache(mContext);
+        put(cache, 100);
+        File cached = new File(mDir, TrackHeadPrefetcher.fileName(SOURCE) + ".audio");
+        // 文件被系统清理：get 移除条目，并在日志线程排队删除
+        assertTrue(cached.delete());
+        assertNull(cache.get(SOURCE));
+        // 删除执行前重新下载完成
+        put(cache, 200);
+        assertTrue(cache.releaseAndWait(TIMEOUT_MS));
+
+        assertTrue(cached.exists());
+        assertEquals(200, cached.length());
+        assertEquals(200, cache.size());
+        // 重启后该条目仍在：日志中最后一条是新的CLEAN
+        String key = TrackHeadPrefetcher.fileName(SOURCE);
+        assertTrue(lastLine(key).startsWith("CLEAN " + key + " 200 "));
+    }
+
+    @Test
+    public void verifyRemovesACorruptFile() throws Exception {
+        AudioDiskCache cache = new AudioDiskCache(mContext);
+        put(cache, 100);
+        assertTrue(cache.releaseAndWait(TIMEOUT_MS));
+        File cached = new File(mDir, TrackHeadPrefetcher.fileName(SOURCE) + ".audio");
+        OutputStream out = new FileOutputStream(cached, true);
+        out.write(1);
+        out.close();
+
+        // 重启后校验发现长度不一致
+        AudioDiskCache reloaded = new AudioDiskCache(mContext);
+        assertTrue(reloaded.releaseAndWait(TIMEOUT_MS));
+        assertEquals(0, reloaded.size());
+        assertFalse(cached.exists());
+        assertTrue(lastLine(TrackHeadPrefetcher.fileName(SOURCE)).startsWith("REMOVE "));
+    }
+
+
+    // ##########################################################################################
+
+    /**
+     * 写入length字节的文件并put，文件不放在缓存目录中，以免被读取日志时清理
+     */
+    private void put(AudioDiskCache cache, int length) throws IOException {
+        File file = new File(mContext.getCacheDir(), "download.tmp");
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + length);
+        }
+        OutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        assertTrue(cache.put(SOURCE, file, length, crc.getValue()) != null);
+    }
+
+    /**
+     * 日志中该key的最后一条CLEAN或REMOVE
+     */
+    private String lastLine(String key) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(new File(mDir, "journal")));
+        String last = null;
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("CLEAN " + key + ' ') || line.equals("REMOVE " + key)) {
+                    last = line;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return last;
+    }
+}
@@ -0,0 +1,133 @@
+package com.mediabrowser.xiaxl.service.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * 通过本地的 HTTP 服务器测试缓存代理
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class CacheProxyServerTest {
+
+    private static final int AUDIO_LENGTH = 1024 * 1024 + 123;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final byte[] mAudio = new byte[AUDIO_LENGTH];
+    private StandInServer mUpstream;
+    private CacheProxyServer mProxy;
+
+    @Before
+    public void setUp() throws IOException {
+        for (int i = 0; i < mAudio.length; i++) {
+            mAudio[i] = (byte) (i * 31 + (i >> 8));
+        }
+        mUpstream = new StandInServer(mAudio);
+        mProxy = new CacheProxyServer(mFolder.newFolder("proxy"), null, null);
+        assertEquals(true, mProxy.start());
+    }
+
+    @After
+    public void tearDown() {
+        mProxy.release();
+        mUpstream.close();
+    }
+
+    @Test
+    public void servesWholeTrack() throws IOException {
+        String source = mUpstream.url("/song.mp3");
+        String proxyUrl = mProxy.getProxyUrl(source);
+        assertNotEquals(source, proxyUrl);
+
+        HttpURLConnection connection = open(proxyUrl, null);
+        assertEquals(200, connection.getResponseCode());
+        assertArrayEquals(mAudio, readAll(connection));
+        // 第二次读取来自已下载的文件
+        int requests = mUpstream.mRequests.get();
+        HttpURLConnection again = open(proxyUrl, "bytes=1000-1999");
+        assertEquals(206, again.getResponseCode());
+        assertArrayEquals(Arrays.copyOfRange(mAudio, 1000, 2000), readAll(again));
+        assertEquals(requests, mUpstream.mRequests.get());
+    }
+
+    @Test
+    public void servesRangeAfterSeek() throws IOException {
+        String proxyUrl = mProxy.getProxyUrl(mUpstream.url("/seek.mp3"));
+        HttpURLConnection connection = open(proxyUrl, "bytes=300000-");
+        assertEquals(206, connection.getResponseCode());
+        assertEquals("bytes 300000-" + (AUDIO_LENGTH - 1) + "/" + AUDIO_LENGTH,
+                connection.getHeaderField("Content-Range"));
+        assertArrayEquals(Arrays.copyOfRange(mAudio, 300000, AUDIO_LENGTH), readAll(connection));
+    }
+
+    @Test
+    public void rejectsUrlsItDidNotIssue() throws IOException {
+        String proxyUrl = mProxy.getProxyUrl(mUpstream.url("/song.mp3"));
+        String base = proxyUrl.substring(0, proxyUrl.indexOf('/', "http://".length()));
+        String encoded = URLEncoder.encode(mUpstream.url("/song.mp3"), "UTF-8");
+        String token = proxyUrl.substring(base.length() + 1, proxyUrl.lastIndexOf('/'));
+
+        // 没有token、错误的token、非网络地址
+        assertEquals(403, open(base + "/" + encoded, null).getResponseCode());
+        assertEquals(403, open(base + "/0123456789abcdef/" + encoded, null).getResponseCode());
+        assertEquals(403, open(base + "/" + token + "/"
+                + URLEncoder.encode("file:///etc/hosts", "UTF-8"), null).getResponseCode());
+        assertEquals(0, mUpstream.mRequests.get());
+
+        // 重新启动后旧的地址失效
+        mProxy.release();
+        mProxy = new CacheProxyServer(mFolder.newFolder("proxy2"), null, null);
+        mProxy.start();
+        String newUrl = mProxy.getProxyUrl(mUpstream.url("/song.mp3"));
+        String newBase = newUrl.substring(0, newUrl.indexOf('/', "http://".length()));
+        assertEquals(403, open(newBase + proxyUrl.substring(base.length()), null).getResponseCode());
+        assertEquals(200, open(newUrl, null).getResponseCode());
+    }
+
+    // ##########################################################################################
+
+    private static HttpURLConnection open(String url, String range) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setReadTimeout(10000);
+        if (range != null) {
+            connection.setRequestProperty("Range", range);
+        }
+        return connection;
+    }
+
+    private static byte[] readAll(HttpURLConnection connection) throws IOException {
+        InputStream in = connection.getInputStream();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.mediabrowser.xiaxl.service.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 切歌到读到第一段音频数据的耗时：没有预加载 vs 已预加载开头部分
+ * <p>
+ * The stand-in server waits {@link #UPSTREAM_LATENCY_MS} before every response, like a slow
+ * mobile network. A skip to a cold track pays that wait before the player gets any bytes; a
+ * skip to a track whose head was prefetched is served from disk by the proxy.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 27)
+public class SkipLatencyBenchmarkTest {
+
+    private static final int AUDIO_LENGTH = 1024 * 1024;
+    private static final long UPSTREAM_LATENCY_MS = 300;
+    // 播放器开始解码前读取的数据量
+    private static final int FIRST_READ_BYTES = 16 * 1024;
+    // 每组切歌次数
+    private static final int SKIPS = 3;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final byte[] mAudio = new byte[AUDIO_LENGTH];
+    private StandInServer mUpstream;
+    private TrackHeadPrefetcher mPrefetcher;
+    private CacheProxyServer mProxy;
+
+    @Before
+    public void setUp() throws IOException {
+        for (int i = 0; i < mAudio.length; i++) {
+            mAudio[i] = (byte) (i * 17 + (i >> 9));
+        }
+        mUpstream = new StandInServer(mAudio, UPSTREAM_LATENCY_MS);
+        mPrefetcher = new TrackHeadPrefetcher(RuntimeEnvironment.application) {
+            @Override
+            boolean isNetworkAllowed() {
+                return true;
+            }
+        };
+        mProxy = new CacheProxyServer(mFolder.newFolder("proxy"), null, mPrefetcher);
+        assertEquals(true, mProxy.start());
+    }
+
+    @After
+    public void tearDown() {
+        mProxy.release();
+        mPrefetcher.release();
+        mUpstream.close();
+    }
+
+    @Test
+    public void prefetchedHeadSkipsUpstreamLatency() throws Exception {
+        List<String> prefetched = new ArrayList<>();
+        List<String> cold = new ArrayList<>();
+        for (int i = 0; i < SKIPS; i++) {
+            prefetched.add(mUpstream.url("/prefetched-" + i + ".mp3"));
+            cold.add(mUpstream.url("/cold-" + i + ".mp3"));
+        }
+        mPrefetcher.prefetch(prefetched);
+        for (String source : prefetched) {
+            awaitHead(source);
+        }
+
+        long coldTotal = 0;
+        long coldMin = Long.MAX_VALUE;
+        for (String source : cold) {
+            long ms = skipTo(source);
+            coldTotal += ms;
+            coldMin = Math.min(coldMin, ms);
+        }
+        long warmTotal = 0;
+        long warmMax = 0;
+        for (String source : prefetched) {
+            long ms = skipTo(source);
+            warmTotal += ms;
+            warmMax = Math.max(warmMax, ms);
+        }
+        System.out.println("skip to first " + FIRST_READ_BYTES + " bytes, upstream latency "
+                + UPSTREAM_LATENCY_MS + "ms: cold avg=" + coldTotal / SKIPS + "ms min=" + coldMin
+                + "ms, prefetched avg=" + warmTotal / SKIPS + "ms max=" + warmMax + "ms");
+
+        // 没有预加载时至少等待一次网络延迟
+        assertTrue("cold min " + coldMin, coldMin >= UPSTREAM_LATENCY_MS);
+        // 预加载后不需要等待网络
+        assertTrue("prefetched max " + warmMax, warmMax < UPSTREAM_LATENCY_MS / 2);
+    }
+
+    /**
+     * 通过代理请求音频，返回读到前 FIRST_READ_BYTES 的耗时
+     */
+    private long skipTo(String source) throws IOException {
+        long start = System.nanoTime();
+        HttpURLConnection connection =
+                (HttpURLConnection) new URL(mProxy.getProxyUrl(source)).openConnection();
+        connection.setConnectTimeout(5000);
+        connection.setReadTimeout(10000);
+        byte[] first = new byte[FIRST_READ_BYTES];
+        InputStream in = connection.getInputStream();
+        try {
+            int length = 0;
+            while (length < first.length) {
+                int read = in.read(first, length, first.length - length);
+                if (read < 0) {
+                    break;
+                }
+                length += read;
+            }
+            long ms = (System.nanoTime() - start) / 1000000;
+            assertArrayEquals(Arrays.copyOf(mAudio, FIRST_READ_BYTES), first);
+            return ms;
+        } finally {
+            in.close();
+            connection.disconnect();
+        }
+    }
+
+    private void awaitHead(String source) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (mPrefetcher.getHead(source) == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertNotNull("head not prefetched: " + source, mPrefetcher.getHead(source));
+    }
+}
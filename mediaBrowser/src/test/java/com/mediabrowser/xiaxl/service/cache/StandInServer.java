@@ -0,0 +1,113 @@
+package com.mediabrowser.xiaxl.service.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 代替音频服务器：返回固定的数据，支持Range
+ */
+final class StandInServer implements Runnable {
+    private final byte[] mData;
+    private final ServerSocket mServerSocket;
+    // 每个请求返回响应头之前的等待时间，模拟网络延迟
+    private final long mLatencyMs;
+    // 收到的请求数量
+    final AtomicInteger mRequests = new AtomicInteger();
+
+    StandInServer(byte[] data) throws IOException {
+        this(data, 0);
+    }
+
+    StandInServer(byte[] data, long latencyMs) throws IOException {
+        this.mData = data;
+        this.mLatencyMs = latencyMs;
+        this.mServerSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        Thread thread = new Thread(this, "stand-in");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    String url(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    void close() {
+        try {
+            mServerSocket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                }).start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = socket.getInputStream();
+            long start = 0;
+            long end = mData.length - 1;
+            boolean range = false;
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                if (line.regionMatches(true, 0, "Range: bytes=", 0, 13)) {
+                    String[] bounds = line.substring(13).split("-", -1);
+                    start = Long.parseLong(bounds[0].trim());
+                    if (!bounds[1].trim().isEmpty()) {
+                        end = Math.min(end, Long.parseLong(bounds[1].trim()));
+                    }
+                    range = true;
+                }
+            }
+            mRequests.incrementAndGet();
+            if (mLatencyMs > 0) {
+                Thread.sleep(mLatencyMs);
+            }
+            OutputStream out = socket.getOutputStream();
+            String headers = (range ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n")
+                    + "Content-Type: audio/mpeg\r\n"
+                    + "Content-Length: " + (end - start + 1) + "\r\n"
+                    + (range ? "Content-Range: bytes " + start + "-" + end + "/" + mData.length + "\r\n" : "")
+                    + "Connection: close\r\n\r\n";
+            out.write(headers.getBytes("US-ASCII"));
+            out.write(mData, (int) start, (int) (end - start + 1));
+            out.flush();
+        } catch (IOException | InterruptedException ignored) {
+            // 代理停止读取时会关闭连接
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0 && c != '\n') {
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return c < 0 && line.length() == 0 ? null : line.toString();
+    }
+}
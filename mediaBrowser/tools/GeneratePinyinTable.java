@@ -0,0 +1,81 @@
+import com.ibm.icu.text.Transliterator;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 生成 src/main/res/raw/pinyin_table.dat
+ * <p>
+ * Uses ICU4J's "Han-Latin; Latin-ASCII; Lower" transliterator, which gives the most common
+ * reading of each polyphonic character, without tones and with ü written as u. Characters
+ * ICU has no reading for are stored as -1. Syllables are numbered in the order they first
+ * appear. The format is the one read by PinyinTable: MAGIC, VERSION, the syllable count and
+ * the syllables (writeUTF), the first code point, the table length, then one short per code
+ * point. Readings differ between ICU versions for some rare characters; the checked-in table
+ * was generated with icu4j 53.1.
+ * <p>
+ * Run from the mediaBrowser directory with icu4j on the classpath (Java 11+):
+ * <pre>
+ * java -cp icu4j-53.1.jar tools/GeneratePinyinTable.java src/main/res/raw/pinyin_table.dat
+ * </pre>
+ */
+public class GeneratePinyinTable {
+
+    private static final int MAGIC = 0x50595431;
+    private static final int VERSION = 1;
+    // CJK Unified Ideographs
+    private static final int FIRST_CODE_POINT = 0x4E00;
+    private static final int LAST_CODE_POINT = 0x9FFF;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("usage: GeneratePinyinTable <output file>");
+            System.exit(1);
+        }
+        Transliterator transliterator =
+                Transliterator.getInstance("Han-Latin; Latin-ASCII; Lower");
+        List<String> syllables = new ArrayList<>();
+        Map<String, Integer> indexes = new HashMap<>();
+        short[] table = new short[LAST_CODE_POINT - FIRST_CODE_POINT + 1];
+        for (int cp = FIRST_CODE_POINT; cp <= LAST_CODE_POINT; cp++) {
+            String text = new String(Character.toChars(cp));
+            String pinyin = transliterator.transliterate(text).trim();
+            // 没有读音时原样返回
+            if (pinyin.isEmpty() || pinyin.equals(text) || !pinyin.matches("[a-z]+")) {
+                table[cp - FIRST_CODE_POINT] = -1;
+                continue;
+            }
+            Integer index = indexes.get(pinyin);
+            if (index == null) {
+                index = syllables.size();
+                indexes.put(pinyin, index);
+                syllables.add(pinyin);
+            }
+            table[cp - FIRST_CODE_POINT] = index.shortValue();
+        }
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(args[0])));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeShort(syllables.size());
+            for (String syllable : syllables) {
+                out.writeUTF(syllable);
+            }
+            out.writeInt(FIRST_CODE_POINT);
+            out.writeInt(table.length);
+            for (short index : table) {
+                out.writeShort(index);
+            }
+        } finally {
+            out.close();
+        }
+        System.out.println(syllables.size() + " syllables, " + table.length + " code points");
+    }
+}